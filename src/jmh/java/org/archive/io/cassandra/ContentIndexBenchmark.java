@@ -0,0 +1,62 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Splitting the HTTP headers off a response by looking for the start of
+ * the HTML, from a decoded string and from the recorded bytes, as the
+ * writer used to, and parsing the header fields of a response whose
+ * header size is known, as the writer does now.
+ *
+ * @author greglu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContentIndexBenchmark {
+
+	@Param({"4096", "65536", "1048576"})
+	public int responseSize;
+
+	/** Whether the body starts with a doctype, or only with a lowercase html tag found after scanning it all for a doctype */
+	@Param({"true", "false"})
+	public boolean doctype;
+
+	private byte[] _response;
+	private int _headerSize;
+
+	@Setup
+	public void setup() throws Exception {
+		_response = Payloads.response(responseSize);
+		if (!doctype)
+			_response = new String(_response, "UTF-8").replace("<!DOCTYPE html>", "               ").getBytes("UTF-8");
+		_headerSize = new String(_response, "UTF-8").indexOf("\r\n\r\n") + 4;
+	}
+
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public int fromString() throws Exception {
+		return CassandraWriter.getContentIndex(new String(_response, "UTF-8"));
+	}
+
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public int fromByteBuffer() {
+		return CassandraWriter.getContentIndex(ByteBuffer.wrap(_response));
+	}
+
+	@Benchmark
+	public int headerFields() {
+		return HttpHeaders.parse(ByteBuffer.wrap(_response, 0, _headerSize)).size();
+	}
+}
@@ -0,0 +1,110 @@
+package org.archive.io.cassandra;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+
+/**
+ * In-process Thrift server speaking the Cassandra API, which accepts every
+ * write and stores nothing, so that benchmarks measure the client side of
+ * {@link CassandraWriter} over a real socket.
+ *
+ * The ring is made of this single node, owning the whole token range of
+ * the RandomPartitioner. Reads return nothing.
+ *
+ * @author greglu
+ */
+public class FakeCassandraServer {
+
+	public static final String HOST = "127.0.0.1";
+
+	private final AtomicLong _mutations = new AtomicLong();
+	private ServerSocket _socket;
+	private TServer _server;
+	private Thread _thread;
+
+	/**
+	 * Start serving on a free port.
+	 */
+	public void start() throws Exception {
+		_socket = new ServerSocket(0, 128, InetAddress.getByName(HOST));
+
+		Cassandra.Iface handler = (Cassandra.Iface) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[] {Cassandra.Iface.class}, new Handler());
+		_server = new TThreadPoolServer(new Cassandra.Processor(handler), new TServerSocket(_socket),
+				new TFramedTransport.Factory(), new TBinaryProtocol.Factory());
+
+		_thread = new Thread("FakeCassandraServer") {
+			@Override
+			public void run() {
+				_server.serve();
+			}
+		};
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	public int getPort() {
+		return _socket.getLocalPort();
+	}
+
+	/**
+	 * @return the number of mutations received by batch_mutate calls
+	 */
+	public long getMutations() {
+		return _mutations.get();
+	}
+
+	public void stop() throws Exception {
+		_server.stop();
+		_socket.close();
+		_thread.join(1000);
+	}
+
+	private class Handler implements InvocationHandler {
+
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("batch_mutate")) {
+				for (Map<String, List<?>> row : ((Map<?, Map<String, List<?>>>) args[0]).values()) {
+					for (List<?> mutations : row.values()) {
+						_mutations.addAndGet(mutations.size());
+					}
+				}
+				return null;
+			}
+			if (name.equals("describe_ring"))
+				return Collections.singletonList(new TokenRange("0", "0", Collections.singletonList(HOST)));
+			if (name.equals("describe_partitioner"))
+				return "org.apache.cassandra.dht.RandomPartitioner";
+			if (name.equals("describe_version"))
+				return "19.4.0";
+
+			Class<?> type = method.getReturnType();
+			if (type == Integer.TYPE)
+				return 0;
+			if (List.class.isAssignableFrom(type))
+				return Collections.emptyList();
+			if (Map.class.isAssignableFrom(type))
+				return Collections.emptyMap();
+			if (type == String.class)
+				return "";
+			return null;
+		}
+	}
+}
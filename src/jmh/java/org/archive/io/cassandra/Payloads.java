@@ -0,0 +1,107 @@
+package org.archive.io.cassandra;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+/**
+ * Synthetic crawl data shared by the benchmarks.
+ *
+ * @author greglu
+ */
+public class Payloads {
+
+	public static final String[] URLS = {
+		"http://www.example.com/",
+		"http://www.example.com/index.html",
+		"https://news.example.co.uk/2011/06/12/some-article-with-a-long-slug.html?ref=rss&utm_source=feed",
+		"http://user@intranet.example.org:8080/path/to/resource;jsessionid=0123456789ABCDEF",
+		"http://a.b.c.d.e.example.net/search?q=heritrix+cassandra&page=2#results",
+		"ftp://ftp.example.com/pub/file.tar.gz",
+		"dns:www.example.com",
+		"http://192.168.0.1/admin/",
+	};
+
+	/**
+	 * @param size size of the response, headers included
+	 * @return an HTTP response whose HTML body repeats similar markup, so that it
+	 * compresses about as well as real pages
+	 */
+	public static byte[] response(int size) {
+		try {
+			String headers = "HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=UTF-8\r\n" +
+					"Server: Apache\r\nContent-Length: " + size + "\r\n\r\n";
+			StringBuilder body = new StringBuilder(size);
+			body.append("<!DOCTYPE html><html><head><title>Benchmark</title></head><body>");
+			Random random = new Random(size);
+			while (body.length() + headers.length() < size) {
+				body.append("<div class=\"item\"><a href=\"/item/").append(random.nextInt(100000))
+					.append("\">Item ").append(random.nextInt(1000)).append("</a></div>\n");
+			}
+
+			byte[] response = new byte[size];
+			byte[] bytes = (headers + body).getBytes("UTF-8");
+			System.arraycopy(bytes, 0, response, 0, size);
+			return response;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Record a fetch of the given url in a {@link Recorder}, the way the fetch
+	 * processors do, buffering everything in memory.
+	 *
+	 * @param url the url
+	 * @param response the recorded response
+	 * @param tempDir directory of the recorder's backing files, which are only used
+	 * for responses bigger than the buffers
+	 * @return the fetched URI
+	 */
+	public static CrawlURI fetch(String url, byte[] response, File tempDir) throws Exception {
+		byte[] request = ("GET " + url + " HTTP/1.1\r\nUser-Agent: benchmark\r\n\r\n").getBytes("UTF-8");
+
+		Recorder recorder = new Recorder(tempDir, "benchmark-" + System.nanoTime(),
+				request.length + 1024, response.length + 1024);
+		OutputStream out = recorder.outputWrap(new ByteArrayOutputStream());
+		out.write(request);
+		out.flush();
+
+		InputStream in = recorder.inputWrap(new ByteArrayInputStream(response));
+		// The fetchers mark the end of the headers, which the writer splits the response at
+		int headerSize = headerSize(response);
+		for (int read = 0; read < headerSize; read++) {
+			in.read();
+		}
+		if (headerSize > 0)
+			recorder.markContentBegin();
+		recorder.getRecordedInput().readFullyOrUntil(0);
+		in.close();
+		recorder.close();
+
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance(url));
+		curi.setFetchBeginTime(System.currentTimeMillis());
+		curi.setFetchStatus(200);
+		curi.setRecorder(recorder);
+		return curi;
+	}
+
+	/**
+	 * @return the size of the headers of the response, blank line included, or 0 if it has none
+	 */
+	private static int headerSize(byte[] response) {
+		for (int i = 3; i < response.length; i++) {
+			if (response[i - 3] == '\r' && response[i - 2] == '\n' && response[i - 1] == '\r' && response[i] == '\n')
+				return i + 1;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,60 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Encoding column values with each {@link ValueCodec}, into pooled buffers.
+ *
+ * @author greglu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+	@Param({"NONE", "DEFLATE", "SNAPPY", "LZ4"})
+	public ValueCodec codec;
+
+	@Param({"4096", "65536", "1048576"})
+	public int valueSize;
+
+	private final ByteBufferPool _pool = new ByteBufferPool(CassandraParameters.BUFFER_POOL_SIZE);
+	private ByteBuffer _value;
+	private ByteBuffer _encoded;
+
+	@Setup
+	public void setup() throws Exception {
+		_value = ByteBuffer.wrap(Payloads.response(valueSize));
+		_encoded = _pool.acquire(codec.maxEncodedLength(valueSize));
+		codec.encode(_value, _encoded, CassandraParameters.COMPRESSION_LEVEL);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_pool.release(_encoded);
+	}
+
+	@Benchmark
+	public ByteBuffer encode() throws Exception {
+		ByteBuffer encoded = _pool.acquire(codec.maxEncodedLength(valueSize));
+		codec.encode(_value, encoded, CassandraParameters.COMPRESSION_LEVEL);
+		_pool.release(encoded);
+		return encoded;
+	}
+
+	@Benchmark
+	public ByteBuffer decode() throws Exception {
+		return ValueCodec.decode(_encoded);
+	}
+}
@@ -0,0 +1,62 @@
+package org.archive.io.cassandra;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Row key generation from urls.
+ *
+ * @author greglu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UrlKeyBenchmark {
+
+	private int _next = 0;
+
+	@Benchmark
+	public String createKey() {
+		return UrlKey.createKey(nextUrl());
+	}
+
+	@Benchmark
+	public void createRowKey(Blackhole blackhole) throws Exception {
+		blackhole.consume(UrlKey.createRowKey(nextUrl(), PARAMETERS));
+	}
+
+	@Benchmark
+	public void createBinaryRowKey(Blackhole blackhole) throws Exception {
+		blackhole.consume(UrlKey.createRowKey(nextUrl(), BINARY_PARAMETERS));
+	}
+
+	@Benchmark
+	public String keyToUri() {
+		return UrlKey.keyToUri(KEYS[_next = (_next + 1) % KEYS.length]);
+	}
+
+	private String nextUrl() {
+		_next = (_next + 1) % Payloads.URLS.length;
+		return Payloads.URLS[_next];
+	}
+
+	private static final CassandraParameters PARAMETERS = new CassandraParameters();
+
+	private static final CassandraParameters BINARY_PARAMETERS = new CassandraParameters();
+	static {
+		BINARY_PARAMETERS.setKeyFormat(KeyFormat.BINARY);
+	}
+
+	private static final String[] KEYS = new String[Payloads.URLS.length];
+	static {
+		for (int i = 0; i < KEYS.length; i++)
+			KEYS[i] = UrlKey.createKey(Payloads.URLS[i]);
+	}
+}
@@ -0,0 +1,113 @@
+package org.archive.io.cassandra;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.writer.CassandraWriterProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * End-to-end {@link CassandraWriter#write} of recorded fetches, through a
+ * {@link CassandraWriterPool}, against a {@link FakeCassandraServer}.
+ *
+ * Run with <code>-prof gc</code>, as the jmh task does, for allocation rates.
+ *
+ * @author greglu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriterBenchmark {
+
+	@Param({"4096", "65536", "1048576"})
+	public int responseSize;
+
+	@Param({"false", "true"})
+	public boolean separateHeaders;
+
+	private FakeCassandraServer _server;
+	private CassandraWriterPool _pool;
+	private File _tempDir;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		_server = new FakeCassandraServer();
+		_server.start();
+
+		CassandraParameters parameters = new CassandraParameters();
+		parameters.setSeeds(FakeCassandraServer.HOST);
+		parameters.setPort(_server.getPort());
+		parameters.setKeyspace("benchmark");
+		parameters.setSeparateHeaders(separateHeaders);
+
+		// The processor only provides the writer pool settings here
+		_pool = new CassandraWriterPool(parameters, new CassandraWriterProcessor(), 64, 1000);
+
+		_tempDir = new File(System.getProperty("java.io.tmpdir"), "heritrix-cassandra-benchmark");
+		_tempDir.mkdirs();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		_pool.close();
+		_server.stop();
+	}
+
+	/**
+	 * A recorded fetch per thread, replayed on every write.
+	 */
+	@State(Scope.Thread)
+	public static class Fetch {
+
+		private CrawlURI _curi;
+
+		@Setup(Level.Trial)
+		public void setup(WriterBenchmark benchmark) throws Exception {
+			_curi = Payloads.fetch(Payloads.URLS[1], Payloads.response(benchmark.responseSize), benchmark._tempDir);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			_curi.getRecorder().cleanup();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void write1Thread(Fetch fetch) throws Exception {
+		write(fetch._curi);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void write4Threads(Fetch fetch) throws Exception {
+		write(fetch._curi);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void write16Threads(Fetch fetch) throws Exception {
+		write(fetch._curi);
+	}
+
+	private void write(CrawlURI curi) throws Exception {
+		CassandraWriter writer = (CassandraWriter) _pool.borrowFile();
+		try {
+			writer.write(curi, FakeCassandraServer.HOST, curi.getRecorder().getRecordedOutput(),
+					curi.getRecorder().getRecordedInput());
+		} finally {
+			_pool.returnFile(writer);
+		}
+	}
+}
@@ -0,0 +1,473 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.apache.log4j.Logger;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+
+/**
+ * Non-blocking Thrift connections keyed by endpoint, driven by a few
+ * selector threads ({@link TAsyncClientManager}s) instead of a thread
+ * blocked on each call.
+ *
+ * Thrift answers calls in order without identifying them, so a connection
+ * carries a single call at a time. Each endpoint has at most
+ * {@link CassandraParameters#getAsyncConnectionsPerHost()} connections;
+ * further calls wait in a queue, holding no thread, and are sent as soon
+ * as a connection is free. Endpoints are marked down in the shared
+ * {@link ConnectionPool} when their connections fail, failing the calls
+ * waiting for them too.
+ *
+ * At most {@link CassandraParameters#getAsyncMaxPendingWrites()}
+ * submissions are in progress at a time, further ones blocking the
+ * calling thread, so that writers outpacing a slow node don't queue up
+ * records without bound.
+ *
+ * Callbacks run on the selector threads and must not block. Slower work,
+ * such as retries, goes to {@link #getExecutor()}, which may block, while
+ * {@link #getScheduler()} only times calls and retries out.
+ *
+ * @author greglu
+ */
+public class AsyncConnectionPool {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Called once a call completes.
+	 */
+	public interface Callback {
+		void onSuccess();
+
+		/**
+		 * @param e the reason the call failed, an {@link InvalidRequestException} if retrying it is pointless
+		 */
+		void onError(Exception e);
+	}
+
+	private final CassandraParameters _parameters;
+	private final ConnectionPool _connectionPool;
+	private final WriterMetrics _metrics;
+	private final TAsyncClientManager[] _managers;
+	private final AtomicInteger _nextManager = new AtomicInteger();
+	private final TProtocolFactory _protocolFactory = new TBinaryProtocol.Factory();
+	private final ConcurrentMap<String, HostConnections> _hosts = new ConcurrentHashMap<String, HostConnections>();
+	private final ScheduledExecutorService _scheduler;
+	private final ExecutorService _executor;
+
+	// Submissions not completed yet, waited for on its monitor
+	private final AtomicInteger _submissions = new AtomicInteger();
+	private final Semaphore _submissionPermits;
+
+	/**
+	 * @param parameters the settings of the connections
+	 * @param connectionPool the pool keeping track of the endpoints marked down
+	 * @param metrics the metrics of the calls
+	 * @throws IOException if a selector couldn't be opened
+	 */
+	public AsyncConnectionPool(CassandraParameters parameters, ConnectionPool connectionPool, WriterMetrics metrics)
+			throws IOException {
+		this._parameters = parameters;
+		this._connectionPool = connectionPool;
+		this._metrics = metrics;
+
+		this._managers = new TAsyncClientManager[Math.max(1, parameters.getAsyncSelectorThreads())];
+		for (int i = 0; i < _managers.length; i++) {
+			_managers[i] = new TAsyncClientManager();
+		}
+
+		this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CassandraAsyncScheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Routing a retry may fetch the token ring, which must not hold up the timeouts
+		this._executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CassandraAsyncWorker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this._submissionPermits = new Semaphore(Math.max(1, parameters.getAsyncMaxPendingWrites()));
+	}
+
+	/**
+	 * Send a batch_mutate call to the given endpoint without waiting for it.
+	 *
+	 * @param endPoint the endpoint
+	 * @param job mutations for each row key and column family, not to be modified until the call completes
+	 * @param level the consistency level of the call
+	 * @param callback called once the call completes
+	 */
+	public void batchMutate(String endPoint, Map<ByteBuffer, Map<String, List<Mutation>>> job,
+			ConsistencyLevel level, Callback callback) {
+		if (!_connectionPool.isUp(endPoint)) {
+			callback.onError(new TException("Endpoint " + endPoint + " is marked down"));
+			return;
+		}
+		getHostConnections(endPoint).submit(new Call(job, level, callback));
+	}
+
+	/**
+	 * @return the executor timing calls out and scheduling the retries, whose tasks must not block
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return _scheduler;
+	}
+
+	/**
+	 * @return the executor of the work following a call, such as spilling or retrying it
+	 */
+	public ExecutorService getExecutor() {
+		return _executor;
+	}
+
+	/**
+	 * Count a submission in progress, until {@link #submissionFinished()}, waiting
+	 * while {@link CassandraParameters#getAsyncMaxPendingWrites()} are.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void submissionStarted() throws InterruptedException {
+		_submissionPermits.acquire();
+		_submissions.incrementAndGet();
+	}
+
+	public void submissionFinished() {
+		_submissionPermits.release();
+		if (_submissions.decrementAndGet() == 0) {
+			synchronized (_submissions) {
+				_submissions.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait for every submission in progress to complete.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitSubmissions() throws InterruptedException {
+		synchronized (_submissions) {
+			while (_submissions.get() > 0) {
+				_submissions.wait(1000);
+			}
+		}
+	}
+
+	/**
+	 * Stop the selector threads and close every connection. Calls in flight fail.
+	 */
+	public void close() {
+		_scheduler.shutdownNow();
+		_executor.shutdownNow();
+		for (TAsyncClientManager manager : _managers) {
+			manager.stop();
+		}
+		for (HostConnections host : _hosts.values()) {
+			host.close();
+		}
+	}
+
+	private HostConnections getHostConnections(String host) {
+		HostConnections connections = _hosts.get(host);
+		if (connections == null) {
+			HostConnections created = new HostConnections(host);
+			connections = _hosts.putIfAbsent(host, created);
+			if (connections == null)
+				connections = created;
+		}
+		return connections;
+	}
+
+	/**
+	 * The connections to a single endpoint and the calls waiting for one.
+	 */
+	private class HostConnections {
+		private final String _host;
+		private final Queue<AsyncConnection> _idle = new ArrayDeque<AsyncConnection>();
+		private final Queue<Call> _waiting = new ArrayDeque<Call>();
+		private int _open = 0;
+
+		private HostConnections(String host) {
+			this._host = host;
+		}
+
+		private void submit(Call call) {
+			AsyncConnection connection;
+			synchronized (this) {
+				connection = _idle.poll();
+				if (connection == null) {
+					if (_open >= _parameters.getAsyncConnectionsPerHost()) {
+						_waiting.add(call);
+						return;
+					}
+					_open++;
+				}
+			}
+			if (connection != null)
+				connection.start(call);
+			else
+				connect(call);
+		}
+
+		/**
+		 * Hand a connection whose call completed over to the next waiting call, or
+		 * keep it idle. A connection that timed out is replaced if a call is waiting.
+		 */
+		private void done(AsyncConnection connection, boolean broken) {
+			Call next;
+			synchronized (this) {
+				if (broken) {
+					_open--;
+					connection = null;
+				}
+				next = _waiting.poll();
+				if (next == null) {
+					if (connection != null)
+						_idle.add(connection);
+					return;
+				}
+				if (connection == null)
+					_open++;
+			}
+			if (connection != null)
+				connection.start(next);
+			else
+				connect(next);
+		}
+
+		/**
+		 * Drop a connection that failed, and fail the calls waiting for one along with its
+		 * own: the endpoint is most likely down. Connecting again for each of them would
+		 * recurse through the whole queue on the caller's stack.
+		 *
+		 * @param call the call of the connection
+		 * @param error the reason it failed
+		 */
+		private void failed(Call call, Exception error) {
+			List<Call> waiting;
+			synchronized (this) {
+				_open--;
+				waiting = new ArrayList<Call>(_waiting);
+				_waiting.clear();
+			}
+			call._callback.onError(error);
+			for (Call next : waiting) {
+				next._callback.onError(error);
+			}
+		}
+
+		/**
+		 * Open a connection and set its keyspace before sending the call.
+		 */
+		private void connect(final Call call) {
+			final AsyncConnection connection;
+			try {
+				connection = new AsyncConnection(this);
+			} catch (IOException e) {
+				_connectionPool.markDown(_host);
+				failed(call, new TException("Unable to connect to " + _host + ": " + e.getMessage(), e));
+				return;
+			}
+
+			// Timed out like the calls, or a node accepting connections without answering would
+			// hold on to the connection and the calls waiting for one forever
+			final AtomicBoolean over = new AtomicBoolean();
+			final ScheduledFuture<?> timeout = _scheduler.schedule(new Runnable() {
+				public void run() {
+					if (over.compareAndSet(false, true))
+						connection.fail(call, new TException("Timed out setting the keyspace on " + _host));
+				}
+			}, _parameters.getAsyncCallTimeout(), TimeUnit.MILLISECONDS);
+
+			try {
+				connection._client.set_keyspace(_parameters.getKeyspace(),
+						new AsyncMethodCallback<Cassandra.AsyncClient.set_keyspace_call>() {
+					public void onComplete(Cassandra.AsyncClient.set_keyspace_call response) {
+						if (!over.compareAndSet(false, true))
+							return;
+						timeout.cancel(false);
+						try {
+							response.getResult();
+						} catch (Exception e) {
+							connection.fail(call, e);
+							return;
+						}
+						_metrics.connectionOpened();
+						connection.start(call);
+					}
+
+					public void onError(Throwable throwable) {
+						if (!over.compareAndSet(false, true))
+							return;
+						timeout.cancel(false);
+						connection.fail(call, throwable);
+					}
+				});
+			} catch (TException e) {
+				if (over.compareAndSet(false, true)) {
+					timeout.cancel(false);
+					connection.fail(call, e);
+				}
+			}
+		}
+
+		private synchronized void close() {
+			AsyncConnection idle;
+			while ((idle = _idle.poll()) != null) {
+				idle.close();
+			}
+			_waiting.clear();
+		}
+	}
+
+	/**
+	 * A non-blocking connection, carrying one call at a time.
+	 */
+	private class AsyncConnection {
+		private final HostConnections _host;
+		private final TNonblockingSocket _transport;
+		private final Cassandra.AsyncClient _client;
+
+		private AsyncConnection(HostConnections host) throws IOException {
+			this._host = host;
+			this._transport = new TNonblockingSocket(host._host, _parameters.getPort());
+			TAsyncClientManager manager = _managers[(_nextManager.getAndIncrement() & Integer.MAX_VALUE) % _managers.length];
+			this._client = new Cassandra.AsyncClient(_protocolFactory, manager, _transport);
+		}
+
+		private void start(final Call call) {
+			final AtomicBoolean over = new AtomicBoolean();
+			final long start = System.nanoTime();
+
+			// Thrift doesn't time calls out by itself: a node that stopped answering
+			// would hold on to the connection forever
+			final ScheduledFuture<?> timeout = _scheduler.schedule(new Runnable() {
+				public void run() {
+					if (over.compareAndSet(false, true)) {
+						_metrics.batchMutate(_host._host, System.nanoTime() - start, true);
+						fail(call, new TimedOutException());
+					}
+				}
+			}, _parameters.getAsyncCallTimeout(), TimeUnit.MILLISECONDS);
+
+			try {
+				_client.batch_mutate(call._job, call._level,
+						new AsyncMethodCallback<Cassandra.AsyncClient.batch_mutate_call>() {
+					public void onComplete(Cassandra.AsyncClient.batch_mutate_call response) {
+						if (!over.compareAndSet(false, true))
+							return;
+						timeout.cancel(false);
+
+						Exception error = null;
+						boolean broken = false;
+						try {
+							response.getResult();
+						} catch (InvalidRequestException e) {
+							error = e;
+						} catch (TimedOutException e) {
+							error = e;
+						} catch (UnavailableException e) {
+							error = e;
+						} catch (TException e) {
+							error = e;
+							broken = true;
+						}
+						_metrics.batchMutate(_host._host, System.nanoTime() - start, error != null);
+
+						if (broken) {
+							fail(call, error);
+							return;
+						}
+						_host.done(AsyncConnection.this, false);
+						if (error == null)
+							call._callback.onSuccess();
+						else
+							call._callback.onError(error);
+					}
+
+					public void onError(Throwable throwable) {
+						if (!over.compareAndSet(false, true))
+							return;
+						timeout.cancel(false);
+						_metrics.batchMutate(_host._host, System.nanoTime() - start, true);
+						fail(call, throwable);
+					}
+				});
+			} catch (TException e) {
+				if (over.compareAndSet(false, true)) {
+					timeout.cancel(false);
+					fail(call, e);
+				}
+			}
+		}
+
+		/**
+		 * Close the connection after its call failed. Unless the node merely timed out,
+		 * mark its endpoint down and fail the calls waiting for a connection to it.
+		 */
+		private void fail(Call call, Throwable throwable) {
+			close();
+			if (LOG.isDebugEnabled())
+				LOG.debug("Asynchronous call to " + _host._host + " failed: " + throwable);
+
+			Exception error = throwable instanceof Exception
+					? (Exception) throwable : new TException(throwable.toString());
+			if (throwable instanceof TimedOutException) {
+				_host.done(this, true);
+				call._callback.onError(error);
+				return;
+			}
+			_connectionPool.markDown(_host._host);
+			_host.failed(call, error);
+		}
+
+		private void close() {
+			_transport.close();
+		}
+	}
+
+	private static class Call {
+		private final Map<ByteBuffer, Map<String, List<Mutation>>> _job;
+		private final ConsistencyLevel _level;
+		private final Callback _callback;
+
+		private Call(Map<ByteBuffer, Map<String, List<Mutation>>> job, ConsistencyLevel level, Callback callback) {
+			this._job = job;
+			this._level = level;
+			this._callback = callback;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.log4j.Logger;
+
+/**
+ * A batch_mutate job written by a {@link StorageBackend} without waiting
+ * for it, completing a {@link WriteFuture} once none of its calls is left.
+ *
+ * Rows whose call fails are sent again after an exponentially growing
+ * pause, scheduled rather than slept, by a worker thread rather than the
+ * scheduler's, since routing them may fetch the token ring. At most
+ * {@link CassandraParameters#getRetryBudget()} times, then spilled to the
+ * pool's {@link SpillJournal} if any, like blocking writes are.
+ *
+ * Implementations send the calls in {@link #send(Map, int, long)}, count
+ * each with {@link #called()}, and report its outcome with
+ * {@link #succeeded()} or {@link #failed(Map, Exception, boolean, int, long)},
+ * possibly from an I/O thread.
+ *
+ * @author greglu
+ */
+abstract class AsyncSubmission {
+
+	private static final Logger LOG = Logger.getLogger(AsyncSubmission.class.getName());
+
+	private final CassandraWriterPool _pool;
+	private final SpillJournal _journal;
+	private final ScheduledExecutorService _scheduler;
+	private final Executor _executor;
+	private final WriteFuture _future = new WriteFuture();
+	// Calls in progress, plus one while sending them
+	private final AtomicInteger _pending = new AtomicInteger(1);
+	private volatile Exception _error;
+
+	/**
+	 * @param pool the pool providing the settings, metrics and spill journal
+	 * @param spill whether rows that can't be written go to the pool's {@link SpillJournal}, if any
+	 * @param scheduler the executor timing the pauses before the retries
+	 * @param executor the executor spilling and sending the retries
+	 */
+	protected AsyncSubmission(CassandraWriterPool pool, boolean spill, ScheduledExecutorService scheduler,
+			Executor executor) {
+		this._pool = pool;
+		this._journal = spill ? pool.getSpillJournal() : null;
+		this._scheduler = scheduler;
+		this._executor = executor;
+	}
+
+	/**
+	 * Send the calls of a job, or spill it whole while the journal is spilling.
+	 *
+	 * @param job mutations for each row key and column family, not to be modified until written
+	 * @return the pending write of the job
+	 */
+	public WriteFuture start(Map<ByteBuffer, Map<String, List<Mutation>>> job) {
+		if (_journal != null && _journal.isSpilling()) {
+			try {
+				_journal.append(job);
+				_pool.getMetrics().spilled(job.size());
+			} catch (IOException e) {
+				_error = e;
+			}
+			done();
+			return _future;
+		}
+
+		dispatch(job, 0, getParameters().getRetryBackoff());
+		return _future;
+	}
+
+	/**
+	 * Send the calls writing the given rows.
+	 *
+	 * @param rows mutations for each row key and column family
+	 * @param attempt the number of times the rows were sent already
+	 * @param backoff the pause before sending the rows again if they fail
+	 * @throws InterruptedException
+	 */
+	protected abstract void send(Map<ByteBuffer, Map<String, List<Mutation>>> rows, int attempt, long backoff)
+			throws InterruptedException;
+
+	/**
+	 * Called once the submission completed.
+	 */
+	protected abstract void finished();
+
+	protected CassandraParameters getParameters() {
+		return _pool.getCassandraParameters();
+	}
+
+	/**
+	 * Count a call sent, until its outcome is reported.
+	 */
+	protected void called() {
+		_pending.incrementAndGet();
+	}
+
+	protected void succeeded() {
+		done();
+	}
+
+	/**
+	 * Retry, spill or give up on rows whose call failed. Safe to call from an I/O
+	 * thread, the journal and the retries being handled by the executor.
+	 *
+	 * @param rows the rows of the call
+	 * @param error the reason it failed, an {@link InvalidRequestException} if retrying it is pointless
+	 * @param live whether the rows had a live endpoint
+	 * @param attempt the number of times the rows were sent already
+	 * @param backoff the pause before sending the rows again
+	 */
+	protected void failed(final Map<ByteBuffer, Map<String, List<Mutation>>> rows, final Exception error,
+			final boolean live, final int attempt, final long backoff) {
+		try {
+			_executor.execute(new Runnable() {
+				public void run() {
+					handleFailure(rows, error, live, attempt, backoff);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			_error = new IOException("Writer closed before writing " + rows.size() + " row(s)", error);
+			done();
+		}
+	}
+
+	private void handleFailure(final Map<ByteBuffer, Map<String, List<Mutation>>> rows, Exception error,
+			boolean live, final int attempt, long backoff) {
+		try {
+			if (error instanceof InvalidRequestException) {
+				_error = new IOException("Cassandra rejected the write of " + rows.size() + " row(s): " +
+						((InvalidRequestException) error).getWhy(), error);
+				return;
+			}
+
+			// No point in waiting for a node to come back when the rows can be spilled
+			if (attempt >= getParameters().getRetryBudget() || (_journal != null && !live)) {
+				if (_journal == null) {
+					_error = new IOException("Giving up on writing " + rows.size() + " row(s) after " + (attempt + 1) +
+							" attempts: " + error.getMessage(), error);
+					return;
+				}
+				LOG.warn("Spilling " + rows.size() + " row(s) after " + (attempt + 1) + " attempts: " +
+						error.getMessage());
+				_journal.append(rows);
+				_pool.getMetrics().spilled(rows.size());
+				return;
+			}
+
+			_pool.getMetrics().retried(rows.size());
+			final long next = Math.min(backoff * 2, getParameters().getRetryBackoffMax());
+			_scheduler.schedule(new Runnable() {
+				public void run() {
+					try {
+						_executor.execute(new Runnable() {
+							public void run() {
+								dispatch(rows, attempt + 1, next);
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						_error = new IOException("Writer closed before writing " + rows.size() + " row(s)");
+						done();
+					}
+				}
+			}, backoff, TimeUnit.MILLISECONDS);
+			// Counted once scheduled: this call's own count keeps the submission open meanwhile
+			_pending.incrementAndGet();
+		} catch (Exception e) {
+			_error = e instanceof IOException ? e : new IOException(e);
+		} finally {
+			done();
+		}
+	}
+
+	private void dispatch(Map<ByteBuffer, Map<String, List<Mutation>>> rows, int attempt, long backoff) {
+		try {
+			send(rows, attempt, backoff);
+		} catch (InterruptedException e) {
+			_error = new IOException("Interrupted while sending " + rows.size() + " row(s)", e);
+		}
+		done();
+	}
+
+	private void done() {
+		if (_pending.decrementAndGet() == 0) {
+			_future.complete(_error);
+			finished();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+
+import org.apache.cassandra.utils.MurmurHash;
+
+/**
+ * A Bloom filter over row keys whose bit array lives off-heap, in a direct
+ * buffer, so that a filter sized for hundreds of millions of keys doesn't
+ * weigh on the garbage collector.
+ *
+ * Lookups are lock-free; additions are serialized so that concurrent
+ * updates of the same word don't lose bits.
+ *
+ * @author greglu
+ */
+public class BloomFilter {
+
+	private final ByteBuffer _bits;
+	private final long _numBits;
+	private final int _numHashes;
+
+	/**
+	 * @param expectedKeys number of keys the filter is sized for
+	 * @param falsePositiveRate false positive rate once expectedKeys keys were added
+	 */
+	public BloomFilter(long expectedKeys, double falsePositiveRate) {
+		long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		// Round up to whole words, within what a single direct buffer can hold
+		long words = Math.min(Math.max((bits + 63) / 64, 1), Integer.MAX_VALUE / 8);
+
+		this._numBits = words * 64;
+		this._numHashes = Math.max(1, (int) Math.round((double) _numBits / Math.max(expectedKeys, 1) * Math.log(2)));
+		this._bits = ByteBuffer.allocateDirect((int) (words * 8));
+	}
+
+	/**
+	 * @return the size of the bit array in bytes
+	 */
+	public long getSizeInBytes() {
+		return _numBits / 8;
+	}
+
+	public synchronized void add(ByteBuffer key) {
+		long hash1 = MurmurHash.hash64(key, key.position(), key.remaining(), 0L);
+		long hash2 = MurmurHash.hash64(key, key.position(), key.remaining(), hash1);
+		for (int i = 0; i < _numHashes; i++) {
+			long bit = index(hash1 + i * hash2);
+			int word = (int) (bit >>> 6) * 8;
+			_bits.putLong(word, _bits.getLong(word) | (1L << (bit & 63)));
+		}
+	}
+
+	/**
+	 * @return false if the key was definitely never added, true if it might have been
+	 */
+	public boolean mightContain(ByteBuffer key) {
+		long hash1 = MurmurHash.hash64(key, key.position(), key.remaining(), 0L);
+		long hash2 = MurmurHash.hash64(key, key.position(), key.remaining(), hash1);
+		for (int i = 0; i < _numHashes; i++) {
+			long bit = index(hash1 + i * hash2);
+			if ((_bits.getLong((int) (bit >>> 6) * 8) & (1L << (bit & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private long index(long hash) {
+		return (hash & Long.MAX_VALUE) % _numBits;
+	}
+}
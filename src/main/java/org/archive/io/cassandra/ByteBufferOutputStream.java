@@ -0,0 +1,61 @@
+package org.archive.io.cassandra;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream writing into a buffer taken from a {@link ByteBufferPool},
+ * which is swapped for a bigger pooled buffer whenever it runs out of room.
+ *
+ * @author greglu
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+	private final ByteBufferPool _pool;
+	private ByteBuffer _buffer;
+
+	/**
+	 * @param pool the pool to take the buffer from
+	 * @param expectedSize number of bytes expected to be written
+	 */
+	public ByteBufferOutputStream(ByteBufferPool pool, int expectedSize) {
+		this._pool = pool;
+		this._buffer = pool.acquire(Math.max(expectedSize, 1));
+		this._buffer.limit(_buffer.capacity());
+	}
+
+	@Override
+	public void write(int b) {
+		ensureRemaining(1);
+		_buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureRemaining(len);
+		_buffer.put(b, off, len);
+	}
+
+	/**
+	 * @return the pooled buffer holding the bytes written, from its position to its
+	 * limit. Whoever holds it is responsible for releasing it to the pool.
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer written = _buffer.duplicate();
+		written.flip();
+		return written;
+	}
+
+	private void ensureRemaining(int length) {
+		if (_buffer.remaining() >= length)
+			return;
+
+		int size = _buffer.position() + length;
+		ByteBuffer bigger = _pool.acquire(Math.max(size, _buffer.capacity() * 2));
+		bigger.limit(bigger.capacity());
+		_buffer.flip();
+		bigger.put(_buffer);
+		_pool.release(_buffer);
+		_buffer = bigger;
+	}
+}
@@ -0,0 +1,101 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable buffers for column values, so that reading large
+ * responses doesn't allocate a fresh array for every record.
+ *
+ * Buffers are grouped in power-of-two size classes and the pool never
+ * retains more than <code>maxRetainedBytes</code>. Buffers larger than
+ * the biggest size class are allocated on demand and simply dropped
+ * when released.
+ *
+ * Only heap buffers are handed out: the Thrift binary protocol writes
+ * column values straight from their backing array.
+ *
+ * @author greglu
+ */
+public class ByteBufferPool {
+
+	private static final int MIN_SIZE_CLASS = 12; // 4 KB
+	private static final int MAX_SIZE_CLASS = 24; // 16 MB
+
+	@SuppressWarnings("unchecked")
+	private final ConcurrentLinkedQueue<ByteBuffer>[] _free =
+		new ConcurrentLinkedQueue[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+	private final AtomicLong _retainedBytes = new AtomicLong();
+	private final long _maxRetainedBytes;
+
+	/**
+	 * @param maxRetainedBytes maximum number of bytes kept around in released
+	 * buffers, 0 disables pooling altogether
+	 */
+	public ByteBufferPool(long maxRetainedBytes) {
+		this._maxRetainedBytes = maxRetainedBytes;
+		for (int i = 0; i < _free.length; i++) {
+			_free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	/**
+	 * Get a buffer with at least the given capacity. The returned buffer's
+	 * position is 0 and its limit is <code>size</code>.
+	 *
+	 * @param size the number of bytes needed
+	 * @return a heap buffer
+	 */
+	public ByteBuffer acquire(int size) {
+		int sizeClass = sizeClass(size);
+		if (sizeClass > MAX_SIZE_CLASS)
+			return ByteBuffer.allocate(size);
+
+		ByteBuffer buffer = _free[sizeClass - MIN_SIZE_CLASS].poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(1 << sizeClass);
+		} else {
+			_retainedBytes.addAndGet(-buffer.capacity());
+		}
+
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer obtained from {@link #acquire(int)} to the pool. The
+	 * buffer must not be used by the caller afterwards.
+	 *
+	 * @param buffer the buffer to release
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (Integer.bitCount(capacity) != 1)
+			return;
+
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		if (sizeClass < MIN_SIZE_CLASS || sizeClass > MAX_SIZE_CLASS)
+			return;
+
+		if (_retainedBytes.addAndGet(capacity) > _maxRetainedBytes) {
+			_retainedBytes.addAndGet(-capacity);
+			return;
+		}
+		_free[sizeClass - MIN_SIZE_CLASS].offer(buffer);
+	}
+
+	/**
+	 * @return number of bytes currently held by released buffers
+	 */
+	public long getRetainedBytes() {
+		return _retainedBytes.get();
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= (1 << MIN_SIZE_CLASS))
+			return MIN_SIZE_CLASS;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
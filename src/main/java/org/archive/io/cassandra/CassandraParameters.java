@@ -1,5 +1,8 @@
 package org.archive.io.cassandra;
 
+import java.io.UnsupportedEncodingException;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
 
 /**
  * Configures the values of the column family, super/sub columns used
@@ -39,12 +42,66 @@ public class CassandraParameters {
 	public static final String ENCODING_SCHEME = "UTF-8";
 	public static final boolean FRAMED_TRANSPORT = false;
 	public static final boolean REMOVE_MISSING_PAGES = false;
+	public static final boolean REMOVE_ONLY_WRITTEN_PAGES = false;
 	public static final int MAXIMUM_CONTENT_SIZE = -1; // Defaults to -1 for unlimited
+	public static final boolean TRANSCODE_CONTENT = false;
+	public static final long BUFFER_POOL_SIZE = 64 * 1024 * 1024;
+	public static final boolean TOKEN_AWARE_ROUTING = true;
+	public static final long RING_REFRESH_INTERVAL = 60 * 1000;
+	public static final int SOCKET_TIMEOUT = 10 * 1000;
+	public static final int CONNECTION_POOL_MIN_IDLE = 1;
+	public static final int CONNECTION_POOL_MAX_IDLE = 8;
+	public static final long CONNECTION_VALIDATION_INTERVAL = 30 * 1000;
+	public static final int RETRY_BUDGET = 5;
+	public static final long RETRY_BACKOFF = 100;
+	public static final long RETRY_BACKOFF_MAX = 5 * 1000;
+	public static final long HOST_DOWN_BACKOFF = 1000;
+	public static final long HOST_DOWN_BACKOFF_MAX = 60 * 1000;
+	public static final long EXISTENCE_FILTER_EXPECTED_ROWS = 10 * 1000 * 1000;
+	public static final double EXISTENCE_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	public static final int EXISTENCE_FILTER_SCAN_PAGE_SIZE = 1000;
+	public static final boolean DEDUPLICATE_CONTENT = false;
+	public static final String CONTENT_COLUMN_FAMILY = "content";
+	public static final int DIGEST_CACHE_SIZE = 10000;
+	public static final ValueCodec COMPRESSION_CODEC = ValueCodec.NONE;
+	public static final int COMPRESSION_LEVEL = 6;
+	public static final int COMPRESSION_THREADS = 0; // Defaults to compressing on the crawler threads
+	public static final boolean CHUNKED_CONTENT = false;
+	public static final int CHUNK_SIZE = 1024 * 1024;
+	public static final KeyFormat KEY_FORMAT = KeyFormat.TEXT;
+	public static final KeyLayout KEY_LAYOUT = KeyLayout.PLAIN;
+	public static final int KEY_SALT_BUCKETS = 16;
+	public static final boolean WRITE_CONCURRENCY_LIMITING = false;
+	public static final int WRITE_CONCURRENCY_INITIAL = 8;
+	public static final int WRITE_CONCURRENCY_MIN = 1;
+	public static final int WRITE_CONCURRENCY_MAX = 64;
+	public static final long WRITE_LATENCY_TARGET = 200;
+	public static final double WRITE_CONCURRENCY_BACKOFF = 0.9;
+	public static final long WRITE_CONCURRENCY_MAX_WAIT = 60 * 1000;
+	public static final ConsistencyLevel WRITE_CONSISTENCY_LEVEL = ConsistencyLevel.ONE;
+	public static final ConsistencyLevel DELETE_CONSISTENCY_LEVEL = ConsistencyLevel.QUORUM;
+	public static final ConsistencyLevel READ_CONSISTENCY_LEVEL = ConsistencyLevel.ONE;
+	public static final TimestampSource TIMESTAMP_SOURCE = TimestampSource.FETCH_TIME;
+	public static final boolean HEDGED_WRITES = false;
+	public static final double HEDGED_WRITE_PERCENTILE = 95.0;
+	public static final long HEDGED_WRITE_MIN_DELAY = 20;
+	public static final boolean ASYNC_WRITES = false;
+	public static final int ASYNC_CONNECTIONS_PER_HOST = 16;
+	public static final int ASYNC_SELECTOR_THREADS = 1;
+	public static final long ASYNC_CALL_TIMEOUT = 10000;
+	public static final int ASYNC_MAX_PENDING_WRITES = 256;
+	public static final StorageBackendType STORAGE_BACKEND = StorageBackendType.THRIFT;
+	public static final int DEFAULT_NATIVE_PORT = 9042;
+	public static final ColumnFamilyRotation COLUMN_FAMILY_ROTATION = ColumnFamilyRotation.NONE;
+	public static final String ROTATION_MANIFEST_COLUMN_FAMILY = "column_families";
 
 	// "content" logical grouping
 	public static final String CONTENT_PREFIX = "content";
 	public static final String HEADERS_COLUMN_NAME = "headers";
+	public static final String HEADER_COLUMN_PREFIX = "header:";
 	public static final String CONTENT_COLUMN_NAME = "raw_data";
+	public static final String MANIFEST_COLUMN_NAME = "manifest";
+	public static final String CHUNK_COLUMN_NAME = "chunk";
 
 	// "curi" logical grouping
 	public static final String CURI_PREFIX = "curi";
@@ -55,6 +112,7 @@ public class CassandraParameters {
 	public static final String URL_COLUMN_NAME = "url";
 	public static final String REQUEST_COLUMN_NAME = "request";
 	public static final String PROCESSED_AT_NAME = "processed_at";
+	public static final String DIGEST_COLUMN_NAME = "digest";
 
 
 	/** ACTUAL OPTIONS INITIALIZED TO DEFAULTS **/
@@ -66,12 +124,67 @@ public class CassandraParameters {
 	private String encodingScheme = ENCODING_SCHEME;
 	private boolean framedTransport = FRAMED_TRANSPORT;
 	private boolean removeMissingPages = REMOVE_MISSING_PAGES;
+	private boolean removeOnlyWrittenPages = REMOVE_ONLY_WRITTEN_PAGES;
 	private int maximumContentSize = MAXIMUM_CONTENT_SIZE;
+	private boolean transcodeContent = TRANSCODE_CONTENT;
+	private long bufferPoolSize = BUFFER_POOL_SIZE;
+	private boolean tokenAwareRouting = TOKEN_AWARE_ROUTING;
+	private long ringRefreshInterval = RING_REFRESH_INTERVAL;
+	private int socketTimeout = SOCKET_TIMEOUT;
+	private int connectionPoolMinIdle = CONNECTION_POOL_MIN_IDLE;
+	private int connectionPoolMaxIdle = CONNECTION_POOL_MAX_IDLE;
+	private long connectionValidationInterval = CONNECTION_VALIDATION_INTERVAL;
+	private int retryBudget = RETRY_BUDGET;
+	private long retryBackoff = RETRY_BACKOFF;
+	private long retryBackoffMax = RETRY_BACKOFF_MAX;
+	private long hostDownBackoff = HOST_DOWN_BACKOFF;
+	private long hostDownBackoffMax = HOST_DOWN_BACKOFF_MAX;
+	private long existenceFilterExpectedRows = EXISTENCE_FILTER_EXPECTED_ROWS;
+	private double existenceFilterFalsePositiveRate = EXISTENCE_FILTER_FALSE_POSITIVE_RATE;
+	private int existenceFilterScanPageSize = EXISTENCE_FILTER_SCAN_PAGE_SIZE;
+	private boolean deduplicateContent = DEDUPLICATE_CONTENT;
+	private String contentColumnFamily = CONTENT_COLUMN_FAMILY;
+	private int digestCacheSize = DIGEST_CACHE_SIZE;
+	private ValueCodec compressionCodec = COMPRESSION_CODEC;
+	private int compressionLevel = COMPRESSION_LEVEL;
+	private int compressionThreads = COMPRESSION_THREADS;
+	private boolean chunkedContent = CHUNKED_CONTENT;
+	private int chunkSize = CHUNK_SIZE;
+	private KeyFormat keyFormat = KEY_FORMAT;
+	private KeyLayout keyLayout = KEY_LAYOUT;
+	private int keySaltBuckets = KEY_SALT_BUCKETS;
+	private boolean writeConcurrencyLimiting = WRITE_CONCURRENCY_LIMITING;
+	private int writeConcurrencyInitial = WRITE_CONCURRENCY_INITIAL;
+	private int writeConcurrencyMin = WRITE_CONCURRENCY_MIN;
+	private int writeConcurrencyMax = WRITE_CONCURRENCY_MAX;
+	private long writeLatencyTarget = WRITE_LATENCY_TARGET;
+	private double writeConcurrencyBackoff = WRITE_CONCURRENCY_BACKOFF;
+	private long writeConcurrencyMaxWait = WRITE_CONCURRENCY_MAX_WAIT;
+	private ConsistencyLevel writeConsistencyLevel = WRITE_CONSISTENCY_LEVEL;
+	private ConsistencyLevel deleteConsistencyLevel = DELETE_CONSISTENCY_LEVEL;
+	private ConsistencyLevel readConsistencyLevel = READ_CONSISTENCY_LEVEL;
+	private TimestampSource timestampSource = TIMESTAMP_SOURCE;
+	private boolean hedgedWrites = HEDGED_WRITES;
+	private double hedgedWritePercentile = HEDGED_WRITE_PERCENTILE;
+	private long hedgedWriteMinDelay = HEDGED_WRITE_MIN_DELAY;
+	private boolean asyncWrites = ASYNC_WRITES;
+	private int asyncConnectionsPerHost = ASYNC_CONNECTIONS_PER_HOST;
+	private int asyncSelectorThreads = ASYNC_SELECTOR_THREADS;
+	private long asyncCallTimeout = ASYNC_CALL_TIMEOUT;
+	private int asyncMaxPendingWrites = ASYNC_MAX_PENDING_WRITES;
+	private StorageBackendType storageBackend = STORAGE_BACKEND;
+	private int nativePort = DEFAULT_NATIVE_PORT;
+	private ColumnFamilyRotation columnFamilyRotation = COLUMN_FAMILY_ROTATION;
+	private String rotationManifestColumnFamily = ROTATION_MANIFEST_COLUMN_FAMILY;
 
     private String contentPrefix = CONTENT_PREFIX;
 	private boolean separateHeaders = false;
     private String headersColumnName = contentPrefix + ":" + HEADERS_COLUMN_NAME;
+	private boolean headerColumns = false;
+	private String headerColumnPrefix = contentPrefix + ":" + HEADER_COLUMN_PREFIX;
 	private String contentColumnName = contentPrefix + ":" + CONTENT_COLUMN_NAME;
+	private String manifestColumnName = contentPrefix + ":" + MANIFEST_COLUMN_NAME;
+	private String chunkColumnName = contentPrefix + ":" + CHUNK_COLUMN_NAME;
 
 	private String curiPrefix = CURI_PREFIX;
 	private String ipColumnName = curiPrefix + ":" + IP_COLUMN_NAME;
@@ -81,8 +194,14 @@ public class CassandraParameters {
 	private String urlColumnName = curiPrefix + ":" + URL_COLUMN_NAME;
 	private String requestColumnName = curiPrefix + ":" + REQUEST_COLUMN_NAME;
 	private String processedAtColumnName = curiPrefix + ":" + PROCESSED_AT_NAME;
+	private String digestColumnName = curiPrefix + ":" + DIGEST_COLUMN_NAME;
+
+	// Incremented whenever a column name or the encoding scheme changes
+	private volatile int columnNamesVersion = 0;
+	private volatile ColumnNames columnNames = null;
 
 	private Serializer serializer = null;
+	private StreamingSerializer streamingSerializer = null;
 
 
 	public String getSeeds() {
@@ -120,6 +239,375 @@ public class CassandraParameters {
 	public void setMaximumContentSize(int maximumContentSize) {
 	    this.maximumContentSize = maximumContentSize;
 	}
+	public boolean isTranscodeContent() {
+		return transcodeContent;
+	}
+	public void setTranscodeContent(boolean transcodeContent) {
+		this.transcodeContent = transcodeContent;
+	}
+	public long getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+	public void setBufferPoolSize(long bufferPoolSize) {
+		this.bufferPoolSize = bufferPoolSize;
+	}
+	public boolean isTokenAwareRouting() {
+		return tokenAwareRouting;
+	}
+	public void setTokenAwareRouting(boolean tokenAwareRouting) {
+		this.tokenAwareRouting = tokenAwareRouting;
+	}
+	public long getRingRefreshInterval() {
+		return ringRefreshInterval;
+	}
+	public void setRingRefreshInterval(long ringRefreshInterval) {
+		this.ringRefreshInterval = ringRefreshInterval;
+	}
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+	public int getConnectionPoolMinIdle() {
+		return connectionPoolMinIdle;
+	}
+	public void setConnectionPoolMinIdle(int connectionPoolMinIdle) {
+		this.connectionPoolMinIdle = connectionPoolMinIdle;
+	}
+	public int getConnectionPoolMaxIdle() {
+		return connectionPoolMaxIdle;
+	}
+	public void setConnectionPoolMaxIdle(int connectionPoolMaxIdle) {
+		this.connectionPoolMaxIdle = connectionPoolMaxIdle;
+	}
+	public long getConnectionValidationInterval() {
+		return connectionValidationInterval;
+	}
+	public void setConnectionValidationInterval(long connectionValidationInterval) {
+		this.connectionValidationInterval = connectionValidationInterval;
+	}
+	public int getRetryBudget() {
+		return retryBudget;
+	}
+	public void setRetryBudget(int retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+	public long getRetryBackoff() {
+		return retryBackoff;
+	}
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+	public long getRetryBackoffMax() {
+		return retryBackoffMax;
+	}
+	public void setRetryBackoffMax(long retryBackoffMax) {
+		this.retryBackoffMax = retryBackoffMax;
+	}
+	public long getHostDownBackoff() {
+		return hostDownBackoff;
+	}
+	public void setHostDownBackoff(long hostDownBackoff) {
+		this.hostDownBackoff = hostDownBackoff;
+	}
+	public long getHostDownBackoffMax() {
+		return hostDownBackoffMax;
+	}
+	public void setHostDownBackoffMax(long hostDownBackoffMax) {
+		this.hostDownBackoffMax = hostDownBackoffMax;
+	}
+	public long getExistenceFilterExpectedRows() {
+		return existenceFilterExpectedRows;
+	}
+	public void setExistenceFilterExpectedRows(long existenceFilterExpectedRows) {
+		this.existenceFilterExpectedRows = existenceFilterExpectedRows;
+	}
+	public double getExistenceFilterFalsePositiveRate() {
+		return existenceFilterFalsePositiveRate;
+	}
+	public void setExistenceFilterFalsePositiveRate(double existenceFilterFalsePositiveRate) {
+		this.existenceFilterFalsePositiveRate = existenceFilterFalsePositiveRate;
+	}
+	public int getExistenceFilterScanPageSize() {
+		return existenceFilterScanPageSize;
+	}
+	public void setExistenceFilterScanPageSize(int existenceFilterScanPageSize) {
+		this.existenceFilterScanPageSize = existenceFilterScanPageSize;
+	}
+	public boolean isDeduplicateContent() {
+		return deduplicateContent;
+	}
+	public void setDeduplicateContent(boolean deduplicateContent) {
+		this.deduplicateContent = deduplicateContent;
+	}
+	public String getContentColumnFamily() {
+		return contentColumnFamily;
+	}
+	public void setContentColumnFamily(String contentColumnFamily) {
+		this.contentColumnFamily = contentColumnFamily;
+	}
+	public int getDigestCacheSize() {
+		return digestCacheSize;
+	}
+	public void setDigestCacheSize(int digestCacheSize) {
+		this.digestCacheSize = digestCacheSize;
+	}
+	/**
+	 * @return the codec compressing the content and headers values. Values written with NONE
+	 * have no marker byte, so it can't be switched from or to NONE on an existing keyspace
+	 */
+	public ValueCodec getCompressionCodec() {
+		return compressionCodec;
+	}
+	public void setCompressionCodec(ValueCodec compressionCodec) {
+		this.compressionCodec = compressionCodec;
+	}
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+	public int getCompressionThreads() {
+		return compressionThreads;
+	}
+	public void setCompressionThreads(int compressionThreads) {
+		this.compressionThreads = compressionThreads;
+	}
+	public boolean isChunkedContent() {
+		return chunkedContent;
+	}
+	public void setChunkedContent(boolean chunkedContent) {
+		this.chunkedContent = chunkedContent;
+	}
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+	public KeyFormat getKeyFormat() {
+		return keyFormat;
+	}
+	public void setKeyFormat(KeyFormat keyFormat) {
+		this.keyFormat = keyFormat;
+	}
+	public KeyLayout getKeyLayout() {
+		return keyLayout;
+	}
+	public void setKeyLayout(KeyLayout keyLayout) {
+		this.keyLayout = keyLayout;
+	}
+	public int getKeySaltBuckets() {
+		return keySaltBuckets;
+	}
+	/**
+	 * @param keySaltBuckets the number of buckets of the {@link KeyLayout#SALT_BUCKETS}
+	 * layout, from 1 to 256
+	 */
+	public void setKeySaltBuckets(int keySaltBuckets) {
+		if (keySaltBuckets < 1 || keySaltBuckets > 256)
+			throw new IllegalArgumentException("keySaltBuckets must be between 1 and 256: " + keySaltBuckets);
+		this.keySaltBuckets = keySaltBuckets;
+	}
+	/**
+	 * @return whether the number of writes in flight to each node adapts to their latency
+	 * @see WriteConcurrencyLimiter
+	 */
+	public boolean isWriteConcurrencyLimiting() {
+		return writeConcurrencyLimiting;
+	}
+	public void setWriteConcurrencyLimiting(boolean writeConcurrencyLimiting) {
+		this.writeConcurrencyLimiting = writeConcurrencyLimiting;
+	}
+	public int getWriteConcurrencyInitial() {
+		return writeConcurrencyInitial;
+	}
+	public void setWriteConcurrencyInitial(int writeConcurrencyInitial) {
+		this.writeConcurrencyInitial = writeConcurrencyInitial;
+	}
+	public int getWriteConcurrencyMin() {
+		return writeConcurrencyMin;
+	}
+	public void setWriteConcurrencyMin(int writeConcurrencyMin) {
+		this.writeConcurrencyMin = writeConcurrencyMin;
+	}
+	public int getWriteConcurrencyMax() {
+		return writeConcurrencyMax;
+	}
+	public void setWriteConcurrencyMax(int writeConcurrencyMax) {
+		this.writeConcurrencyMax = writeConcurrencyMax;
+	}
+	public long getWriteLatencyTarget() {
+		return writeLatencyTarget;
+	}
+	public void setWriteLatencyTarget(long writeLatencyTarget) {
+		this.writeLatencyTarget = writeLatencyTarget;
+	}
+	public double getWriteConcurrencyBackoff() {
+		return writeConcurrencyBackoff;
+	}
+	public void setWriteConcurrencyBackoff(double writeConcurrencyBackoff) {
+		this.writeConcurrencyBackoff = writeConcurrencyBackoff;
+	}
+	public long getWriteConcurrencyMaxWait() {
+		return writeConcurrencyMaxWait;
+	}
+	public void setWriteConcurrencyMaxWait(long writeConcurrencyMaxWait) {
+		this.writeConcurrencyMaxWait = writeConcurrencyMaxWait;
+	}
+	/**
+	 * @return the consistency level of the batch_mutate calls; ANY makes
+	 * writes fire-and-forget, acknowledged as soon as any node holds a hint
+	 */
+	public ConsistencyLevel getWriteConsistencyLevel() {
+		return writeConsistencyLevel;
+	}
+	public void setWriteConsistencyLevel(ConsistencyLevel writeConsistencyLevel) {
+		this.writeConsistencyLevel = writeConsistencyLevel;
+	}
+	/**
+	 * @return the consistency level of the removal of missing pages
+	 */
+	public ConsistencyLevel getDeleteConsistencyLevel() {
+		return deleteConsistencyLevel;
+	}
+	public void setDeleteConsistencyLevel(ConsistencyLevel deleteConsistencyLevel) {
+		this.deleteConsistencyLevel = deleteConsistencyLevel;
+	}
+	/**
+	 * @return the consistency level of the reads finding out whether rows
+	 * or payloads already exist
+	 */
+	public ConsistencyLevel getReadConsistencyLevel() {
+		return readConsistencyLevel;
+	}
+	/**
+	 * @param readConsistencyLevel any level but ANY, which Cassandra only accepts for writes
+	 */
+	public void setReadConsistencyLevel(ConsistencyLevel readConsistencyLevel) {
+		if (readConsistencyLevel == ConsistencyLevel.ANY)
+			throw new IllegalArgumentException("readConsistencyLevel can't be ANY");
+		this.readConsistencyLevel = readConsistencyLevel;
+	}
+	public TimestampSource getTimestampSource() {
+		return timestampSource;
+	}
+	public void setTimestampSource(TimestampSource timestampSource) {
+		this.timestampSource = timestampSource;
+	}
+	/**
+	 * @return whether a write slower than usual is sent again to another coordinator
+	 * @see WriteHedger
+	 */
+	public boolean isHedgedWrites() {
+		return hedgedWrites;
+	}
+	public void setHedgedWrites(boolean hedgedWrites) {
+		this.hedgedWrites = hedgedWrites;
+	}
+	/**
+	 * @return the percentile of a node's batch_mutate latency after which a write to it is hedged
+	 */
+	public double getHedgedWritePercentile() {
+		return hedgedWritePercentile;
+	}
+	public void setHedgedWritePercentile(double hedgedWritePercentile) {
+		if (hedgedWritePercentile <= 0 || hedgedWritePercentile >= 100)
+			throw new IllegalArgumentException("hedgedWritePercentile must be between 0 and 100: " +
+					hedgedWritePercentile);
+		this.hedgedWritePercentile = hedgedWritePercentile;
+	}
+	/**
+	 * @return the minimum time in milliseconds before a write is hedged
+	 */
+	public long getHedgedWriteMinDelay() {
+		return hedgedWriteMinDelay;
+	}
+	public void setHedgedWriteMinDelay(long hedgedWriteMinDelay) {
+		this.hedgedWriteMinDelay = hedgedWriteMinDelay;
+	}
+	/**
+	 * @return whether rows that don't go through a write-behind queue are sent
+	 * without blocking the crawler threads
+	 * @see AsyncConnectionPool
+	 */
+	public boolean isAsyncWrites() {
+		return asyncWrites;
+	}
+	public void setAsyncWrites(boolean asyncWrites) {
+		this.asyncWrites = asyncWrites;
+	}
+	/**
+	 * @return the maximum number of non-blocking connections, and so of calls in flight, to each node
+	 */
+	public int getAsyncConnectionsPerHost() {
+		return asyncConnectionsPerHost;
+	}
+	public void setAsyncConnectionsPerHost(int asyncConnectionsPerHost) {
+		this.asyncConnectionsPerHost = asyncConnectionsPerHost;
+	}
+	public int getAsyncSelectorThreads() {
+		return asyncSelectorThreads;
+	}
+	public void setAsyncSelectorThreads(int asyncSelectorThreads) {
+		this.asyncSelectorThreads = asyncSelectorThreads;
+	}
+	/**
+	 * @return the time in milliseconds after which a non-blocking call counts as timed out
+	 */
+	public long getAsyncCallTimeout() {
+		return asyncCallTimeout;
+	}
+	public void setAsyncCallTimeout(long asyncCallTimeout) {
+		this.asyncCallTimeout = asyncCallTimeout;
+	}
+	/**
+	 * @return the maximum number of records written asynchronously at a time, writers blocking beyond
+	 */
+	public int getAsyncMaxPendingWrites() {
+		return asyncMaxPendingWrites;
+	}
+	public void setAsyncMaxPendingWrites(int asyncMaxPendingWrites) {
+		this.asyncMaxPendingWrites = asyncMaxPendingWrites;
+	}
+	/**
+	 * @return the protocol records are written with
+	 */
+	public StorageBackendType getStorageBackend() {
+		return storageBackend;
+	}
+	public void setStorageBackend(StorageBackendType storageBackend) {
+		this.storageBackend = storageBackend;
+	}
+	/**
+	 * @return the port of the native protocol, used by the {@link StorageBackendType#NATIVE} backend
+	 */
+	public int getNativePort() {
+		return nativePort;
+	}
+	public void setNativePort(int nativePort) {
+		this.nativePort = nativePort;
+	}
+	/**
+	 * @return how the crawl and content column families are split into time buckets, see {@link ColumnFamilyRotator}
+	 */
+	public ColumnFamilyRotation getColumnFamilyRotation() {
+		return columnFamilyRotation;
+	}
+	public void setColumnFamilyRotation(ColumnFamilyRotation columnFamilyRotation) {
+		this.columnFamilyRotation = columnFamilyRotation;
+	}
+	/**
+	 * @return the column family listing the bucketed column families, created if it's missing
+	 */
+	public String getRotationManifestColumnFamily() {
+		return rotationManifestColumnFamily;
+	}
+	public void setRotationManifestColumnFamily(String rotationManifestColumnFamily) {
+		this.rotationManifestColumnFamily = rotationManifestColumnFamily;
+	}
 	public String getCrawlColumnFamily() {
 		return crawlColumnFamily;
 	}
@@ -131,6 +619,7 @@ public class CassandraParameters {
 	}
 	public void setEncodingScheme(String encodingScheme) {
 		this.encodingScheme = encodingScheme;
+		columnNamesVersion++;
 	}
 	public boolean isFramedTransport() {
 		return framedTransport;
@@ -144,6 +633,17 @@ public class CassandraParameters {
 	public void setRemoveMissingPages(boolean removeMissingPages) {
 		this.removeMissingPages = removeMissingPages;
 	}
+	/**
+	 * @return whether missing pages are only removed when the existence filter
+	 * can't tell they were never written
+	 * @see RowExistenceCache#mightExist(java.nio.ByteBuffer)
+	 */
+	public boolean isRemoveOnlyWrittenPages() {
+		return removeOnlyWrittenPages;
+	}
+	public void setRemoveOnlyWrittenPages(boolean removeOnlyWrittenPages) {
+		this.removeOnlyWrittenPages = removeOnlyWrittenPages;
+	}
 	public String getContentPrefix() {
 		return contentPrefix;
 	}
@@ -161,12 +661,44 @@ public class CassandraParameters {
     }
     public void setHeadersColumnName(String headersColumnName) {
         this.headersColumnName = headersColumnName;
+        columnNamesVersion++;
     }
+	/**
+	 * @return whether each field of the separated headers is also stored in a
+	 * column of its own, named after the lowercased field name
+	 */
+	public boolean isHeaderColumns() {
+		return headerColumns;
+	}
+	public void setHeaderColumns(boolean headerColumns) {
+		this.headerColumns = headerColumns;
+	}
+	public String getHeaderColumnPrefix() {
+		return headerColumnPrefix;
+	}
+	public void setHeaderColumnPrefix(String headerColumnPrefix) {
+		this.headerColumnPrefix = headerColumnPrefix;
+		columnNamesVersion++;
+	}
 	public String getContentColumnName() {
 		return contentColumnName;
 	}
 	public void setContentColumnName(String contentColumnName) {
 		this.contentColumnName = contentColumnName;
+		columnNamesVersion++;
+	}
+	public String getManifestColumnName() {
+		return manifestColumnName;
+	}
+	public void setManifestColumnName(String manifestColumnName) {
+		this.manifestColumnName = manifestColumnName;
+		columnNamesVersion++;
+	}
+	public String getChunkColumnName() {
+		return chunkColumnName;
+	}
+	public void setChunkColumnName(String chunkColumnName) {
+		this.chunkColumnName = chunkColumnName;
 	}
 	public String getCuriPrefix() {
 		return curiPrefix;
@@ -179,42 +711,70 @@ public class CassandraParameters {
 	}
 	public void setIpColumnName(String ipColumnName) {
 		this.ipColumnName = ipColumnName;
+		columnNamesVersion++;
 	}
 	public String getPathFromSeedColumnName() {
 		return pathFromSeedColumnName;
 	}
 	public void setPathFromSeedColumnName(String pathFromSeedColumnName) {
 		this.pathFromSeedColumnName = pathFromSeedColumnName;
+		columnNamesVersion++;
 	}
 	public String getIsSeedColumnName() {
 		return isSeedColumnName;
 	}
 	public void setIsSeedColumnName(String isSeedColumnName) {
 		this.isSeedColumnName = isSeedColumnName;
+		columnNamesVersion++;
 	}
 	public String getViaColumnName() {
 		return viaColumnName;
 	}
 	public void setViaColumnName(String viaColumnName) {
 		this.viaColumnName = viaColumnName;
+		columnNamesVersion++;
 	}
 	public String getUrlColumnName() {
 		return urlColumnName;
 	}
 	public void setUrlColumnName(String urlColumnName) {
 		this.urlColumnName = urlColumnName;
+		columnNamesVersion++;
 	}
 	public String getRequestColumnName() {
 		return requestColumnName;
 	}
 	public void setRequestColumnName(String requestColumnName) {
 		this.requestColumnName = requestColumnName;
+		columnNamesVersion++;
 	}
 	public String getProcessedAtColumnName() {
 		return processedAtColumnName;
 	}
 	public void setProcessedAtColumnName(String processedAtColumnName) {
 		this.processedAtColumnName = processedAtColumnName;
+		columnNamesVersion++;
+	}
+	public String getDigestColumnName() {
+		return digestColumnName;
+	}
+	public void setDigestColumnName(String digestColumnName) {
+		this.digestColumnName = digestColumnName;
+		columnNamesVersion++;
+	}
+	/**
+	 * @return the column names, encoded with the encoding scheme. They are encoded
+	 * again only after a column name or the encoding scheme changed.
+	 * @throws UnsupportedEncodingException
+	 */
+	public ColumnNames getColumnNames() throws UnsupportedEncodingException {
+		ColumnNames names = columnNames;
+		int version = columnNamesVersion;
+		if (names == null || names.getVersion() != version) {
+			names = new ColumnNames(this, version);
+			columnNames = names;
+		}
+		return names;
 	}
 	public Serializer getSerializer() {
 		return serializer;
@@ -222,4 +782,10 @@ public class CassandraParameters {
 	public void setSerializer(Serializer serializer) {
 		this.serializer = serializer;
 	}
+	public StreamingSerializer getStreamingSerializer() {
+		return streamingSerializer;
+	}
+	public void setStreamingSerializer(StreamingSerializer streamingSerializer) {
+		this.streamingSerializer = streamingSerializer;
+	}
 }
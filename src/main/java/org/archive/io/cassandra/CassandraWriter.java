@@ -1,25 +1,24 @@
 package org.archive.io.cassandra;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.ColumnOrSuperColumn;
-import org.apache.cassandra.thrift.ColumnPath;
-import org.apache.cassandra.thrift.ConsistencyLevel;
-import org.apache.cassandra.thrift.InvalidRequestException;
 import org.apache.cassandra.thrift.Mutation;
 import org.apache.log4j.Logger;
-import org.apache.thrift.TException;
-import org.apache.thrift.transport.TTransportException;
 import org.archive.io.RecordingInputStream;
 import org.archive.io.RecordingOutputStream;
 import org.archive.io.ReplayInputStream;
@@ -38,7 +37,15 @@ public class CassandraWriter extends WriterPoolMember implements Serializer {
 	private final Logger LOG = Logger.getLogger(this.getClass().getName());
 
 	private CassandraParameters _cassandraParameters;
-	private Connection _connection;
+	private ConnectionPool _connectionPool;
+	private WriteBehindQueue _writeBehindQueue;
+	private ByteBufferPool _bufferPool;
+	private CassandraWriterPool _writerPool;
+
+	// Scratch lists reused between writes, a writer being used by a single thread at a time
+	private final List<Column> _columns = new ArrayList<Column>();
+	private final List<RowMutation> _rows = new ArrayList<RowMutation>(2);
+	private long _bytesWritten = 0;
 
 	/**
 	 * @see org.archive.io.cassandra.CassandraParameters
@@ -47,17 +54,49 @@ public class CassandraWriter extends WriterPoolMember implements Serializer {
 		return _cassandraParameters;
 	}
 
-	public Connection getConnection() {
-		return _connection;
+	public ConnectionPool getConnectionPool() {
+		return _connectionPool;
+	}
+
+	/**
+	 * @return the number of bytes of the records written by this writer, as serialized
+	 * in all their rows: crawl, content and chunk rows. Writers have no file, their
+	 * position stays at 0
+	 */
+	public long getBytesWritten() {
+		return _bytesWritten;
+	}
+
+	/**
+	 * When set, {@link #write} only queues up its row and leaves it to the
+	 * queue's flusher threads to submit it to Cassandra.
+	 */
+	public void setWriteBehindQueue(WriteBehindQueue writeBehindQueue) {
+		this._writeBehindQueue = writeBehindQueue;
 	}
 
 	public CassandraWriter(final AtomicInteger serial, final WriterPoolSettings settings,
-	        Connection connection, CassandraParameters parameters)
-	throws IOException, TTransportException {
+	        ConnectionPool connectionPool, CassandraParameters parameters)
+	throws IOException {
 	    super(serial, settings, "");
 
 		this._cassandraParameters = parameters;
-		this._connection = connection;
+		this._connectionPool = connectionPool;
+		this._bufferPool = new ByteBufferPool(0);
+	}
+
+	/**
+	 * Pool of buffers the responses are read into, shared by all the writers of a pool.
+	 */
+	public void setBufferPool(ByteBufferPool bufferPool) {
+		this._bufferPool = bufferPool;
+	}
+
+	/**
+	 * The pool this writer belongs to, providing the token ring rows are routed with.
+	 */
+	public void setWriterPool(CassandraWriterPool writerPool) {
+		this._writerPool = writerPool;
 	}
 
 	/**
@@ -68,217 +107,671 @@ public class CassandraWriter extends WriterPoolMember implements Serializer {
 	 * @param ip IP of remote machine.
 	 * @param recordingOutputStream recording input stream that captured the response
 	 * @param recordingInputStream recording output stream that captured the GET request
+	 * @return the pending write of the record when queued or written asynchronously, or null
 	 *
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 * @throws InterruptedException
 	 */
-	public void write(final CrawlURI curi, final String ip, final RecordingOutputStream recordingOutputStream,
+	public WriteFuture write(final CrawlURI curi, final String ip, final RecordingOutputStream recordingOutputStream,
 			final RecordingInputStream recordingInputStream) throws IOException, InterruptedException {
 
 	    // Generate the target url of the crawled document
 		String url = curi.toString();
 
 		// Create the key (reverse url)
-		String key = UrlKey.createKey(url);
+		ByteBuffer rowKey = UrlKey.createRowKey(url, getCassandraParameters());
 
 		// The encoding scheme
 		String encoding = getCassandraParameters().getEncodingScheme();
+		ColumnNames names = getCassandraParameters().getColumnNames();
 
 		if (getCassandraParameters().isRemoveMissingPages() &&
 				(curi.getFetchStatus() == HttpURLConnection.HTTP_NOT_FOUND || curi.getFetchStatus() == HttpURLConnection.HTTP_GONE)) {
-			if (LOG.isDebugEnabled())
-				LOG.debug("Removing key " + key);
-
-			ColumnPath path = new ColumnPath(getCassandraParameters().getCrawlColumnFamily());
-			try {
-				this._connection.getClient().remove(ByteBuffer.wrap(key.getBytes(encoding)), path,
-						currentMicroseconds(), ConsistencyLevel.QUORUM);
-			} catch (Exception e) {
-				// An exception should usually mean that the key didn't exist in the first place.
-				// It's quicker to just try the delete rather than check first.
-				LOG.debug("Exception occurred while removing '" + key + "'\n" + e.getMessage());
+			RowExistenceCache existenceCache = _writerPool.getExistenceCache();
+			if (getCassandraParameters().isRemoveOnlyWrittenPages() && existenceCache != null &&
+					!existenceCache.mightExist(rowKey)) {
+				// No point in a tombstone for a row that was never written
+				if (LOG.isDebugEnabled())
+					LOG.debug("Not removing key " + UrlKey.createKey(url) + ", which was never written");
+				return null;
 			}
+
+			if (LOG.isDebugEnabled())
+				LOG.debug("Removing key " + UrlKey.createKey(url));
+
+			// Batched along with the writes, or sent right away without a write-behind queue.
+			// With rotated column families, only the current bucket's row is removed: older
+			// buckets keep theirs until they're dropped
+			RowMutation row = new RowMutation(rowKey);
+			row.deleteRow(_writerPool.getCrawlColumnFamily(0),
+					_writerPool.getTimestampClock().currentTimestamp());
+			return emit(Collections.singletonList(row));
 		} else {
 			if (LOG.isDebugEnabled())
-				LOG.debug("Writing " + url + " as " + key);
+				LOG.debug("Writing " + url + " as " + UrlKey.createKey(url));
 
-			// The timestamp is the curi fetch time in microseconds
-			long timestamp = curi.getFetchBeginTime()*1000;
+			// The timestamp is the curi fetch time or the current time, in microseconds
+			long timestamp = _writerPool.getTimestampClock().timestamp(curi.getFetchBeginTime());
+			// Chunks are emitted on their own before the rest of the record
+			long bytesBefore = _bytesWritten;
 
 			// Stores all the columns
-			List<Column> columnList = new ArrayList<Column>();
+			List<Column> columnList = _columns;
+			columnList.clear();
+			RowMutation row = new RowMutation(rowKey);
+			List<RowMutation> rows = _rows;
+			rows.clear();
+			String columnFamily = _writerPool.getCrawlColumnFamily(curi.getFetchBeginTime());
+			boolean written = false;
+			try {
+				// write the target url to the url column
+				columnList.add(
+						new Column(names.getUrl(),
+								serialize(row, ColumnType.URL, url.getBytes(encoding)), timestamp));
+
+				// write the target ip to the ip column
+				columnList.add(new Column(names.getIp(),
+						serialize(row, ColumnType.IP, ip.getBytes(encoding)), timestamp));
+
+				// is the url part of the seed url (the initial url(s) used to start the crawl)
+				if (curi.isSeed()) {
+					columnList.add(
+							new Column(names.getIsSeed(),
+									serialize(row, ColumnType.IS_SEED, new byte[]{(byte)-1}), timestamp));
+				}
 
-			// write the target url to the url column
-			columnList.add(
-					new Column(ByteBuffer.wrap(getCassandraParameters().getUrlColumnName().getBytes(encoding)),
-							ByteBuffer.wrap(serialize(url.getBytes(encoding))), timestamp));
+				if (curi.getPathFromSeed() != null && curi.getPathFromSeed().trim().length() > 0) {
+					columnList.add(
+							new Column(names.getPathFromSeed(),
+									serialize(row, ColumnType.PATH_FROM_SEED, curi.getPathFromSeed().trim().getBytes(encoding)), timestamp));
+				}
 
-			// write the target ip to the ip column
-			columnList.add(new Column(ByteBuffer.wrap(getCassandraParameters().getIpColumnName().getBytes(encoding)),
-					ByteBuffer.wrap(serialize(ip.getBytes(encoding))), timestamp));
+				// write the Via string
+				String viaStr = (curi.getVia() != null) ? curi.getVia().toString().trim() : null;
+				if (viaStr != null && viaStr.length() > 0) {
+					columnList.add(
+							new Column(names.getVia(),
+									serialize(row, ColumnType.VIA, viaStr.getBytes(encoding)), timestamp));
+				}
 
-			// is the url part of the seed url (the initial url(s) used to start the crawl)
-			if (curi.isSeed()) {
-				columnList.add(
-						new Column(ByteBuffer.wrap(getCassandraParameters().getIsSeedColumnName().getBytes(encoding)),
-								ByteBuffer.wrap(serialize(new byte[]{(byte)-1})), timestamp));
-			}
+				String fetchTime = ArchiveUtils.get14DigitDate(curi.getFetchBeginTime());
+				if (fetchTime != null && !fetchTime.isEmpty()) {
+					columnList.add(
+							new Column(names.getProcessedAt(),
+									serialize(row, ColumnType.PROCESSED_AT, fetchTime.getBytes(encoding)), timestamp));
+				}
 
-			if (curi.getPathFromSeed() != null && curi.getPathFromSeed().trim().length() > 0) {
-				columnList.add(
-						new Column(ByteBuffer.wrap(getCassandraParameters().getPathFromSeedColumnName().getBytes(encoding)),
-								ByteBuffer.wrap(serialize(curi.getPathFromSeed().trim().getBytes(encoding))), timestamp));
-			}
+				// Write the Crawl Request to the Put object
+				if (recordingOutputStream.getSize() > 0) {
+					ByteBuffer crawlRequest = readSerialized(row, ColumnType.REQUEST, recordingOutputStream.getReplayInputStream(),
+							recordingOutputStream.getSize(), curi);
 
-			// write the Via string
-			String viaStr = (curi.getVia() != null) ? curi.getVia().toString().trim() : null;
-			if (viaStr != null && viaStr.length() > 0) {
-				columnList.add(
-						new Column(ByteBuffer.wrap(getCassandraParameters().getViaColumnName().getBytes(encoding)),
-								ByteBuffer.wrap(serialize(viaStr.getBytes(encoding))), timestamp));
-			}
+					columnList.add(
+							new Column(names.getRequest(),
+									crawlRequest, timestamp));
+				}
 
-			String fetchTime = ArchiveUtils.get14DigitDate(curi.getFetchBeginTime());
-			if (fetchTime != null && !fetchTime.isEmpty()) {
-				columnList.add(
-						new Column(ByteBuffer.wrap(getCassandraParameters().getProcessedAtColumnName().getBytes(encoding)),
-								ByteBuffer.wrap(serialize(fetchTime.getBytes(encoding))), timestamp));
+				// When deduplicating, identical payloads are stored once in the content column family,
+				// keyed by their digest, and the crawl row only references them
+				String digest = getDeduplicationDigest(curi);
+				ByteBuffer digestKey = null;
+				String contentFamily = columnFamily;
+				boolean storeContent = true;
+				if (digest != null) {
+					contentFamily = _writerPool.getContentColumnFamily(curi.getFetchBeginTime());
+					digestKey = ByteBuffer.wrap(digest.getBytes(encoding));
+					columnList.add(
+							new Column(names.getDigest(),
+									digestKey.duplicate(), timestamp));
+					storeContent = isNewContent(digest, digestKey, contentFamily);
+				}
+
+				// The digest is the payload's, the headers of each response stay in its crawl row
+				boolean splitHeaders = getCassandraParameters().isSeparateHeaders() || digest != null;
+				int maxSize = getCassandraParameters().getMaximumContentSize();
+				boolean chunked = storeContent && isChunked(recordingInputStream.getSize());
+				if (storeContent && !chunked && maxSize > 0 && !splitHeaders
+						&& recordingInputStream.getSize() > maxSize) {
+					if (LOG.isDebugEnabled())
+						LOG.debug("Skipping write of '" + url + "' because it exceeded the defined max size of " + maxSize);
+					return null;
+				}
+
+				if (storeContent || splitHeaders) {
+					// Write the Crawl Response to the Put object. Large bodies that don't need to be
+					// looked at as a whole are left unread here, and streamed into chunks
+					ByteBuffer crawlResponse = null;
+					InputStream unreadBody = null;
+					boolean serialized = false;
+
+					// If it's configured or deduplicating, separate the HTTP response headers and store them in another column
+					if (splitHeaders && (!storeContent || (chunked && !getCassandraParameters().isTranscodeContent()))) {
+						// Only the headers are read, a chunked body is streamed past them
+						ReplayInputStream replayInputStream = recordingInputStream.getReplayInputStream();
+						long headerSize = replayInputStream.getHeaderSize();
+						ByteBuffer headers = headerSize > 0 ? readHeaders(row, replayInputStream, headerSize) : null;
+						if (headers != null && headers.remaining() == headerSize) {
+							addHeaders(row, columnList, headers, timestamp);
+							unreadBody = replayInputStream;
+						} else if (headers == null) {
+							// No marked body start, it's all body
+							unreadBody = replayInputStream;
+						} else {
+							// The response ended before the marked body start, it was all read
+							closeStream(replayInputStream);
+							unreadBody = new ByteArrayInputStream(headers.array(),
+									headers.arrayOffset() + headers.position(), headers.remaining());
+						}
+						if (!storeContent) {
+							closeStream(unreadBody);
+							unreadBody = null;
+						}
+					} else if (splitHeaders) {
+						ReplayInputStream replayInputStream = recordingInputStream.getReplayInputStream();
+						// Where the fetcher marked the start of the body, if it did
+						long headerSize = replayInputStream.getHeaderSize();
+						crawlResponse = readRaw(row, replayInputStream, recordingInputStream.getSize());
+
+						if (headerSize > 0 && headerSize <= crawlResponse.remaining()) {
+							ByteBuffer headers = crawlResponse.duplicate();
+							headers.limit(headers.position() + (int) headerSize);
+							addHeaders(row, columnList, headers, timestamp);
+							crawlResponse.position(crawlResponse.position() + (int) headerSize);
+						}
+						if (storeContent && getCassandraParameters().isTranscodeContent())
+							crawlResponse = transcode(crawlResponse, curi);
+					} else if (!chunked) {
+						// Serialized while it's read
+						crawlResponse = readSerialized(row, ColumnType.CONTENT, recordingInputStream.getReplayInputStream(),
+								recordingInputStream.getSize(), curi);
+						serialized = true;
+					} else if (getCassandraParameters().isTranscodeContent()) {
+						crawlResponse = readFully(row, recordingInputStream.getReplayInputStream(),
+								recordingInputStream.getSize(), curi);
+					}
+
+					if (storeContent) {
+						// When deduplicating, the payload goes to its own row, sharing the buffers it was read into
+						RowMutation contentRow = row;
+						ByteBuffer contentKey = row.getKey();
+						if (digestKey != null) {
+							contentRow = new RowMutation(digestKey);
+							contentRow.share(row);
+							contentKey = digestKey;
+						}
+
+						Column content;
+						if (crawlResponse == null || isChunked(crawlResponse.remaining())) {
+							InputStream body;
+							if (crawlResponse != null)
+								body = new ByteArrayInputStream(crawlResponse.array(),
+										crawlResponse.arrayOffset() + crawlResponse.position(), crawlResponse.remaining());
+							else if (unreadBody != null)
+								body = unreadBody;
+							else
+								body = recordingInputStream.getReplayInputStream();
+							content = writeChunks(contentKey, contentFamily, body, timestamp);
+						} else {
+							if (maxSize > 0 && crawlResponse.remaining() > maxSize) {
+								if (digestKey != null)
+									contentRow.release();
+								if (LOG.isDebugEnabled())
+									LOG.debug("Skipping write of '" + url + "' because it exceeded the defined max size of " + maxSize);
+								return null;
+							}
+
+							if (!serialized)
+								crawlResponse = serialize(row, ColumnType.CONTENT, crawlResponse);
+							content = new Column(names.getContent(),
+									crawlResponse, timestamp);
+							compress(contentRow, content);
+						}
+
+						if (digestKey != null) {
+							contentRow.addColumn(contentFamily, content);
+							rows.add(contentRow);
+						} else {
+							// add the raw content to the table record
+							columnList.add(content);
+						}
+					}
+				}
+
+				// Wrapping everything up and writing to Cassandra
+				for (Column column : columnList) {
+					row.addColumn(columnFamily, column);
+				}
+				rows.add(row);
+
+				WriteFuture pending = emit(rows);
+				written = true;
+				_writerPool.getMetrics().recordWritten(_bytesWritten - bytesBefore);
+
+				if (digest != null && storeContent) {
+					// Duplicates may only reference the payload once it's stored
+					if (pending == null) {
+						addDigest(digest);
+					} else {
+						final String writtenDigest = digest;
+						pending.addCallback(new WriteFuture.Callback() {
+							public void onComplete(WriteFuture future) {
+								if (future.isSuccess())
+									addDigest(writtenDigest);
+							}
+						});
+					}
+				}
+
+				RowExistenceCache existenceCache = _writerPool.getExistenceCache();
+				if (existenceCache != null)
+					existenceCache.add(row.getKey());
+				return pending;
+			} finally {
+				// Rows handed over to the write-behind queue or written asynchronously are released once written
+				if (!written || !isWriteDeferred()) {
+					row.release();
+					for (RowMutation other : rows) {
+						if (other != row)
+							other.release();
+					}
+				}
 			}
+		}
+	}
 
-			// Write the Crawl Request to the Put object
-			if (recordingOutputStream.getSize() > 0) {
-			    String crawlRequest = getEncodedStringFromInputStream(recordingOutputStream.getReplayInputStream(),
-                        (int) recordingInputStream.getSize(), curi);
+	/**
+	 * @param size the size of a response body
+	 * @return whether a body of this size is stored in chunks
+	 */
+	protected boolean isChunked(long size) {
+		return getCassandraParameters().isChunkedContent() && size > getCassandraParameters().getChunkSize();
+	}
 
-				columnList.add(
-						new Column(ByteBuffer.wrap(getCassandraParameters().getRequestColumnName().getBytes(encoding)),
-								ByteBuffer.wrap(serialize(crawlRequest.getBytes(encoding))), timestamp));
+	/**
+	 * Write a response body as a series of chunk columns of at most
+	 * {@link CassandraParameters#getChunkSize()} bytes, each sent in its own mutation
+	 * as soon as it is read, so that a large body never sits in memory as a whole.
+	 * Returns once every chunk is written, queued and asynchronous ones included.
+	 *
+	 * @param key the row key
+	 * @param columnFamily the column family
+	 * @param body the body, closed once read
+	 * @param timestamp timestamp of the columns
+	 * @return the manifest column, describing the chunks to readers, which the caller
+	 * must write once the chunks are
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected Column writeChunks(final ByteBuffer key, final String columnFamily, final InputStream body,
+			final long timestamp) throws IOException, InterruptedException {
+
+		String encoding = getCassandraParameters().getEncodingScheme();
+		int chunkSize = getCassandraParameters().getChunkSize();
+		long length = 0;
+		int chunks = 0;
+		List<WriteFuture> pendingChunks = new ArrayList<WriteFuture>();
+		try {
+			int read = chunkSize;
+			while (read == chunkSize) {
+				RowMutation chunkRow = new RowMutation(key);
+				boolean emitted = false;
+				try {
+					ByteBuffer chunk = _bufferPool.acquire(chunkSize);
+					chunkRow.retain(_bufferPool, chunk);
+					read = readChunk(body, chunk);
+					if (read == 0)
+						break;
+
+					Column column = new Column(ByteBuffer.wrap(getChunkColumnName(chunks).getBytes(encoding)),
+							serialize(chunkRow, ColumnType.CONTENT, chunk), timestamp);
+					compress(chunkRow, column);
+					chunkRow.addColumn(columnFamily, column);
+
+					WriteFuture pending = emit(Collections.singletonList(chunkRow));
+					emitted = true;
+					if (pending != null)
+						pendingChunks.add(pending);
+					length += read;
+					chunks++;
+				} finally {
+					if (!emitted || !isWriteDeferred())
+						chunkRow.release();
+				}
 			}
+		} finally {
+			body.close();
+		}
 
-			// Write the Crawl Response to the Put object
-			ReplayInputStream replayInputStream = recordingInputStream.getReplayInputStream();
+		// Readers only find the chunks through the manifest, which mustn't be written before them:
+		// wait for the chunks still on the write-behind queue or in flight
+		for (WriteFuture pending : pendingChunks) {
 			try {
-			    // Read in the response fully into a byte array
-			    String crawlResponse = getEncodedStringFromInputStream(replayInputStream, (int) recordingInputStream.getSize(), curi);
-
-                // reset the input steam for the content processor
-                replayInputStream = recordingInputStream.getReplayInputStream();
-                replayInputStream.setToResponseBodyStart();
-
-			    // If it's configured, try to separate the HTTP response headers and store them in another column
-			    if (getCassandraParameters().isSeparateHeaders()) {
-			        int contentIndex = getContentIndex(crawlResponse);
-			        if (contentIndex != -1) {
-			            String headers = crawlResponse.substring(0, contentIndex);
-
-			            columnList.add(
-		                        new Column(ByteBuffer.wrap(getCassandraParameters().getHeadersColumnName().getBytes(encoding)),
-		                                ByteBuffer.wrap(serialize(headers.getBytes(encoding))), timestamp));
-
-			            crawlResponse = crawlResponse.substring(contentIndex);
-			        }
-			    }
-
-			    int maxSize = getCassandraParameters().getMaximumContentSize();
-			    if (maxSize > 0 && crawlResponse.length() > maxSize) {
-			        if (LOG.isDebugEnabled())
-			            LOG.debug("Skipping write of '" + url + "' because it exceeded the defined max size of " + maxSize);
-			        return;
-			    }
-
-				// add the raw content to the table record
-				columnList.add(
-						new Column(ByteBuffer.wrap(getCassandraParameters().getContentColumnName().getBytes(encoding)),
-								ByteBuffer.wrap(serialize(crawlResponse.getBytes(encoding))), timestamp));
-			} finally {
-				closeStream(replayInputStream);
+				pending.get();
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to write a chunk: " + e.getCause().getMessage(), e.getCause());
 			}
+		}
 
+		ColumnNames names = getCassandraParameters().getColumnNames();
+		String manifest = "{\"length\":" + length + ",\"chunks\":" + chunks + ",\"chunkSize\":" + chunkSize + "}";
+		return new Column(names.getManifest(),
+				ByteBuffer.wrap(manifest.getBytes(encoding)), timestamp);
+	}
 
-			// Wrapping everything up and writing to Cassandra
+	/**
+	 * @return the name of the chunk column with the given index, zero-padded so that chunks sort in order
+	 */
+	protected String getChunkColumnName(int index) {
+		return getCassandraParameters().getChunkColumnName() + ":" + String.format("%06d", index);
+	}
 
-			// Creating the list of 'mutation' objects for Cassandra
-			List<Mutation> mutations = generateMutations(columnList);
+	/**
+	 * Read from the stream until the buffer is full or the stream is exhausted.
+	 *
+	 * @return the number of bytes read, the buffer's limit being set accordingly
+	 */
+	private static int readChunk(InputStream in, ByteBuffer buffer) throws IOException {
+		byte[] array = buffer.array();
+		int offset = buffer.arrayOffset() + buffer.position();
+		int capacity = buffer.remaining();
+		int length = 0;
+		int read;
+		while (length < capacity && (read = in.read(array, offset + length, capacity - length)) != -1) {
+			length += read;
+		}
+		buffer.limit(buffer.position() + length);
+		return length;
+	}
 
-			Map<String, List<Mutation>> mutationsForColumnFamily = new HashMap<String, List<Mutation>>();
-			mutationsForColumnFamily.put(getCassandraParameters().getCrawlColumnFamily(), mutations);
+	/**
+	 * Get the digest identifying the payload of a URI when deduplicating content.
+	 *
+	 * @return the content digest with its scheme, or null if content isn't deduplicated or
+	 * the URI has no digest
+	 */
+	protected String getDeduplicationDigest(CrawlURI curi) {
+		if (!getCassandraParameters().isDeduplicateContent() || curi.getContentDigest() == null)
+			return null;
+		return curi.getContentDigestSchemeString();
+	}
 
-			Map<ByteBuffer, Map<String, List<Mutation>>> job = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
-			job.put(ByteBuffer.wrap(key.getBytes(encoding)), mutationsForColumnFamily);
+	/**
+	 * Whether the payload with the given digest still needs to be written to the
+	 * given content column family. Recently written digests are answered from the
+	 * pool's {@link DigestCache}, others are looked up in Cassandra.
+	 */
+	protected boolean isNewContent(String digest, ByteBuffer digestKey, String contentFamily) throws IOException {
+		if (_writerPool.getDigestCache().contains(digest))
+			return false;
 
-			// Submitting the writes to the Cassandra client
-			while (true) {
-				try {
-					this._connection.getClient().batch_mutate(job, ConsistencyLevel.ONE);
-					break;
-				} catch (Exception e) {
-					IOException ex = new IOException("The following exception was encountered while " +
-							"writing key '" + key + "':\n" + e.getMessage(), e);
-					LOG.error(ex.getMessage());
-					this._connection.close();
-					try {
-						this._connection.connect();
-					} catch (TTransportException e1) {
-						LOG.error(e1.getMessage());
-					} catch (InvalidRequestException e1) {
-						LOG.error(e1.getMessage());
-					} catch (TException e1) {
-						LOG.error(e1.getMessage());
-					}
-					Thread.sleep(5000);
-				}
-			}
+		try {
+			// Chunked payloads only have a manifest column
+			ColumnNames names = getCassandraParameters().getColumnNames();
+			boolean exists = _writerPool.getStorageBackend().exists(digestKey, contentFamily,
+					Arrays.asList(names.getContent(), names.getManifest()));
+
+			if (exists)
+				_writerPool.getDigestCache().add(digest);
+			return !exists;
+		} catch (Exception e) {
+			// Writing the payload again is harmless
+			LOG.debug("Unable to check whether content " + digest + " exists: " + e.getMessage());
+			return true;
 		}
 	}
 
-	private List<Mutation> generateMutations(List<Column> columns) {
-		List<Mutation> mutations = new ArrayList<Mutation>();
+	/**
+	 * Remember that the payload with the given digest was written, unless it may only
+	 * have been spilled: a spill leaves the journal spilling until it's replayed.
+	 */
+	protected void addDigest(String digest) {
+		SpillJournal journal = _writerPool.getSpillJournal();
+		if (journal == null || !journal.isSpilling())
+			_writerPool.getDigestCache().add(digest);
+	}
 
-		for (Column column : columns) {
-			ColumnOrSuperColumn c = new ColumnOrSuperColumn();
-			c.setColumn(column);
+	/**
+	 * Hand rows over to the write-behind queue if there is one, or submit them right away,
+	 * without waiting for them to be written when writes are asynchronous.
+	 *
+	 * Once handed over, rows are released when written, see {@link #isWriteDeferred()}.
+	 *
+	 * @param rows the rows to write
+	 * @return the pending write of the rows when queued or written asynchronously, or null
+	 * @throws InterruptedException
+	 */
+	protected WriteFuture emit(List<RowMutation> rows) throws IOException, InterruptedException {
+		// Measured before the write-behind queue may release the rows
+		for (RowMutation row : rows) {
+			_bytesWritten += row.getSize();
+		}
+
+		if (_writeBehindQueue != null) {
+			List<WriteFuture> queued = new ArrayList<WriteFuture>(rows.size());
+			for (RowMutation row : rows) {
+				// Taken before the row is queued, a flusher may write it right away
+				queued.add(row.getWriteFuture());
+				_writeBehindQueue.put(row);
+			}
+			return WriteFuture.all(queued);
+		}
 
-			Mutation mutation = new Mutation();
-			mutation.setColumn_or_supercolumn(c);
-			mutations.add(mutation);
+		Map<ByteBuffer, Map<String, List<Mutation>>> job = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+		for (RowMutation row : rows) {
+			row.awaitPending();
+			row.addTo(job);
 		}
 
-		return mutations;
+		StorageBackend backend = _writerPool.getStorageBackend();
+		if (!backend.isAsync()) {
+			backend.writeRecord(job, true);
+			return null;
+		}
+
+		WriteFuture pending = backend.writeRecordAsync(job);
+		final List<RowMutation> written = new ArrayList<RowMutation>(rows);
+		pending.addCallback(new WriteFuture.Callback() {
+			public void onComplete(WriteFuture future) {
+				for (RowMutation row : written) {
+					row.release();
+				}
+			}
+		});
+		return pending;
+	}
+
+	/**
+	 * @return whether rows handed over to {@link #emit(List)} are written after it returns,
+	 * and released then
+	 */
+	protected boolean isWriteDeferred() {
+		return _writeBehindQueue != null || _writerPool.getStorageBackend().isAsync();
+	}
+
+	/**
+	 * Compress the value of a column with the configured codec, if any.
+	 *
+	 * @param row the row the column belongs to
+	 * @param column the column
+	 */
+	protected void compress(RowMutation row, Column column) {
+		ValueCompressor compressor = _writerPool.getValueCompressor();
+		if (compressor != null)
+			compressor.compress(row, column, _bufferPool);
+	}
+
+	/**
+	 * Submit a single row to Cassandra.
+	 *
+	 * @param row the row to write
+	 * @throws IOException if the row couldn't be written within the retry budget
+	 * @throws InterruptedException
+	 */
+	public void submit(RowMutation row) throws IOException, InterruptedException {
+		Map<ByteBuffer, Map<String, List<Mutation>>> job = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+		row.addTo(job);
+		submit(job);
+	}
+
+	/**
+	 * Submit a batch_mutate job to Cassandra through the pool's {@link StorageBackend}.
+	 *
+	 * When the pool has a {@link SpillJournal}, rows that can't be written
+	 * within the retry budget or have no live endpoint are appended to it
+	 * instead, and so is the whole job while the journal is spilling.
+	 *
+	 * @param job mutations for each row key and column family
+	 * @throws IOException if some rows couldn't be written within the retry budget
+	 * @throws InterruptedException
+	 * @see StorageBackend#writeRecord(Map, boolean)
+	 */
+	public void submit(Map<ByteBuffer, Map<String, List<Mutation>>> job) throws IOException, InterruptedException {
+		submit(job, true);
+	}
+
+	/**
+	 * Submit a batch_mutate job to Cassandra.
+	 *
+	 * @param job mutations for each row key and column family
+	 * @param spill whether rows that can't be written go to the pool's {@link SpillJournal}, if any
+	 * @throws IOException if some rows couldn't be written within the retry budget, nor spilled
+	 * @throws InterruptedException
+	 * @see #submit(Map)
+	 */
+	public void submit(Map<ByteBuffer, Map<String, List<Mutation>>> job, boolean spill)
+			throws IOException, InterruptedException {
+		_writerPool.getStorageBackend().writeRecord(job, spill);
 	}
 
 	@Override
 	public void close() throws IOException {
-		this._connection.close();
 		super.close();
 	}
 
 	/**
-	 * Read the ReplayInputStream and write it to the given BatchUpdate with the given column.
+	 * Read the ReplayInputStream in one pass into a pooled buffer retained by the given row.
+	 *
+	 * The bytes are stored as they were recorded, unless
+	 * {@link CassandraParameters#isTranscodeContent()} is set, in which case they are
+	 * transcoded from the recorder's charset to the configured encoding scheme.
 	 *
+	 * @param row the row that will hold on to the buffer until it is written
 	 * @param replayInputStream the ris the cell data as a replay input stream
 	 * @param streamSize the size
-	 * @param curi The {@link CrawlURI} object associated to the given stream. Used to return the byte array in
-	 * its proper encoding.
-	 * @param encoding Destination encoding
+	 * @param curi The {@link CrawlURI} object associated to the given stream. Used to transcode the bytes
+	 * from their original encoding when configured to.
 	 *
-	 * @return the byte array from input stream
+	 * @return a buffer positioned at the start of the stream's bytes
 	 *
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
-	protected String getEncodedStringFromInputStream(final ReplayInputStream replayInputStream, final int streamSize,
-	        final CrawlURI curi) throws IOException {
+	protected ByteBuffer readFully(final RowMutation row, final ReplayInputStream replayInputStream,
+			final long streamSize, final CrawlURI curi) throws IOException {
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(streamSize);
+		ByteBuffer buffer = readRaw(row, replayInputStream, streamSize);
+		if (getCassandraParameters().isTranscodeContent())
+			return transcode(buffer, curi);
+		return buffer;
+	}
+
+	/**
+	 * Read the ReplayInputStream into a pooled buffer, as recorded.
+	 *
+	 * @param row the row that will hold on to the buffer until it is written
+	 * @param replayInputStream the stream
+	 * @param streamSize its recorded size
+	 * @return a buffer positioned at the start of the stream's bytes
+	 * @throws IOException
+	 */
+	protected ByteBuffer readRaw(final RowMutation row, final ReplayInputStream replayInputStream,
+			final long streamSize) throws IOException {
+		ByteBuffer buffer = _bufferPool.acquire((int) streamSize);
+		row.retain(_bufferPool, buffer);
 		try {
-			replayInputStream.readFullyTo(baos);
+			byte[] array = buffer.array();
+			int length = 0;
+			int read;
+			while ((read = replayInputStream.read(array, length, buffer.limit() - length)) != -1) {
+				length += read;
+				if (length == buffer.limit()) {
+					// The recorded size was off, keep on reading into a bigger buffer
+					int next = replayInputStream.read();
+					if (next == -1)
+						break;
+
+					ByteBuffer bigger = _bufferPool.acquire(Math.max(length * 2, length + 1));
+					row.retain(_bufferPool, bigger);
+					System.arraycopy(array, 0, bigger.array(), 0, length);
+					bigger.array()[length++] = (byte) next;
+					buffer = bigger;
+					array = buffer.array();
+				}
+			}
+			buffer.position(0);
+			buffer.limit(length);
 		} finally {
 			replayInputStream.close();
 		}
-		baos.close();
+		return buffer;
+	}
+
+	/**
+	 * Read the recorded response headers into a pooled buffer, leaving the stream at the start of the body.
+	 *
+	 * @param row the row that will hold on to the buffer until it is written
+	 * @param replayInputStream the response
+	 * @param headerSize the size of the headers, where the fetcher marked the start of the body
+	 * @return a buffer holding the headers, or fewer bytes if the response ended before the body
+	 * @throws IOException
+	 */
+	protected ByteBuffer readHeaders(final RowMutation row, final ReplayInputStream replayInputStream,
+			final long headerSize) throws IOException {
+		ByteBuffer headers = _bufferPool.acquire((int) headerSize);
+		row.retain(_bufferPool, headers);
+		readChunk(replayInputStream, headers);
+		return headers;
+	}
 
+	/**
+	 * Transcode bytes from the charset detected by the crawler to the configured encoding scheme.
+	 *
+	 * @param buffer the bytes, from the buffer's position to its limit
+	 * @param curi the {@link CrawlURI} the bytes were fetched for
+	 * @return the transcoded bytes
+	 * @throws IOException
+	 */
+	protected ByteBuffer transcode(ByteBuffer buffer, CrawlURI curi) throws IOException {
 		// Using the byte array and encoding information from the HTTP recorder, reconstruct the string in its
-        // native encoding so that we can convert it properly.
-		return new String(baos.toByteArray(), curi.getRecorder().getCharset());
+		// native encoding so that we can convert it properly.
+		String decoded = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+				curi.getRecorder().getCharset());
+		return ByteBuffer.wrap(decoded.getBytes(getCassandraParameters().getEncodingScheme()));
+	}
+
+	/**
+	 * Add the HTTP response headers to the row: as a whole in the headers column and,
+	 * if configured, each field in its own column. The values are slices of the response.
+	 *
+	 * @param row the row
+	 * @param columns the columns of the row
+	 * @param headers the headers, status line included
+	 * @param timestamp timestamp of the columns
+	 * @throws IOException
+	 */
+	protected void addHeaders(RowMutation row, List<Column> columns, ByteBuffer headers, long timestamp)
+			throws IOException {
+		ColumnNames names = getCassandraParameters().getColumnNames();
+		if (getCassandraParameters().isHeaderColumns()) {
+			for (Map.Entry<String, ByteBuffer> field : HttpHeaders.parse(headers).entrySet()) {
+				columns.add(new Column(names.getHeader(field.getKey()),
+						serialize(row, ColumnType.HEADERS, field.getValue()), timestamp));
+			}
+		}
+
+		Column headersColumn = new Column(names.getHeaders(),
+				serialize(row, ColumnType.HEADERS, headers), timestamp);
+		compress(row, headersColumn);
+		columns.add(headersColumn);
 	}
 
 	protected void closeStream(Closeable c) {
@@ -292,6 +785,75 @@ public class CassandraWriter extends WriterPoolMember implements Serializer {
 		}
 	}
 
+	/**
+	 * Read the ReplayInputStream and serialize its bytes as a value of the given column type.
+	 * With a {@link StreamingSerializer} applying to the column type, the bytes are serialized
+	 * as they are read, without a copy of the raw value.
+	 *
+	 * @see #readFully(RowMutation, ReplayInputStream, long, CrawlURI)
+	 */
+	protected ByteBuffer readSerialized(final RowMutation row, final ColumnType type,
+			final ReplayInputStream replayInputStream, final long streamSize, final CrawlURI curi) throws IOException {
+
+		StreamingSerializer serializer = getCassandraParameters().getStreamingSerializer();
+		if (serializer == null || !serializer.appliesTo(type) || getCassandraParameters().isTranscodeContent())
+			return serialize(row, type, readFully(row, replayInputStream, streamSize, curi));
+
+		ByteBufferOutputStream out = new ByteBufferOutputStream(_bufferPool, (int) streamSize);
+		try {
+			OutputStream serialized = serializer.wrap(type, out);
+			replayInputStream.readFullyTo(serialized);
+			serialized.close();
+		} finally {
+			replayInputStream.close();
+		}
+		return retain(row, out);
+	}
+
+	/**
+	 * Serialize a column value of the given type.
+	 *
+	 * @see #serialize(RowMutation, ColumnType, ByteBuffer)
+	 */
+	protected ByteBuffer serialize(RowMutation row, ColumnType type, byte[] bytes) throws IOException {
+		StreamingSerializer serializer = getCassandraParameters().getStreamingSerializer();
+		if (serializer == null)
+			return ByteBuffer.wrap(serialize(bytes));
+
+		return serialize(row, type, ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Serialize a column value of the given type. A configured {@link StreamingSerializer}
+	 * takes precedence over the {@link Serializer}, and values of the column types it doesn't
+	 * apply to are stored as is.
+	 *
+	 * @param row the row that will hold on to the serialized value's buffer until it is written
+	 * @param type the type of the column
+	 * @param value the value, from its position to its limit
+	 * @return the serialized value
+	 * @throws IOException
+	 */
+	protected ByteBuffer serialize(RowMutation row, ColumnType type, ByteBuffer value) throws IOException {
+		StreamingSerializer serializer = getCassandraParameters().getStreamingSerializer();
+		if (serializer == null)
+			return serialize(value);
+		if (!serializer.appliesTo(type))
+			return value;
+
+		ByteBufferOutputStream out = new ByteBufferOutputStream(_bufferPool, value.remaining());
+		OutputStream serialized = serializer.wrap(type, out);
+		serialized.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+		serialized.close();
+		return retain(row, out);
+	}
+
+	private ByteBuffer retain(RowMutation row, ByteBufferOutputStream out) {
+		ByteBuffer buffer = out.getBuffer();
+		row.retain(_bufferPool, buffer);
+		return buffer;
+	}
+
 	public byte[] serialize(byte[] bytes) {
 		if (getCassandraParameters().getSerializer() != null)
 			return getCassandraParameters().getSerializer().serialize(bytes);
@@ -299,6 +861,22 @@ public class CassandraWriter extends WriterPoolMember implements Serializer {
 		return bytes;
 	}
 
+	/**
+	 * Serialize a column value. Without a configured {@link Serializer}, the
+	 * buffer is used as is.
+	 *
+	 * @param buffer the value, from its position to its limit
+	 * @return the serialized value
+	 */
+	public ByteBuffer serialize(ByteBuffer buffer) {
+		if (getCassandraParameters().getSerializer() == null)
+			return buffer;
+
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return ByteBuffer.wrap(getCassandraParameters().getSerializer().serialize(bytes));
+	}
+
 	public static long currentMicroseconds() {
 		return microseconds(System.currentTimeMillis());
 	}
@@ -313,7 +891,10 @@ public class CassandraWriter extends WriterPoolMember implements Serializer {
      *
      * @param content
      * @return the index of the start of the contents if found, or -1 otherwise.
+     * @deprecated the writer splits the headers off where the fetcher marked the start of the
+     * body, see {@link ReplayInputStream#getHeaderSize()}
      */
+    @Deprecated
     public static int getContentIndex(String content) {
         if (content == null) return -1;
         int tag = content.indexOf("<!DOCTYPE");
@@ -323,4 +904,41 @@ public class CassandraWriter extends WriterPoolMember implements Serializer {
 
         return tag;
     }
+
+    /**
+     * Same as {@link #getContentIndex(String)}, over the bytes of a buffer.
+     *
+     * @param content the buffer, from its position to its limit
+     * @return the index of the start of the contents relative to the buffer's position if found, or -1 otherwise.
+     * @deprecated see {@link #getContentIndex(String)}
+     */
+    @Deprecated
+    public static int getContentIndex(ByteBuffer content) {
+        if (content == null) return -1;
+        int tag = indexOf(content, DOCTYPE_UPPER);
+        if (tag == -1) tag = indexOf(content, DOCTYPE_LOWER);
+        if (tag == -1) tag = indexOf(content, HTML_LOWER);
+        if (tag == -1) tag = indexOf(content, HTML_UPPER);
+
+        return tag;
+    }
+
+    private static final byte[] DOCTYPE_UPPER = {'<', '!', 'D', 'O', 'C', 'T', 'Y', 'P', 'E'};
+    private static final byte[] DOCTYPE_LOWER = {'<', '!', 'd', 'o', 'c', 't', 'y', 'p', 'e'};
+    private static final byte[] HTML_LOWER = {'<', 'h', 't', 'm', 'l'};
+    private static final byte[] HTML_UPPER = {'<', 'H', 'T', 'M', 'L'};
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        int start = buffer.position();
+        int last = buffer.limit() - pattern.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j])
+                    continue outer;
+            }
+            return i - start;
+        }
+        return -1;
+    }
 }
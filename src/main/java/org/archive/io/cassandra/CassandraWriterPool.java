@@ -19,18 +19,15 @@
 package org.archive.io.cassandra;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cassandra.thrift.InvalidRequestException;
-import org.apache.cassandra.thrift.TokenRange;
 import org.apache.log4j.Logger;
 import org.apache.thrift.TException;
-import org.apache.thrift.transport.TTransportException;
 import org.archive.io.WriterPool;
 import org.archive.io.WriterPoolMember;
 import org.archive.io.WriterPoolSettings;
@@ -43,8 +40,22 @@ public class CassandraWriterPool extends WriterPool {
 
 	private final Logger LOG = Logger.getLogger(this.getClass().getName());
 
-	private LinkedList<String> _endPoints = null;
+	private volatile TokenRing _tokenRing = null;
 	private CassandraParameters _parameters;
+	private WriteBehindQueue _writeBehindQueue = null;
+	private ByteBufferPool _bufferPool;
+	private ConnectionPool _connectionPool;
+	private final AtomicInteger _roundRobin = new AtomicInteger();
+	private RowExistenceCache _existenceCache = null;
+	private DigestCache _digestCache;
+	private ValueCompressor _valueCompressor = null;
+	private WriteConcurrencyLimiter _concurrencyLimiter = null;
+	private SpillJournal _spillJournal = null;
+	private SpillReplayer _spillReplayer = null;
+	private final WriterMetrics _metrics = new WriterMetrics();
+	private TimestampClock _timestampClock;
+	private StorageBackend _storageBackend;
+	private ColumnFamilyRotator _columnFamilyRotator = null;
 	
 	/**
 	 * Create a pool of CassandraWriter objects.
@@ -59,54 +70,337 @@ public class CassandraWriterPool extends WriterPool {
 			final int poolMaximumActive, final int poolMaximumWait) {
 		super(new AtomicInteger(), settings, poolMaximumActive, poolMaximumWait);
 		_parameters = parameters;
+		_bufferPool = new ByteBufferPool(parameters.getBufferPoolSize());
+		_connectionPool = new ConnectionPool(parameters, _metrics);
+		_digestCache = new DigestCache(parameters.getDigestCacheSize());
+		if (parameters.getCompressionCodec() != ValueCodec.NONE)
+			_valueCompressor = new ValueCompressor(parameters.getCompressionCodec(),
+					parameters.getCompressionLevel(), parameters.getCompressionThreads());
+		if (parameters.isWriteConcurrencyLimiting())
+			_concurrencyLimiter = new WriteConcurrencyLimiter(parameters);
+		_timestampClock = new TimestampClock(parameters.getTimestampSource());
+		try {
+			if (parameters.getStorageBackend() == StorageBackendType.NATIVE)
+				_storageBackend = new NativeBackend(this);
+			else if (parameters.getStorageBackend() == StorageBackendType.SSTABLE)
+				_storageBackend = new SSTableBackend(this);
+			else
+				_storageBackend = new ThriftBackend(this, _connectionPool);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to start the " + parameters.getStorageBackend() +
+					" storage backend: " + e.getMessage(), e);
+		} catch (NoClassDefFoundError e) {
+			// The DataStax driver is an optional dependency
+			throw new IllegalStateException("The " + parameters.getStorageBackend() + " storage backend requires " +
+					"cassandra-driver-core 2.1 and Guava 14 or later on the classpath: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @see org.archive.io.cassandra.CassandraParameters
+	 */
+	public CassandraParameters getCassandraParameters() {
+		return _parameters;
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return _connectionPool;
 	}
 	
-	private LinkedList<String> getEndPoints() throws InterruptedException {
-		if (_endPoints == null) {
-			Set<String> endPoints = new HashSet<String>();
-			for (TokenRange range : getRanges()) {
-				endPoints.addAll(range.getEndpoints());
+	/**
+	 * @return the digests of the payloads known to be in the content column family
+	 */
+	public DigestCache getDigestCache() {
+		return _digestCache;
+	}
+
+	/**
+	 * @return the compressor of the content and headers values, or null if they're stored uncompressed
+	 */
+	public ValueCompressor getValueCompressor() {
+		return _valueCompressor;
+	}
+
+	/**
+	 * @return the limiter of the writes in flight to each endpoint, or null if they aren't limited
+	 */
+	public WriteConcurrencyLimiter getConcurrencyLimiter() {
+		return _concurrencyLimiter;
+	}
+
+	/**
+	 * @return the clock making the timestamps of the columns written
+	 */
+	public TimestampClock getTimestampClock() {
+		return _timestampClock;
+	}
+
+	/**
+	 * @return the backend the writers of this pool write through
+	 */
+	public StorageBackend getStorageBackend() {
+		return _storageBackend;
+	}
+
+	/**
+	 * Have the writers of this pool write through the given backend rather than the
+	 * one chosen by {@link CassandraParameters#getStorageBackend()}, which is closed.
+	 *
+	 * @param storageBackend the backend
+	 */
+	public void setStorageBackend(StorageBackend storageBackend) {
+		StorageBackend previous = _storageBackend;
+		_storageBackend = storageBackend;
+		if (previous != null && previous != storageBackend)
+			previous.close();
+	}
+
+	/**
+	 * @return the metrics of the writes made through this pool
+	 */
+	public WriterMetrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * @return the journal of the writes that couldn't reach Cassandra, or null if they fail instead
+	 */
+	public SpillJournal getSpillJournal() {
+		return _spillJournal;
+	}
+
+	/**
+	 * Have writes that can't reach Cassandra appended to the given journal,
+	 * and replayed in the background.
+	 *
+	 * @param spillJournal the journal
+	 * @param replayBatchRecords maximum number of records replayed in a single batch_mutate call
+	 * @param replayIntervalMs time in milliseconds between two replays while Cassandra can't be written to
+	 */
+	public void setSpillJournal(SpillJournal spillJournal, int replayBatchRecords, long replayIntervalMs) {
+		_spillJournal = spillJournal;
+		_spillReplayer = new SpillReplayer(this, spillJournal, replayBatchRecords, replayIntervalMs);
+	}
+
+	/**
+	 * @return the rotator of the column families, or null if the configured ones are written to
+	 */
+	public ColumnFamilyRotator getColumnFamilyRotator() {
+		return _columnFamilyRotator;
+	}
+
+	/**
+	 * Have the writers of this pool write to the column families of time buckets picked by the given rotator.
+	 *
+	 * @param columnFamilyRotator the rotator, or null to write to the configured column families
+	 */
+	public void setColumnFamilyRotator(ColumnFamilyRotator columnFamilyRotator) {
+		_columnFamilyRotator = columnFamilyRotator;
+	}
+
+	/**
+	 * @param time the fetch time of the record, or 0 for the current time
+	 * @return the column family the record goes to
+	 * @throws IOException if the column family of the time's bucket couldn't be created
+	 */
+	public String getCrawlColumnFamily(long time) throws IOException {
+		String base = _parameters.getCrawlColumnFamily();
+		return _columnFamilyRotator == null ? base : _columnFamilyRotator.getColumnFamily(base, time);
+	}
+
+	/**
+	 * @param time the fetch time of the payload, or 0 for the current time
+	 * @return the column family the deduplicated payload goes to
+	 * @throws IOException if the column family of the time's bucket couldn't be created
+	 */
+	public String getContentColumnFamily(long time) throws IOException {
+		String base = _parameters.getContentColumnFamily();
+		return _columnFamilyRotator == null ? base : _columnFamilyRotator.getColumnFamily(base, time);
+	}
+
+	public RowExistenceCache getExistenceCache() {
+		return _existenceCache;
+	}
+
+	/**
+	 * Keep track of the rows written by this pool's writers in the given cache.
+	 *
+	 * @param existenceCache the cache, or null to not keep track of the rows written
+	 */
+	public void setExistenceCache(RowExistenceCache existenceCache) {
+		_existenceCache = existenceCache;
+	}
+
+	/**
+	 * Get the token ring of the keyspace, fetching it again from the cluster
+	 * if it is older than {@link CassandraParameters#getRingRefreshInterval()}
+	 * or was invalidated.
+	 *
+	 * @return the token ring
+	 * @throws InterruptedException
+	 */
+	public TokenRing getTokenRing() throws InterruptedException {
+		TokenRing ring = _tokenRing;
+		if (ring == null || ring.isExpired(_parameters.getRingRefreshInterval())) {
+			synchronized (this) {
+				if (ring == _tokenRing) {
+					try {
+						_tokenRing = describeRing();
+						_connectionPool.register(_tokenRing.getEndPoints());
+					} catch (RuntimeException e) {
+						// Keep on routing with the previous ring until one of the nodes answers
+						if (ring == null)
+							throw e;
+						LOG.error(e.getMessage());
+						ring.renew();
+					}
+				}
+				ring = _tokenRing;
 			}
-			_endPoints = new LinkedList<String>(endPoints);
 		}
-		return _endPoints;
+		return ring;
+	}
+
+	/**
+	 * Have the token ring fetched again on the next access, typically because a
+	 * write failed and the cluster might have changed.
+	 */
+	public void invalidateTokenRing() {
+		TokenRing ring = _tokenRing;
+		if (ring != null)
+			ring.invalidate();
 	}
 
-	private List<TokenRange> getRanges() throws InterruptedException {
+	private TokenRing describeRing() throws InterruptedException {
 		for (String seed : _parameters.getSeedsArray()) {
+			Connection seedConnection = null;
 			try {
-				Connection seedConnection = new Connection(seed, _parameters.getPort(), _parameters.getKeyspace());
-				return seedConnection.getClient().describe_ring(_parameters.getKeyspace());
+				seedConnection = new Connection(seed, _parameters.getPort(), _parameters.getKeyspace(),
+						_parameters.getSocketTimeout());
+				return TokenRing.describe(seedConnection.getClient(), _parameters.getKeyspace());
 			} catch (TException e) {
 				LOG.error("The following error occurred while trying to access the seed: " + seed + "\n" +
 						e.getMessage());
 			} catch (InvalidRequestException e) {
 				throw new RuntimeException(e);
+			} finally {
+				if (seedConnection != null)
+					seedConnection.close();
 			}
 		}
 		throw new RuntimeException("Cannot get token ranges from any of the seeds: " +
 				Arrays.deepToString(_parameters.getSeedsArray()));
 	}
 
+	public WriteBehindQueue getWriteBehindQueue() {
+		return _writeBehindQueue;
+	}
+
+	/**
+	 * Have every writer of this pool hand its rows over to the given queue
+	 * instead of writing them synchronously.
+	 *
+	 * @param writeBehindQueue the queue, or null to write synchronously
+	 */
+	public void setWriteBehindQueue(WriteBehindQueue writeBehindQueue) {
+		_writeBehindQueue = writeBehindQueue;
+	}
+
+	/**
+	 * Get the live endpoints a row can be sent to, in order of preference: with
+	 * token-aware routing the replicas of its key come first, followed by the
+	 * rest of the ring in round-robin order.
+	 *
+	 * @param key the row key
+	 * @return the live endpoints, possibly empty
+	 * @throws InterruptedException
+	 */
+	public List<String> getCandidates(ByteBuffer key) throws InterruptedException {
+		TokenRing ring = getTokenRing();
+
+		List<String> candidates = new ArrayList<String>();
+		if (_parameters.isTokenAwareRouting())
+			candidates.addAll(_connectionPool.getLiveHosts(ring.getReplicas(key)));
+
+		List<String> others = _connectionPool.getLiveHosts(ring.getEndPoints());
+		if (!others.isEmpty()) {
+			int start = (_roundRobin.getAndIncrement() & Integer.MAX_VALUE) % others.size();
+			for (int i = 0; i < others.size(); i++) {
+				String endPoint = others.get((start + i) % others.size());
+				if (!candidates.contains(endPoint))
+					candidates.add(endPoint);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Borrow a connection to the first live candidate endpoint for the given key.
+	 *
+	 * @param key the row key
+	 * @return a connection, to be handed back to {@link #getConnectionPool()}
+	 * @throws TException if no endpoint is live
+	 * @throws InvalidRequestException
+	 * @throws InterruptedException
+	 */
+	public Connection borrowConnection(ByteBuffer key) throws TException, InvalidRequestException, InterruptedException {
+		List<String> candidates = getCandidates(key);
+		if (candidates.isEmpty())
+			throw new TException("No live endpoint in the ring");
+		return _connectionPool.borrow(candidates.get(0));
+	}
+
+	/**
+	 * Wait for every row handed over to the write-behind queue or submitted
+	 * asynchronously to be written (or spilled), and sync the spill journal
+	 * to disk. Connections stay open.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void drain() throws InterruptedException {
+		if (_writeBehindQueue != null)
+			_writeBehindQueue.flush();
+		_storageBackend.flush();
+		if (_spillJournal != null)
+			_spillJournal.sync();
+	}
+
 	@Override
 	protected WriterPoolMember makeWriter() {
 		try {
-			String head = getEndPoints().removeFirst();
-			getEndPoints().addLast(head); // Move to the end of the list
-			return (WriterPoolMember)new CassandraWriter(getSerialNo(), getSettings(),
-					new Connection(head, _parameters.getPort(), _parameters.getKeyspace()), _parameters);
-		} catch (TTransportException e) {
-			LOG.error(e.getMessage());
+			// Make sure the ring is known before handing out a writer
+			if (_storageBackend instanceof ThriftBackend)
+				getTokenRing();
+
+			CassandraWriter writer = new CassandraWriter(getSerialNo(), getSettings(), _connectionPool, _parameters);
+			writer.setWriteBehindQueue(_writeBehindQueue);
+			writer.setBufferPool(_bufferPool);
+			writer.setWriterPool(this);
+			return (WriterPoolMember)writer;
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
-		} catch (TException e) {
-			LOG.error(e.getMessage());
 		} catch (InterruptedException e) {
 			LOG.error(e.getMessage());
-		} catch (InvalidRequestException e) {
-			LOG.error(e.getMessage());
 		}
 		return null;
 	}
 
+	@Override
+	public void close() {
+		super.close();
+		// Failed writes may still need the spill journal
+		_storageBackend.close();
+		if (_existenceCache != null)
+			_existenceCache.close();
+		if (_valueCompressor != null)
+			_valueCompressor.close();
+		if (_spillReplayer != null)
+			_spillReplayer.close();
+		if (_columnFamilyRotator != null)
+			_columnFamilyRotator.close();
+		if (_spillJournal != null)
+			_spillJournal.close();
+		_connectionPool.close();
+	}
+
 }
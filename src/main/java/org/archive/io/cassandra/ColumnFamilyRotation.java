@@ -0,0 +1,32 @@
+package org.archive.io.cassandra;
+
+/**
+ * Policies rotating the column families records are written to, so that
+ * old records are removed by dropping their column family rather than
+ * with a tombstone per row. See {@link ColumnFamilyRotator}.
+ *
+ * @author greglu
+ */
+public enum ColumnFamilyRotation {
+
+	/**
+	 * Records always go to the configured column families.
+	 */
+	NONE,
+
+	/**
+	 * A column family per day (UTC) the records were fetched on, suffixed with its date, e.g. crawl_20111024.
+	 */
+	DAILY,
+
+	/**
+	 * A column family per week (UTC, starting on Monday) the records were fetched in,
+	 * suffixed with the date of its Monday, e.g. crawl_w20111024.
+	 */
+	WEEKLY,
+
+	/**
+	 * A column family per crawl job, suffixed with its name, e.g. crawl_weekly_news.
+	 */
+	CRAWL_JOB;
+}
@@ -0,0 +1,360 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.CfDef;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.KsDef;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.log4j.Logger;
+
+/**
+ * Picks the column families records are written to according to a
+ * {@link ColumnFamilyRotation} policy: each configured column family is
+ * the base of one column family per time bucket, named after the base and
+ * the bucket, e.g. crawl_20111024. Retiring a bucket is then a matter of
+ * dropping its column families.
+ *
+ * Missing column families are created with system_add_column_family,
+ * modeled on their base, the first time a record goes to them. They're
+ * listed in the manifest column family
+ * ({@link CassandraParameters#getRotationManifestColumnFamily()}), apart
+ * from the crawled rows: a row per base, with a column per bucketed column
+ * family, named after it and holding the start of its bucket.
+ *
+ * The buckets of the fetch times are computed in UTC and cached by their
+ * start, so that most records don't cost more than a comparison, and late
+ * records of an older bucket don't create its column families again. Buckets
+ * older than the previous one are dropped from the cache at each rollover.
+ *
+ * Writers only wait for the creation of the column family they write to.
+ * Within the last hour of the current bucket, the column families of the next
+ * one are created in the background, so that the rollover doesn't hold up the
+ * crawl behind schema changes.
+ *
+ * @author greglu
+ */
+public class ColumnFamilyRotator {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	private static final long SCHEMA_AGREEMENT_TIMEOUT = 30000;
+	private static final long PREPARE_AHEAD = 60 * 60 * 1000L;
+
+	private final CassandraWriterPool _pool;
+	private final CassandraParameters _parameters;
+	private final ColumnFamilyRotation _rotation;
+	private final String _jobSuffix;
+	private final Map<Long, Bucket> _buckets = new HashMap<Long, Bucket>();
+	private volatile Bucket _current = null;
+	private volatile boolean _manifestCreated = false;
+	private final ExecutorService _preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "CassandraColumnFamilyRotator");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * @param pool the pool whose writers write to the column families
+	 * @param rotation the rotation policy
+	 * @param jobName the name of the crawl job, suffixing the column families with {@link ColumnFamilyRotation#CRAWL_JOB}
+	 */
+	public ColumnFamilyRotator(CassandraWriterPool pool, ColumnFamilyRotation rotation, String jobName) {
+		this._pool = pool;
+		this._parameters = pool.getCassandraParameters();
+		this._rotation = rotation;
+		// Column family names are made of word characters only
+		this._jobSuffix = jobName == null ? "" : jobName.replaceAll("\\W", "_");
+		if (rotation == ColumnFamilyRotation.CRAWL_JOB && _jobSuffix.length() == 0)
+			throw new IllegalArgumentException("Rotating column families per crawl job requires the name of the job");
+	}
+
+	/**
+	 * Get the column family a record fetched at the given time goes to, creating it if it's missing.
+	 *
+	 * @param base the configured column family
+	 * @param time the fetch time in milliseconds, or 0 for the current time
+	 * @return the column family of the time's bucket
+	 * @throws IOException if the column family had to be created and couldn't be
+	 */
+	public String getColumnFamily(String base, long time) throws IOException {
+		if (_rotation == ColumnFamilyRotation.NONE)
+			return base;
+		if (time <= 0)
+			time = System.currentTimeMillis();
+
+		Bucket bucket = _current;
+		if (bucket == null || !bucket.contains(time))
+			bucket = getBucket(time);
+		else if (time >= bucket._end - PREPARE_AHEAD)
+			prepareNext(bucket);
+		return bucket.getColumnFamily(base);
+	}
+
+	/**
+	 * Stop creating the column families of the next bucket ahead of time.
+	 */
+	public void close() {
+		_preparer.shutdownNow();
+	}
+
+	private synchronized Bucket getBucket(long time) {
+		Bucket bucket = _current;
+		if (bucket != null && bucket.contains(time))
+			return bucket;
+
+		Bucket cached = getCachedBucket(time);
+		// Records fetched before the current bucket go to their own, which stays behind
+		if (bucket == null || cached._start > bucket._start) {
+			_current = cached;
+			if (bucket != null) {
+				// Late records of older buckets keep theirs cached until the next rollover only
+				Iterator<Long> starts = _buckets.keySet().iterator();
+				while (starts.hasNext()) {
+					if (starts.next() < bucket._start)
+						starts.remove();
+				}
+			}
+			// Payloads known to exist were written to the previous bucket
+			_pool.getDigestCache().clear();
+			LOG.info("Writing to the column families of bucket " + cached._suffix);
+		}
+		return cached;
+	}
+
+	private synchronized Bucket getCachedBucket(long time) {
+		Bucket created = new Bucket(time);
+		Bucket cached = _buckets.get(created._start);
+		if (cached == null) {
+			_buckets.put(created._start, created);
+			cached = created;
+		}
+		return cached;
+	}
+
+	/**
+	 * Create the column families of the bucket following the given one in the background,
+	 * for the bases written to so far.
+	 */
+	private void prepareNext(final Bucket bucket) {
+		if (!bucket._nextPrepared.compareAndSet(false, true))
+			return;
+		final Bucket next = getCachedBucket(bucket._end);
+		try {
+			_preparer.execute(new Runnable() {
+				public void run() {
+					for (String base : bucket._columnFamilies.keySet()) {
+						try {
+							next.getColumnFamily(base);
+						} catch (IOException e) {
+							// Created by the first record of the bucket then
+							LOG.warn("Unable to create the column family of " + base + " for bucket " +
+									next._suffix + " ahead of time: " + e.getMessage());
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Create a column family modeled on its base unless it exists, and list it in the manifest.
+	 */
+	private void create(String base, String name, long start) throws IOException {
+		Exception lastError = null;
+		for (String seed : _parameters.getSeedsArray()) {
+			Connection connection = null;
+			try {
+				connection = new Connection(seed, _parameters.getPort(), _parameters.getKeyspace(),
+						_parameters.getSocketTimeout());
+				Cassandra.Client client = connection.getClient();
+				CfDef template = findColumnFamily(client, base);
+				if (template == null)
+					throw new IOException("No column family " + base + " to model " + name + " on");
+
+				CfDef definition = new CfDef(template);
+				definition.setName(name);
+				definition.unsetId();
+				addColumnFamily(client, definition);
+				if (!_manifestCreated) {
+					addColumnFamily(client, new CfDef(_parameters.getKeyspace(),
+							_parameters.getRotationManifestColumnFamily()));
+					_manifestCreated = true;
+				}
+				addToManifest(base, name, start);
+				return;
+			} catch (IOException e) {
+				throw e;
+			} catch (InvalidRequestException e) {
+				throw new IOException("Unable to create column family " + name + ": " + e.getWhy(), e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while creating column family " + name, e);
+			} catch (Exception e) {
+				LOG.error("Unable to create column family " + name + " through " + seed + ": " + e.getMessage());
+				lastError = e;
+			} finally {
+				if (connection != null)
+					connection.close();
+			}
+		}
+		throw new IOException("Unable to create column family " + name + " through any of the seeds", lastError);
+	}
+
+	private void addColumnFamily(Cassandra.Client client, CfDef definition) throws Exception {
+		if (findColumnFamily(client, definition.getName()) != null)
+			return;
+		try {
+			client.system_add_column_family(definition);
+			LOG.info("Created column family " + definition.getName());
+		} catch (InvalidRequestException e) {
+			// Another crawler may have just created it
+			if (findColumnFamily(client, definition.getName()) == null)
+				throw e;
+		}
+		awaitSchemaAgreement(client);
+	}
+
+	private CfDef findColumnFamily(Cassandra.Client client, String name) throws Exception {
+		KsDef keyspace = client.describe_keyspace(_parameters.getKeyspace());
+		for (CfDef columnFamily : keyspace.getCf_defs()) {
+			if (columnFamily.getName().equals(name))
+				return columnFamily;
+		}
+		return null;
+	}
+
+	/**
+	 * Wait for every live node to know of the new column family, so that writes to it don't fail.
+	 */
+	private void awaitSchemaAgreement(Cassandra.Client client) throws Exception {
+		long deadline = System.currentTimeMillis() + SCHEMA_AGREEMENT_TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			Map<String, List<String>> versions = client.describe_schema_versions();
+			versions.remove("UNREACHABLE");
+			if (versions.size() <= 1)
+				return;
+			Thread.sleep(500);
+		}
+		LOG.warn("Nodes still disagree on the schema after " + SCHEMA_AGREEMENT_TIMEOUT + " ms");
+	}
+
+	private void addToManifest(String base, String name, long start) throws IOException, InterruptedException {
+		RowMutation row = new RowMutation(ByteBuffer.wrap(bytes(base)));
+		row.addColumn(_parameters.getRotationManifestColumnFamily(), new Column(ByteBuffer.wrap(bytes(name)),
+				ByteBuffer.wrap(bytes(format("yyyyMMddHHmmss", start))),
+				_pool.getTimestampClock().currentTimestamp()));
+
+		Map<ByteBuffer, Map<String, List<Mutation>>> job = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+		row.addTo(job);
+		_pool.getStorageBackend().writeRecord(job, true);
+	}
+
+	private byte[] bytes(String value) throws UnsupportedEncodingException {
+		return value.getBytes(_parameters.getEncodingScheme());
+	}
+
+	private static String format(String pattern, long time) {
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(time));
+	}
+
+	/**
+	 * A time bucket and its column families, created the first time they're written to.
+	 */
+	private class Bucket {
+		private final long _start;
+		private final long _end;
+		private final String _suffix;
+		private final ConcurrentMap<String, Future<String>> _columnFamilies =
+				new ConcurrentHashMap<String, Future<String>>();
+		private final AtomicBoolean _nextPrepared = new AtomicBoolean();
+
+		private Bucket(long time) {
+			long day = time / DAY;
+			switch (_rotation) {
+			case DAILY:
+				_start = day * DAY;
+				_end = _start + DAY;
+				_suffix = format("yyyyMMdd", _start);
+				break;
+			case WEEKLY:
+				// The epoch was a Thursday, 3 days after a Monday
+				_start = (day - (day + 3) % 7) * DAY;
+				_end = _start + 7 * DAY;
+				_suffix = "w" + format("yyyyMMdd", _start);
+				break;
+			default:
+				_start = 0;
+				_end = Long.MAX_VALUE;
+				_suffix = _jobSuffix;
+			}
+		}
+
+		private boolean contains(long time) {
+			return time >= _start && time < _end;
+		}
+
+		/**
+		 * Get the column family of the bucket for a base, waiting only for its own creation.
+		 */
+		private String getColumnFamily(final String base) throws IOException {
+			Future<String> name = _columnFamilies.get(base);
+			if (name == null) {
+				FutureTask<String> creation = new FutureTask<String>(new Callable<String>() {
+					public String call() throws IOException {
+						String name = base + "_" + _suffix;
+						create(base, name, _start);
+						return name;
+					}
+				});
+				name = _columnFamilies.putIfAbsent(base, creation);
+				if (name == null) {
+					name = creation;
+					creation.run();
+				}
+			}
+
+			try {
+				return name.get();
+			} catch (ExecutionException e) {
+				// The next record tries again
+				_columnFamilies.remove(base, name);
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException(e.getCause().toString(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the column family of " + base, e);
+			}
+		}
+	}
+}
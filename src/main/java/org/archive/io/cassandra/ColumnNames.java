@@ -0,0 +1,123 @@
+package org.archive.io.cassandra;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The column names of {@link CassandraParameters}, encoded once with its
+ * encoding scheme so that writing a record doesn't encode them again.
+ *
+ * The buffers are shared by every writer: they must be read with absolute
+ * accessors or through a duplicate, and never modified. Thrift only reads
+ * them.
+ *
+ * @see CassandraParameters#getColumnNames()
+ * @author greglu
+ */
+public class ColumnNames {
+
+	// Header field names come from the crawled servers: only so many are kept
+	private static final int MAX_HEADER_NAMES = 1024;
+
+	private final int _version;
+
+	private final ByteBuffer _url;
+	private final ByteBuffer _ip;
+	private final ByteBuffer _isSeed;
+	private final ByteBuffer _pathFromSeed;
+	private final ByteBuffer _via;
+	private final ByteBuffer _processedAt;
+	private final ByteBuffer _request;
+	private final ByteBuffer _digest;
+	private final ByteBuffer _headers;
+	private final ByteBuffer _content;
+	private final ByteBuffer _manifest;
+	private final String _headerPrefix;
+	private final String _encoding;
+	private final ConcurrentMap<String, ByteBuffer> _headerNames = new ConcurrentHashMap<String, ByteBuffer>();
+
+	/**
+	 * @param parameters the parameters holding the column names
+	 * @param version the version of the column names in the parameters
+	 * @throws UnsupportedEncodingException
+	 */
+	public ColumnNames(CassandraParameters parameters, int version) throws UnsupportedEncodingException {
+		String encoding = parameters.getEncodingScheme();
+		this._version = version;
+		this._url = encode(parameters.getUrlColumnName(), encoding);
+		this._ip = encode(parameters.getIpColumnName(), encoding);
+		this._isSeed = encode(parameters.getIsSeedColumnName(), encoding);
+		this._pathFromSeed = encode(parameters.getPathFromSeedColumnName(), encoding);
+		this._via = encode(parameters.getViaColumnName(), encoding);
+		this._processedAt = encode(parameters.getProcessedAtColumnName(), encoding);
+		this._request = encode(parameters.getRequestColumnName(), encoding);
+		this._digest = encode(parameters.getDigestColumnName(), encoding);
+		this._headers = encode(parameters.getHeadersColumnName(), encoding);
+		this._content = encode(parameters.getContentColumnName(), encoding);
+		this._manifest = encode(parameters.getManifestColumnName(), encoding);
+		this._headerPrefix = parameters.getHeaderColumnPrefix();
+		this._encoding = encoding;
+	}
+
+	private static ByteBuffer encode(String name, String encoding) throws UnsupportedEncodingException {
+		return ByteBuffer.wrap(name.getBytes(encoding));
+	}
+
+	/**
+	 * @return the version of the column names these buffers were encoded from
+	 */
+	public int getVersion() {
+		return _version;
+	}
+
+	public ByteBuffer getUrl() {
+		return _url;
+	}
+	public ByteBuffer getIp() {
+		return _ip;
+	}
+	public ByteBuffer getIsSeed() {
+		return _isSeed;
+	}
+	public ByteBuffer getPathFromSeed() {
+		return _pathFromSeed;
+	}
+	public ByteBuffer getVia() {
+		return _via;
+	}
+	public ByteBuffer getProcessedAt() {
+		return _processedAt;
+	}
+	public ByteBuffer getRequest() {
+		return _request;
+	}
+	public ByteBuffer getDigest() {
+		return _digest;
+	}
+	public ByteBuffer getHeaders() {
+		return _headers;
+	}
+	public ByteBuffer getContent() {
+		return _content;
+	}
+	public ByteBuffer getManifest() {
+		return _manifest;
+	}
+
+	/**
+	 * @param field a lowercased HTTP header field name
+	 * @return the name of the column holding the field's value
+	 * @throws UnsupportedEncodingException
+	 */
+	public ByteBuffer getHeader(String field) throws UnsupportedEncodingException {
+		ByteBuffer name = _headerNames.get(field);
+		if (name == null) {
+			name = encode(_headerPrefix + field, _encoding);
+			if (_headerNames.size() < MAX_HEADER_NAMES)
+				_headerNames.putIfAbsent(field, name);
+		}
+		return name;
+	}
+}
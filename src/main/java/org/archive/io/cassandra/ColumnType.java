@@ -0,0 +1,20 @@
+package org.archive.io.cassandra;
+
+/**
+ * The kinds of columns written by {@link CassandraWriter}, so that a
+ * {@link StreamingSerializer} can decide which values it transforms.
+ *
+ * @author greglu
+ */
+public enum ColumnType {
+
+	URL,
+	IP,
+	IS_SEED,
+	PATH_FROM_SEED,
+	VIA,
+	PROCESSED_AT,
+	REQUEST,
+	HEADERS,
+	CONTENT;
+}
@@ -16,11 +16,20 @@ public class Connection {
 	private String _host;
 	private int _port;
 	private String _keyspace;
+	private int _timeout;
 	
 	public Connection(String host, int port, String keyspace) throws TException, InvalidRequestException {
+		this(host, port, keyspace, 0);
+	}
+	
+	/**
+	 * @param timeout socket timeout in milliseconds, 0 for none
+	 */
+	public Connection(String host, int port, String keyspace, int timeout) throws TException, InvalidRequestException {
 		_host = host;
 		_port = port;
 		_keyspace = keyspace;
+		_timeout = timeout;
 		connect();
 	}
 	
@@ -32,6 +41,10 @@ public class Connection {
 		return _host;
 	}
 	
+	public int getPort() {
+		return _port;
+	}
+	
 	public void close() {
 		_socket.close();
 	}
@@ -42,10 +55,36 @@ public class Connection {
 	
 	public void connect() throws InvalidRequestException, TException {
 		if (isClosed()) {
-			_socket = new TFramedTransport(new TSocket(_host, _port));
+			_socket = new TFramedTransport(new TSocket(_host, _port, _timeout));
 			_socket.open();
 			_client = new Cassandra.Client(new TBinaryProtocol(_socket));
-			_client.set_keyspace(_keyspace);
+			// Don't leak the socket of a node that can't set the keyspace
+			try {
+				_client.set_keyspace(_keyspace);
+			} catch (InvalidRequestException e) {
+				_socket.close();
+				throw e;
+			} catch (TException e) {
+				_socket.close();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Check that the connection is still usable with a describe_version round trip.
+	 *
+	 * @return whether the node answered
+	 */
+	public boolean validate() {
+		if (isClosed())
+			return false;
+		try {
+			_client.describe_version();
+			return true;
+		} catch (TException e) {
+			close();
+			return false;
 		}
 	}
 
@@ -0,0 +1,257 @@
+package org.archive.io.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.log4j.Logger;
+import org.apache.thrift.TException;
+
+/**
+ * Pool of Thrift connections keyed by endpoint, shared by all the writers
+ * of a {@link CassandraWriterPool}.
+ *
+ * Connections are borrowed for a single call and released right after.
+ * Each endpoint keeps between <code>connectionPoolMinIdle</code> and
+ * <code>connectionPoolMaxIdle</code> idle connections, which a background
+ * thread validates with describe_version pings.
+ *
+ * An endpoint whose connection fails is marked down for an exponentially
+ * growing period, during which {@link #borrow(String)} fails right away
+ * instead of waiting on a socket timeout. Once the period is over, the
+ * background thread probes the endpoint and marks it up again as soon as
+ * it answers.
+ *
+ * @author greglu
+ */
+public class ConnectionPool {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private final CassandraParameters _parameters;
+	private final WriterMetrics _metrics;
+	private final ConcurrentMap<String, HostPool> _hosts = new ConcurrentHashMap<String, HostPool>();
+	private final ScheduledExecutorService _validator;
+
+	public ConnectionPool(CassandraParameters parameters) {
+		this(parameters, new WriterMetrics());
+	}
+
+	/**
+	 * @param parameters the settings of the connections
+	 * @param metrics the metrics counting the connections opened and the endpoints marked down
+	 */
+	public ConnectionPool(CassandraParameters parameters, WriterMetrics metrics) {
+		this._parameters = parameters;
+		this._metrics = metrics;
+
+		this._validator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CassandraConnectionValidator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = parameters.getConnectionValidationInterval();
+		this._validator.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				validate();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start tracking the given endpoints, so that the background thread
+	 * opens their minimum number of idle connections ahead of time.
+	 */
+	public void register(Collection<String> hosts) {
+		for (String host : hosts) {
+			getHostPool(host);
+		}
+	}
+
+	/**
+	 * Borrow a connection to the given endpoint, opening a new one if none is idle.
+	 *
+	 * @param host the endpoint
+	 * @return an open connection, to be handed back with {@link #release(Connection)}
+	 * or {@link #invalidate(Connection)}
+	 * @throws TException if the endpoint is marked down or can't be connected to
+	 * @throws InvalidRequestException
+	 */
+	public Connection borrow(String host) throws TException, InvalidRequestException {
+		HostPool hostPool = getHostPool(host);
+		if (!hostPool.isUp())
+			throw new TException("Endpoint " + host + " is marked down");
+
+		Connection connection = hostPool._idle.pollFirst();
+		if (connection != null)
+			return connection;
+
+		try {
+			return newConnection(host);
+		} catch (TException e) {
+			markDown(host);
+			throw e;
+		}
+	}
+
+	/**
+	 * Hand a healthy connection back to the pool.
+	 */
+	public void release(Connection connection) {
+		HostPool hostPool = getHostPool(connection.getHost());
+		if (connection.isClosed())
+			return;
+		if (hostPool._failures.get() > 0)
+			markUp(connection.getHost());
+		if (hostPool._idle.size() >= _parameters.getConnectionPoolMaxIdle() || !hostPool._idle.offerFirst(connection))
+			connection.close();
+	}
+
+	/**
+	 * Close a connection that failed and mark its endpoint down.
+	 */
+	public void invalidate(Connection connection) {
+		connection.close();
+		markDown(connection.getHost());
+	}
+
+	/**
+	 * @return whether the endpoint isn't currently marked down
+	 */
+	public boolean isUp(String host) {
+		return getHostPool(host).isUp();
+	}
+
+	/**
+	 * Keep only the endpoints that aren't currently marked down.
+	 *
+	 * @param hosts candidate endpoints, in order of preference
+	 * @return the live endpoints, in the same order
+	 */
+	public List<String> getLiveHosts(Collection<String> hosts) {
+		List<String> live = new ArrayList<String>(hosts.size());
+		for (String host : hosts) {
+			if (isUp(host))
+				live.add(host);
+		}
+		return live;
+	}
+
+	/**
+	 * Mark an endpoint down, for twice as long as the previous time if it
+	 * hasn't recovered in between.
+	 */
+	public void markDown(String host) {
+		HostPool hostPool = getHostPool(host);
+		int failures = hostPool._failures.incrementAndGet();
+		_metrics.endpointMarkedDown();
+		long backoff = _parameters.getHostDownBackoff() << Math.min(failures - 1, 20);
+		backoff = Math.min(backoff, _parameters.getHostDownBackoffMax());
+		hostPool._downUntil = System.currentTimeMillis() + backoff;
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("Marking " + host + " down for " + backoff + "ms");
+
+		// Idle connections to a failed endpoint are most likely broken too
+		Connection idle;
+		while ((idle = hostPool._idle.pollFirst()) != null) {
+			idle.close();
+		}
+	}
+
+	public void markUp(String host) {
+		HostPool hostPool = getHostPool(host);
+		hostPool._failures.set(0);
+		hostPool._downUntil = 0;
+	}
+
+	/**
+	 * Close every idle connection and stop validating them.
+	 */
+	public void close() {
+		_validator.shutdownNow();
+		for (HostPool hostPool : _hosts.values()) {
+			Connection idle;
+			while ((idle = hostPool._idle.pollFirst()) != null) {
+				idle.close();
+			}
+		}
+	}
+
+	private Connection newConnection(String host) throws TException, InvalidRequestException {
+		Connection connection = new Connection(host, _parameters.getPort(), _parameters.getKeyspace(),
+				_parameters.getSocketTimeout());
+		_metrics.connectionOpened();
+		return connection;
+	}
+
+	private HostPool getHostPool(String host) {
+		HostPool hostPool = _hosts.get(host);
+		if (hostPool == null) {
+			hostPool = new HostPool();
+			HostPool existing = _hosts.putIfAbsent(host, hostPool);
+			if (existing != null)
+				hostPool = existing;
+		}
+		return hostPool;
+	}
+
+	/**
+	 * Ping the idle connections, probe the endpoints marked down whose backoff
+	 * is over and open connections up to the minimum idle size.
+	 */
+	private void validate() {
+		for (String host : _hosts.keySet()) {
+			HostPool hostPool = _hosts.get(host);
+			try {
+				if (hostPool._failures.get() > 0) {
+					if (!hostPool.isUp())
+						continue;
+
+					Connection probe = newConnection(host);
+					if (!probe.validate())
+						throw new TException("describe_version failed");
+					markUp(host);
+					LOG.info("Endpoint " + host + " is back up");
+					release(probe);
+				}
+
+				for (int i = hostPool._idle.size(); i > 0; i--) {
+					Connection connection = hostPool._idle.pollLast();
+					if (connection == null)
+						break;
+					if (connection.validate())
+						hostPool._idle.offerFirst(connection);
+				}
+
+				while (hostPool._idle.size() < _parameters.getConnectionPoolMinIdle()) {
+					hostPool._idle.offerLast(newConnection(host));
+				}
+			} catch (Exception e) {
+				LOG.warn("Validation of endpoint " + host + " failed: " + e.getMessage());
+				markDown(host);
+			}
+		}
+	}
+
+	private static class HostPool {
+		private final LinkedBlockingDeque<Connection> _idle = new LinkedBlockingDeque<Connection>();
+		private final AtomicInteger _failures = new AtomicInteger();
+		private volatile long _downUntil = 0;
+
+		private boolean isUp() {
+			return System.currentTimeMillis() >= _downUntil;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package org.archive.io.cassandra;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of the content digests most recently written to, or found
+ * in, the content column family, so that duplicate payloads usually don't
+ * cost a read to be recognized.
+ *
+ * The least recently used digest is evicted once the cache is full.
+ *
+ * @author greglu
+ */
+public class DigestCache {
+
+	private final Map<String, Boolean> _digests;
+
+	/**
+	 * @param maxSize maximum number of digests kept
+	 */
+	public DigestCache(final int maxSize) {
+		this._digests = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public synchronized boolean contains(String digest) {
+		return _digests.get(digest) != null;
+	}
+
+	public synchronized void add(String digest) {
+		_digests.put(digest, Boolean.TRUE);
+	}
+
+	/**
+	 * Forget every digest, typically because they were written to a column family
+	 * that isn't written to anymore.
+	 */
+	public synchronized void clear() {
+		_digests.clear();
+	}
+}
@@ -0,0 +1,180 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.log4j.Logger;
+
+/**
+ * Scans the rows of the crawl column family whose URL starts with a
+ * given prefix, such as every page of a host, whatever the
+ * {@link KeyLayout} spreading them over the ring.
+ *
+ * Each range of keys the rows are spread over, one per bucket with
+ * {@link KeyLayout#SALT_BUCKETS}, is scanned in parallel with paged
+ * get_range_slices calls. Only works with an ordered partitioner, with
+ * which key ranges follow the order of the keys.
+ *
+ * @see UrlKey#createRowKeyPrefixes(String, CassandraParameters)
+ * @author greglu
+ */
+public class HostScanner {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Receives the scanned rows. Called concurrently by the scanning threads.
+	 */
+	public interface RowHandler {
+		/**
+		 * @param uri the URI of the row
+		 * @param key the row key
+		 * @param columns the columns of the row selected by the scan's predicate
+		 */
+		void row(String uri, ByteBuffer key, List<ColumnOrSuperColumn> columns) throws Exception;
+	}
+
+	private final CassandraWriterPool _pool;
+	private final CassandraParameters _parameters;
+	private final ExecutorService _executor;
+
+	/**
+	 * @param pool the pool to borrow connections from
+	 * @param parameters the parameters the rows were written with
+	 * @param threads number of ranges scanned at the same time
+	 */
+	public HostScanner(CassandraWriterPool pool, CassandraParameters parameters, int threads) {
+		this._pool = pool;
+		this._parameters = parameters;
+
+		final AtomicInteger count = new AtomicInteger();
+		this._executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CassandraHostScanner-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Scan the rows whose URL starts with the passed URL, in every range they are spread over.
+	 *
+	 * @param u URL prefix, at least holding the host, as in <code>http://www.example.com/</code>
+	 * @param predicate the columns to fetch from each row
+	 * @param handler receives each row
+	 * @return the number of rows scanned
+	 * @throws IllegalStateException with the {@link KeyLayout#URL_HASH} layout
+	 * @throws Exception the first failure of a range's scan, once every range is over
+	 */
+	public long scan(String u, final SlicePredicate predicate, final RowHandler handler) throws Exception {
+		List<Future<Long>> scans = new ArrayList<Future<Long>>();
+		for (final ByteBuffer prefix : UrlKey.createRowKeyPrefixes(u, _parameters)) {
+			scans.add(_executor.submit(new Callable<Long>() {
+				public Long call() throws Exception {
+					return scanRange(prefix, predicate, handler);
+				}
+			}));
+		}
+
+		long rows = 0;
+		Exception error = null;
+		for (Future<Long> scan : scans) {
+			try {
+				rows += scan.get();
+			} catch (ExecutionException e) {
+				if (error == null)
+					error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			} catch (InterruptedException e) {
+				for (Future<Long> other : scans)
+					other.cancel(true);
+				throw e;
+			}
+		}
+
+		if (error != null)
+			throw error;
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("Scanned " + rows + " rows of " + u + " in " + scans.size() + " ranges");
+		return rows;
+	}
+
+	public void close() {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Scan the rows whose keys start with prefix.
+	 */
+	private long scanRange(ByteBuffer prefix, SlicePredicate predicate, RowHandler handler) throws Exception {
+		ColumnParent parent = new ColumnParent(_parameters.getCrawlColumnFamily());
+		int pageSize = _parameters.getExistenceFilterScanPageSize();
+
+		ByteBuffer start = prefix;
+		boolean first = true;
+		long rows = 0;
+		while (true) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			KeyRange range = new KeyRange(pageSize);
+			range.setStart_key(start);
+			range.setEnd_key(ByteBuffer.allocate(0));
+
+			Connection connection = _pool.borrowConnection(start);
+			List<KeySlice> page;
+			try {
+				page = connection.getClient().get_range_slices(parent, predicate, range,
+						_parameters.getReadConsistencyLevel());
+				_pool.getConnectionPool().release(connection);
+			} catch (Exception e) {
+				_pool.getConnectionPool().invalidate(connection);
+				throw e;
+			}
+
+			for (KeySlice slice : page) {
+				// The start key of a page is the last key of the previous one
+				if (!first && slice.key.equals(start))
+					continue;
+				// Keys are ordered: the first key past the prefix ends the range
+				if (!startsWith(slice.key, prefix))
+					return rows;
+				// Rows only holding tombstones come back without columns
+				if (!slice.getColumns().isEmpty()) {
+					handler.row(UrlKey.rowKeyToUri(slice.key, _parameters), slice.key, slice.getColumns());
+					rows++;
+				}
+			}
+
+			if (page.size() < pageSize)
+				return rows;
+			start = page.get(page.size() - 1).key;
+			first = false;
+		}
+	}
+
+	private static boolean startsWith(ByteBuffer key, ByteBuffer prefix) {
+		int length = prefix.remaining();
+		if (key.remaining() < length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (key.get(key.position() + i) != prefix.get(prefix.position() + i))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,106 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits the header block of an HTTP response into its fields, without
+ * copying them: the values are slices of the buffer holding the block.
+ *
+ * @author greglu
+ */
+public class HttpHeaders {
+
+	private static final byte[] SEPARATOR = {',', ' '};
+
+	/**
+	 * Parse the header fields following the status line. Field names are
+	 * lowercased, continuation lines are kept in the value of their field,
+	 * and the values of a field appearing several times are joined with
+	 * commas, in a copy.
+	 *
+	 * @param headers the header block, from its position to its limit
+	 * @return the value of each field, in order of appearance
+	 */
+	public static Map<String, ByteBuffer> parse(ByteBuffer headers) {
+		Map<String, ByteBuffer> fields = new LinkedHashMap<String, ByteBuffer>();
+		String name = null;
+		int valueStart = 0;
+		int valueEnd = 0;
+
+		int limit = headers.limit();
+		boolean statusLine = true;
+		for (int start = headers.position(); start < limit; ) {
+			int end = start;
+			while (end < limit && headers.get(end) != '\n')
+				end++;
+			int next = end + 1;
+			if (end > start && headers.get(end - 1) == '\r')
+				end--;
+
+			if (statusLine) {
+				statusLine = false;
+			} else if (end == start) {
+				break;
+			} else if (isWhitespace(headers.get(start))) {
+				// Continuation of the previous field
+				if (name != null)
+					valueEnd = trimEnd(headers, start, end);
+			} else {
+				int colon = start;
+				while (colon < end && headers.get(colon) != ':')
+					colon++;
+				if (colon < end) {
+					if (name != null)
+						put(fields, name, slice(headers, valueStart, valueEnd));
+					name = lowercase(headers, start, trimEnd(headers, start, colon));
+					valueStart = colon + 1;
+					while (valueStart < end && isWhitespace(headers.get(valueStart)))
+						valueStart++;
+					valueEnd = trimEnd(headers, valueStart, end);
+				}
+			}
+			start = next;
+		}
+		if (name != null)
+			put(fields, name, slice(headers, valueStart, valueEnd));
+		return fields;
+	}
+
+	private static void put(Map<String, ByteBuffer> fields, String name, ByteBuffer value) {
+		ByteBuffer previous = fields.put(name, value);
+		if (previous != null) {
+			ByteBuffer joined = ByteBuffer.allocate(previous.remaining() + SEPARATOR.length + value.remaining());
+			joined.put(previous).put(SEPARATOR).put(value.duplicate());
+			joined.flip();
+			fields.put(name, joined);
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(end);
+		slice.position(start);
+		return slice;
+	}
+
+	private static int trimEnd(ByteBuffer buffer, int start, int end) {
+		while (end > start && isWhitespace(buffer.get(end - 1)))
+			end--;
+		return end;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static String lowercase(ByteBuffer buffer, int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			char c = (char) (buffer.get(i) & 0xff);
+			chars[i - start] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+		}
+		return new String(chars);
+	}
+}
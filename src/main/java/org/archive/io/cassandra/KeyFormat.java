@@ -0,0 +1,25 @@
+package org.archive.io.cassandra;
+
+/**
+ * Formats of the row keys made by {@link UrlKey#createRowKey(String, CassandraParameters)}.
+ *
+ * @author greglu
+ */
+public enum KeyFormat {
+
+	/**
+	 * The {@link UrlKey#createKey(String)} transform of the URL, such as
+	 * <code>r:http://org.example.www/index.html</code>, encoded with the
+	 * configured encoding scheme.
+	 */
+	TEXT,
+
+	/**
+	 * A compact binary encoding of the URL: a byte standing for the scheme,
+	 * the varint-prefixed reversed hostname and the rest of the URL, all
+	 * encoded as UTF-8.
+	 *
+	 * @see UrlKey#createBinaryKey(String)
+	 */
+	BINARY;
+}
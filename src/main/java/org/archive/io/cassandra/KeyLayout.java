@@ -0,0 +1,55 @@
+package org.archive.io.cassandra;
+
+/**
+ * Layouts of the row keys made by {@link UrlKey#createRowKey(String, CassandraParameters)},
+ * deciding how they spread over the ring with an ordered partitioner
+ * (<code>OrderPreservingPartitioner</code> or <code>ByteOrderedPartitioner</code>).
+ * A layout prefixes the key of the {@link KeyFormat} with a few bytes.
+ *
+ * With the RandomPartitioner, keys are spread by their MD5 anyway and
+ * {@link #PLAIN} is the only layout worth using.
+ *
+ * @see HostScanner
+ * @author greglu
+ */
+public enum KeyLayout {
+
+	/**
+	 * No prefix: the rows of a domain sort together, and a deep crawl of a
+	 * single site writes to a single node.
+	 */
+	PLAIN(0),
+
+	/**
+	 * A 2 bytes hash of the URL: rows spread evenly, but the rows of a host
+	 * can't be scanned anymore.
+	 */
+	URL_HASH(2),
+
+	/**
+	 * A 2 bytes hash of the hostname: hosts spread evenly, and the rows of
+	 * a host stay together, in a single range.
+	 */
+	HOST_HASH(2),
+
+	/**
+	 * A salt byte picked by a hash of the URL among
+	 * {@link CassandraParameters#getKeySaltBuckets()} buckets spread over the
+	 * byte range: the rows of a host spread over every bucket, and sort
+	 * together within each of them.
+	 */
+	SALT_BUCKETS(1);
+
+	private final int _prefixLength;
+
+	private KeyLayout(int prefixLength) {
+		this._prefixLength = prefixLength;
+	}
+
+	/**
+	 * @return the number of bytes the layout prefixes keys with
+	 */
+	public int getPrefixLength() {
+		return _prefixLength;
+	}
+}
@@ -0,0 +1,329 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.SyntaxError;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * {@link StorageBackend} writing through prepared statements over the
+ * native protocol, executed asynchronously by the DataStax driver.
+ *
+ * Column families created through Thrift are read over the native protocol
+ * as compact tables with <code>key</code>, <code>column1</code> and
+ * <code>value</code> columns: each column written is an insert into such a
+ * table, and the mutations of a row are sent together as an unlogged batch.
+ * Since every statement of a batch targets the same partition, the
+ * token-aware policy sends it straight to one of its replicas.
+ *
+ * Rows are retried and spilled like the Thrift backend does, and at most
+ * {@link CassandraParameters#getAsyncMaxPendingWrites()} records are
+ * written at a time. Requires
+ * Cassandra 1.2 or later, and the native protocol enabled on its nodes.
+ *
+ * @author greglu
+ */
+public class NativeBackend implements StorageBackend {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	// Metrics of the calls that failed before reaching a coordinator are kept under this name
+	private static final String UNKNOWN_HOST = "native";
+
+	private final CassandraWriterPool _pool;
+	private final CassandraParameters _parameters;
+	private final Cluster _cluster;
+	private final Session _session;
+	private final ConcurrentMap<String, PreparedStatement> _statements = new ConcurrentHashMap<String, PreparedStatement>();
+	private final ScheduledExecutorService _scheduler;
+	private final ExecutorService _executor;
+
+	// Submissions not completed yet, waited for on its monitor
+	private final AtomicInteger _submissions = new AtomicInteger();
+	private final Semaphore _submissionPermits;
+
+	/**
+	 * @param pool the pool whose writers write through this backend
+	 * @throws IOException if none of the seeds could be connected to
+	 */
+	public NativeBackend(CassandraWriterPool pool) throws IOException {
+		this._pool = pool;
+		this._parameters = pool.getCassandraParameters();
+		this._submissionPermits = new Semaphore(Math.max(1, _parameters.getAsyncMaxPendingWrites()));
+
+		SocketOptions socketOptions = new SocketOptions();
+		if (_parameters.getSocketTimeout() > 0)
+			socketOptions.setReadTimeoutMillis(_parameters.getSocketTimeout());
+		this._cluster = Cluster.builder()
+				.addContactPoints(_parameters.getSeedsArray())
+				.withPort(_parameters.getNativePort())
+				.withLoadBalancingPolicy(new TokenAwarePolicy(new RoundRobinPolicy()))
+				.withSocketOptions(socketOptions)
+				.build();
+		try {
+			this._session = _cluster.connect(quote(_parameters.getKeyspace()));
+		} catch (DriverException e) {
+			_cluster.close();
+			throw new IOException("Unable to connect to " + _parameters.getSeeds() + ": " + e.getMessage(), e);
+		}
+
+		this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CassandraNativeScheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Retries prepare their statements synchronously, which must not hold up the scheduler
+		this._executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CassandraNativeWorker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void writeRecord(Map<ByteBuffer, Map<String, List<Mutation>>> job, boolean spill)
+			throws IOException, InterruptedException {
+		try {
+			submit(job, spill).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	public WriteFuture writeRecordAsync(Map<ByteBuffer, Map<String, List<Mutation>>> job)
+			throws IOException, InterruptedException {
+		return submit(job, true);
+	}
+
+	/**
+	 * Writes are asynchronous with {@link CassandraParameters#isAsyncWrites()}.
+	 */
+	public boolean isAsync() {
+		return _parameters.isAsyncWrites();
+	}
+
+	public boolean exists(ByteBuffer key, String columnFamily, List<ByteBuffer> columnNames)
+			throws IOException, InterruptedException {
+		PreparedStatement select = prepare("SELECT column1 FROM " + quote(columnFamily) +
+				" WHERE key = ? AND column1 = ?");
+		List<ResultSetFuture> reads = new ArrayList<ResultSetFuture>(columnNames.size());
+		for (ByteBuffer name : columnNames) {
+			BoundStatement read = select.bind();
+			read.setBytesUnsafe(0, key.duplicate());
+			read.setBytesUnsafe(1, name.duplicate());
+			read.setConsistencyLevel(getConsistencyLevel(_parameters.getReadConsistencyLevel()));
+			reads.add(_session.executeAsync(read));
+		}
+
+		boolean exists = false;
+		for (ResultSetFuture read : reads) {
+			try {
+				exists |= read.get().one() != null;
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to read from " + columnFamily + ": " + e.getCause().getMessage(),
+						e.getCause());
+			}
+		}
+		return exists;
+	}
+
+	public void flush() throws InterruptedException {
+		synchronized (_submissions) {
+			while (_submissions.get() > 0) {
+				_submissions.wait(1000);
+			}
+		}
+	}
+
+	public void close() {
+		try {
+			// Failed writes may still need the spill journal
+			flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_scheduler.shutdownNow();
+		_executor.shutdownNow();
+		_cluster.close();
+	}
+
+	private WriteFuture submit(Map<ByteBuffer, Map<String, List<Mutation>>> job, boolean spill)
+			throws InterruptedException {
+		// The driver queues up statements without bound
+		_submissionPermits.acquire();
+		_submissions.incrementAndGet();
+		// Sending doesn't hold up any timeout, retries can be sent by the scheduler
+		return new AsyncSubmission(_pool, spill, _scheduler, _executor) {
+			@Override
+			protected void send(Map<ByteBuffer, Map<String, List<Mutation>>> rows, final int attempt,
+					final long backoff) {
+				for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : rows.entrySet()) {
+					final Map<ByteBuffer, Map<String, List<Mutation>>> call =
+						Collections.singletonMap(row.getKey(), row.getValue());
+					called();
+
+					final BatchStatement batch;
+					try {
+						batch = toBatch(row.getKey(), row.getValue());
+					} catch (RuntimeException e) {
+						// The statements couldn't be prepared, or the mutations translated
+						failed(call, translate(e), true, attempt, backoff);
+						continue;
+					}
+
+					final long start = System.nanoTime();
+					Futures.addCallback(_session.executeAsync(batch), new FutureCallback<ResultSet>() {
+						public void onSuccess(ResultSet result) {
+							_pool.getMetrics().batchMutate(result.getExecutionInfo().getQueriedHost().getAddress()
+									.getHostAddress(), System.nanoTime() - start, false);
+							succeeded();
+						}
+
+						public void onFailure(Throwable t) {
+							_pool.getMetrics().batchMutate(UNKNOWN_HOST, System.nanoTime() - start, true);
+							failed(call, translate(t), true, attempt, backoff);
+						}
+					});
+				}
+			}
+
+			@Override
+			protected void finished() {
+				_submissionPermits.release();
+				if (_submissions.decrementAndGet() == 0) {
+					synchronized (_submissions) {
+						_submissions.notifyAll();
+					}
+				}
+			}
+		}.start(job);
+	}
+
+	/**
+	 * Turn the mutations of a row into an unlogged batch of bound statements.
+	 */
+	private BatchStatement toBatch(ByteBuffer key, Map<String, List<Mutation>> mutations) {
+		BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+		boolean deletes = false;
+		for (Map.Entry<String, List<Mutation>> columnFamily : mutations.entrySet()) {
+			String table = quote(columnFamily.getKey());
+			for (Mutation mutation : columnFamily.getValue()) {
+				if (mutation.isSetDeletion()) {
+					deletes = true;
+					addDeletion(batch, table, key, mutation.getDeletion());
+					continue;
+				}
+
+				Column column = mutation.getColumn_or_supercolumn().getColumn();
+				if (column == null)
+					throw new IllegalArgumentException("Super columns can't be written over the native protocol");
+				BoundStatement insert = prepare("INSERT INTO " + table +
+						" (key, column1, value) VALUES (?, ?, ?) USING TIMESTAMP ? AND TTL ?").bind();
+				insert.setBytesUnsafe(0, key.duplicate());
+				insert.setBytesUnsafe(1, column.name.duplicate());
+				insert.setBytesUnsafe(2, column.value.duplicate());
+				insert.setLong(3, column.timestamp);
+				insert.setInt(4, column.isSetTtl() ? column.ttl : 0);
+				batch.add(insert);
+			}
+		}
+		batch.setConsistencyLevel(getConsistencyLevel(deletes
+				? _parameters.getDeleteConsistencyLevel() : _parameters.getWriteConsistencyLevel()));
+		return batch;
+	}
+
+	private void addDeletion(BatchStatement batch, String table, ByteBuffer key, Deletion deletion) {
+		if (!deletion.isSetPredicate()) {
+			BoundStatement delete = prepare("DELETE FROM " + table + " USING TIMESTAMP ? WHERE key = ?").bind();
+			delete.setLong(0, deletion.timestamp);
+			delete.setBytesUnsafe(1, key.duplicate());
+			batch.add(delete);
+			return;
+		}
+
+		if (!deletion.getPredicate().isSetColumn_names())
+			throw new IllegalArgumentException("Slice deletions can't be sent over the native protocol");
+		for (ByteBuffer name : deletion.getPredicate().getColumn_names()) {
+			BoundStatement delete = prepare("DELETE FROM " + table +
+					" USING TIMESTAMP ? WHERE key = ? AND column1 = ?").bind();
+			delete.setLong(0, deletion.timestamp);
+			delete.setBytesUnsafe(1, key.duplicate());
+			delete.setBytesUnsafe(2, name.duplicate());
+			batch.add(delete);
+		}
+	}
+
+	/**
+	 * Prepare a statement once, and reuse it afterwards.
+	 */
+	private PreparedStatement prepare(String query) {
+		PreparedStatement statement = _statements.get(query);
+		if (statement == null) {
+			statement = _session.prepare(query);
+			PreparedStatement existing = _statements.putIfAbsent(query, statement);
+			if (existing != null)
+				statement = existing;
+			else if (LOG.isDebugEnabled())
+				LOG.debug("Prepared " + query);
+		}
+		return statement;
+	}
+
+	/**
+	 * @return the failure of a call, as an {@link InvalidRequestException} if retrying it is pointless
+	 */
+	private static Exception translate(Throwable t) {
+		if (t instanceof InvalidQueryException || t instanceof SyntaxError || t instanceof IllegalArgumentException)
+			return new InvalidRequestException(t.getMessage());
+		if (t instanceof Exception)
+			return (Exception) t;
+		return new IOException(t.toString(), t);
+	}
+
+	private static ConsistencyLevel getConsistencyLevel(org.apache.cassandra.thrift.ConsistencyLevel level) {
+		return ConsistencyLevel.valueOf(level.name());
+	}
+
+	private static String quote(String name) {
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+}
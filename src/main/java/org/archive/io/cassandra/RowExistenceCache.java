@@ -0,0 +1,161 @@
+package org.archive.io.cassandra;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.log4j.Logger;
+
+/**
+ * Answers whether a row key was already written to the crawl column family
+ * without a read per key: a local {@link BloomFilter} rules out the keys
+ * that were never written, and only the keys it might contain are checked
+ * against Cassandra through the pool's {@link StorageBackend}.
+ *
+ * The filter is warmed up with a range scan of the column family, run in
+ * the background by {@link #warmUp()}. Until the scan is over, the filter
+ * can't rule out anything and every lookup goes to Cassandra.
+ *
+ * @author greglu
+ */
+public class RowExistenceCache {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private final CassandraWriterPool _pool;
+	private final CassandraParameters _parameters;
+	private final BloomFilter _filter;
+	private volatile boolean _warm = false;
+	private Thread _warmer = null;
+
+	public RowExistenceCache(CassandraWriterPool pool, CassandraParameters parameters) {
+		this._pool = pool;
+		this._parameters = parameters;
+		this._filter = new BloomFilter(parameters.getExistenceFilterExpectedRows(),
+				parameters.getExistenceFilterFalsePositiveRate());
+
+		LOG.info("Allocated a " + _filter.getSizeInBytes() + " bytes existence filter for " +
+				parameters.getExistenceFilterExpectedRows() + " rows");
+	}
+
+	/**
+	 * @return whether the filter holds every key of the column family
+	 */
+	public boolean isWarm() {
+		return _warm;
+	}
+
+	/**
+	 * Record that a row was written.
+	 */
+	public void add(ByteBuffer key) {
+		_filter.add(key);
+	}
+
+	/**
+	 * @return false if the key was definitely never written, true if it might have been.
+	 * Unlike {@link #exists(ByteBuffer)}, never goes to Cassandra.
+	 */
+	public boolean mightExist(ByteBuffer key) {
+		return !_warm || _filter.mightContain(key);
+	}
+
+	/**
+	 * @param key the row key
+	 * @return whether the row exists in the crawl column family, that of the current time bucket if they rotate
+	 * @throws Exception if Cassandra had to be checked and couldn't be
+	 */
+	public boolean exists(ByteBuffer key) throws Exception {
+		if (!mightExist(key))
+			return false;
+
+		return _pool.getStorageBackend().exists(key, _pool.getCrawlColumnFamily(0),
+				getPredicate().getColumn_names());
+	}
+
+	/**
+	 * Start filling the filter in the background with a range scan of the crawl column family.
+	 * The scan goes through Thrift get_range_slices calls, whatever the pool's {@link StorageBackend}.
+	 */
+	public synchronized void warmUp() {
+		if (_warmer != null)
+			return;
+
+		_warmer = new Thread("CassandraExistenceFilterWarmer") {
+			@Override
+			public void run() {
+				try {
+					long rows = scan();
+					_warm = true;
+					LOG.info("Existence filter warmed up with " + rows + " rows");
+				} catch (InterruptedException e) {
+					LOG.info("Existence filter warm-up interrupted");
+				} catch (Exception e) {
+					LOG.error("Existence filter warm-up failed, every lookup will go to Cassandra: " + e.getMessage(), e);
+				}
+			}
+		};
+		_warmer.setDaemon(true);
+		_warmer.start();
+	}
+
+	public synchronized void close() {
+		if (_warmer != null)
+			_warmer.interrupt();
+	}
+
+	private long scan() throws Exception {
+		ColumnParent parent = new ColumnParent(_pool.getCrawlColumnFamily(0));
+		SlicePredicate predicate = getPredicate();
+		int pageSize = _parameters.getExistenceFilterScanPageSize();
+
+		ByteBuffer start = ByteBuffer.allocate(0);
+		long rows = 0;
+		while (true) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			KeyRange range = new KeyRange(pageSize);
+			range.setStart_key(start);
+			range.setEnd_key(ByteBuffer.allocate(0));
+
+			Connection connection = _pool.borrowConnection(start);
+			List<KeySlice> page;
+			try {
+				page = connection.getClient().get_range_slices(parent, predicate, range,
+						_parameters.getReadConsistencyLevel());
+				_pool.getConnectionPool().release(connection);
+			} catch (Exception e) {
+				_pool.getConnectionPool().invalidate(connection);
+				throw e;
+			}
+
+			for (KeySlice slice : page) {
+				// The start key of a page is the last key of the previous one
+				if (start.hasRemaining() && slice.key.equals(start))
+					continue;
+				// Rows only holding tombstones come back without columns
+				if (!slice.getColumns().isEmpty()) {
+					_filter.add(slice.key);
+					rows++;
+				}
+			}
+
+			if (page.size() < pageSize)
+				return rows;
+			start = page.get(page.size() - 1).key;
+		}
+	}
+
+	private SlicePredicate getPredicate() throws UnsupportedEncodingException {
+		// Every row written by CassandraWriter holds a url column
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setColumn_names(Collections.singletonList(_parameters.getColumnNames().getUrl()));
+		return predicate;
+	}
+}
@@ -0,0 +1,270 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+
+/**
+ * All the mutations destined to a single row key, along with an estimate
+ * of their size on the wire. Rows are either submitted right away by a
+ * {@link CassandraWriter} or queued up in a {@link WriteBehindQueue} and
+ * combined with other rows into a single batch_mutate call.
+ *
+ * @author greglu
+ */
+public class RowMutation {
+
+	// Estimated size of a row deletion on the wire: its timestamp and field headers
+	private static final long DELETION_SIZE = 16;
+
+	private final ByteBuffer _key;
+	private final Map<String, List<Mutation>> _mutations = new HashMap<String, List<Mutation>>();
+	private long _size;
+
+	private PooledBuffers _pooledBuffers;
+	private List<PendingValue> _pending = null;
+	private WriteFuture _written = null;
+
+	public RowMutation(ByteBuffer key) {
+		this._key = key;
+		this._size = key.remaining();
+	}
+
+	public ByteBuffer getKey() {
+		return _key;
+	}
+
+	public Map<String, List<Mutation>> getMutations() {
+		return _mutations;
+	}
+
+	/**
+	 * @return estimated number of bytes this row will take on the wire
+	 */
+	public long getSize() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _mutations.isEmpty();
+	}
+
+	/**
+	 * @return the pending write of this row, completed by the {@link WriteBehindQueue} writing it
+	 */
+	public synchronized WriteFuture getWriteFuture() {
+		if (_written == null)
+			_written = new WriteFuture();
+		return _written;
+	}
+
+	/**
+	 * Complete the pending write of this row, if it was asked for.
+	 *
+	 * @param error the reason the row couldn't be written, or null if it was
+	 */
+	void written(Exception error) {
+		WriteFuture written;
+		synchronized (this) {
+			written = _written;
+		}
+		if (written != null)
+			written.complete(error);
+	}
+
+	public void addColumn(String columnFamily, Column column) {
+		ColumnOrSuperColumn c = new ColumnOrSuperColumn();
+		c.setColumn(column);
+
+		Mutation mutation = new Mutation();
+		mutation.setColumn_or_supercolumn(c);
+
+		add(columnFamily, mutation, column.name.remaining() + column.value.remaining());
+	}
+
+	/**
+	 * Remove the whole row from a column family.
+	 *
+	 * @param columnFamily the column family
+	 * @param timestamp the timestamp of the tombstone, removing the columns written before it
+	 */
+	public void deleteRow(String columnFamily, long timestamp) {
+		Deletion deletion = new Deletion();
+		deletion.setTimestamp(timestamp);
+
+		Mutation mutation = new Mutation();
+		mutation.setDeletion(deletion);
+
+		add(columnFamily, mutation, DELETION_SIZE);
+	}
+
+	public void add(String columnFamily, Mutation mutation, long size) {
+		List<Mutation> mutations = _mutations.get(columnFamily);
+		if (mutations == null) {
+			mutations = new ArrayList<Mutation>();
+			_mutations.put(columnFamily, mutations);
+		}
+		mutations.add(mutation);
+		_size += size;
+	}
+
+	/**
+	 * Tie a pooled buffer backing some of this row's column values to the
+	 * row, so that it is handed back to its pool once the row is written.
+	 *
+	 * @param pool the pool the buffer was acquired from
+	 * @param buffer the pooled buffer
+	 */
+	public void retain(ByteBufferPool pool, ByteBuffer buffer) {
+		if (_pooledBuffers == null)
+			_pooledBuffers = new PooledBuffers(pool);
+		// Rows sharing their buffers may be flushed by different threads
+		synchronized (_pooledBuffers) {
+			_pooledBuffers._pool = pool;
+			_pooledBuffers._buffers.add(buffer);
+		}
+	}
+
+	/**
+	 * Register the value of a column that is still being computed in the
+	 * background, typically compressed by a {@link ValueCompressor}.
+	 *
+	 * @param column the column, which gets the value once it's computed
+	 * @param value the value, held in a buffer acquired from the given pool
+	 * @param pool the pool the value's buffer is acquired from
+	 */
+	public void addPending(Column column, Future<ByteBuffer> value, ByteBufferPool pool) {
+		if (_pending == null)
+			_pending = new ArrayList<PendingValue>(2);
+		_pending.add(new PendingValue(column, value, pool));
+	}
+
+	/**
+	 * Wait for the values still being computed and set them on their columns.
+	 * Must be called before the row is written.
+	 *
+	 * @throws IOException if a value couldn't be computed
+	 * @throws InterruptedException
+	 */
+	public void awaitPending() throws IOException, InterruptedException {
+		if (_pending == null)
+			return;
+
+		try {
+			while (!_pending.isEmpty()) {
+				PendingValue pending = _pending.get(0);
+				ByteBuffer value = pending._value.get();
+				_pending.remove(0);
+
+				retain(pending._pool, value);
+				_size += value.remaining() - pending._column.value.remaining();
+				pending._column.value = value;
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to compute a column value: " + e.getCause());
+		}
+	}
+
+	/**
+	 * Share the pooled buffers of another row, whose buffers also back some
+	 * of this row's column values. The buffers go back to their pool once
+	 * both rows are released.
+	 *
+	 * @param row the row holding the buffers
+	 */
+	public void share(RowMutation row) {
+		if (row._pooledBuffers == null)
+			row._pooledBuffers = new PooledBuffers(null);
+		row._pooledBuffers._references.incrementAndGet();
+		_pooledBuffers = row._pooledBuffers;
+	}
+
+	/**
+	 * Hand the pooled buffers retained by this row back to their pool, unless
+	 * they are shared with a row that wasn't released yet. The row must not be
+	 * written anymore afterwards.
+	 */
+	public void release() {
+		// Values computed in the background may still be reading the pooled buffers
+		while (_pending != null && !_pending.isEmpty()) {
+			PendingValue pending = _pending.remove(0);
+			try {
+				retain(pending._pool, pending._value.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				_pending.clear();
+			} catch (ExecutionException e) {
+				// Nothing to hand back
+			}
+		}
+
+		if (_pooledBuffers == null)
+			return;
+		if (_pooledBuffers._references.decrementAndGet() == 0) {
+			synchronized (_pooledBuffers) {
+				for (ByteBuffer buffer : _pooledBuffers._buffers) {
+					_pooledBuffers._pool.release(buffer);
+				}
+			}
+		}
+		_pooledBuffers = null;
+	}
+
+	/**
+	 * Adds the mutations of this row to a batch_mutate job, merging them with
+	 * any mutations already present for the same key. The row's mutations
+	 * may end up modified by the merge of other rows.
+	 *
+	 * @param job the batch_mutate job
+	 */
+	public void addTo(Map<ByteBuffer, Map<String, List<Mutation>>> job) {
+		Map<String, List<Mutation>> existing = job.get(_key);
+		if (existing == null) {
+			// Hand the row's own mutations over rather than copying them, rows
+			// with the same key coming later in the job are merged into them
+			job.put(_key, _mutations);
+			return;
+		}
+		for (Map.Entry<String, List<Mutation>> entry : _mutations.entrySet()) {
+			List<Mutation> mutations = existing.get(entry.getKey());
+			if (mutations == null) {
+				mutations = new ArrayList<Mutation>();
+				existing.put(entry.getKey(), mutations);
+			}
+			mutations.addAll(entry.getValue());
+		}
+	}
+
+	private static class PendingValue {
+		private final Column _column;
+		private final Future<ByteBuffer> _value;
+		private final ByteBufferPool _pool;
+
+		private PendingValue(Column column, Future<ByteBuffer> value, ByteBufferPool pool) {
+			this._column = column;
+			this._value = value;
+			this._pool = pool;
+		}
+	}
+
+	private static class PooledBuffers {
+		private ByteBufferPool _pool;
+		private final List<ByteBuffer> _buffers = new ArrayList<ByteBuffer>(2);
+		private final AtomicInteger _references = new AtomicInteger(1);
+
+		private PooledBuffers(ByteBufferPool pool) {
+			this._pool = pool;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package org.archive.io.cassandra;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.log4j.Logger;
+import org.archive.io.WriterPoolSettings;
+
+/**
+ * {@link StorageBackend} writing records to SSTables on local disk instead
+ * of sending them to the cluster, for bulk loads: the SSTables are
+ * streamed to the nodes with sstableloader afterwards, sparing them the
+ * commit log, memtables and compactions of live writes.
+ *
+ * Each column family is written by Cassandra's
+ * <code>SSTableSimpleUnsortedWriter</code>, which buffers rows in memory
+ * and writes them sorted. Files roll once about
+ * {@link WriterPoolSettings#getMaxFileSizeBytes()} were written to them,
+ * the next ones going to the next of the {@link WriterPoolSettings#getOutputDirs()},
+ * in a directory named after the keyspace as sstableloader expects.
+ *
+ * The writer only exists in Cassandra 0.8.2 and later, so it is looked up
+ * when the backend is created rather than linked against: the Cassandra
+ * jar and configuration on the crawler's classpath must be those of the
+ * cluster, with the same partitioner.
+ *
+ * Row removals can't be bulk loaded and are ignored, and since there is
+ * no cluster to read from, no row is ever found to exist.
+ *
+ * @author greglu
+ */
+public class SSTableBackend implements StorageBackend {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private static final String WRITER_CLASS = "org.apache.cassandra.io.sstable.SSTableSimpleUnsortedWriter";
+	private static final long MB = 1024 * 1024;
+
+	private final String _keyspace;
+	private final List<File> _directories;
+	private final long _maxFileSize;
+	private final Map<String, SSTableFile> _files = new HashMap<String, SSTableFile>();
+	private int _nextDirectory = 0;
+
+	private final Constructor<?> _constructor;
+	private final Method _newRow;
+	private final Method _addColumn;
+	private final Method _addExpiringColumn;
+	private final Method _close;
+
+	/**
+	 * @param pool the pool whose writers write through this backend, providing the output directories
+	 * and the size of the files
+	 * @throws IOException if there is no output directory, or Cassandra has no SSTable writer
+	 */
+	public SSTableBackend(CassandraWriterPool pool) throws IOException {
+		WriterPoolSettings settings = pool.getSettings();
+		this._keyspace = pool.getCassandraParameters().getKeyspace();
+		this._maxFileSize = settings.getMaxFileSizeBytes();
+		this._directories = new ArrayList<File>();
+		for (File directory : settings.getOutputDirs()) {
+			File keyspaceDirectory = new File(directory, _keyspace);
+			if (!keyspaceDirectory.isDirectory() && !keyspaceDirectory.mkdirs())
+				throw new IOException("Unable to create " + keyspaceDirectory);
+			_directories.add(keyspaceDirectory);
+		}
+		if (_directories.isEmpty())
+			throw new IOException("SSTables are written under the storePaths, none is set");
+
+		try {
+			Class<?> writer = Class.forName(WRITER_CLASS);
+			Class<?> type = Class.forName("org.apache.cassandra.db.marshal.AbstractType");
+			_constructor = writer.getConstructor(File.class, String.class, String.class, type, type, int.class);
+			_newRow = writer.getMethod("newRow", ByteBuffer.class);
+			_addColumn = writer.getMethod("addColumn", ByteBuffer.class, ByteBuffer.class, long.class);
+			_addExpiringColumn = writer.getMethod("addExpiringColumn", ByteBuffer.class, ByteBuffer.class,
+					long.class, int.class, long.class);
+			_close = writer.getMethod("close");
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Writing SSTables requires Cassandra 0.8.2 or later: " + e.getMessage(), e);
+		} catch (NoSuchMethodException e) {
+			throw new IOException("Unsupported SSTable writer: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Append the columns of each row to the SSTables of their column family. Never spills.
+	 */
+	public void writeRecord(Map<ByteBuffer, Map<String, List<Mutation>>> job, boolean spill)
+			throws IOException, InterruptedException {
+		for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : job.entrySet()) {
+			for (Map.Entry<String, List<Mutation>> columnFamily : row.getValue().entrySet()) {
+				getFile(columnFamily.getKey()).write(row.getKey(), columnFamily.getValue());
+			}
+		}
+	}
+
+	public WriteFuture writeRecordAsync(Map<ByteBuffer, Map<String, List<Mutation>>> job)
+			throws IOException, InterruptedException {
+		WriteFuture future = new WriteFuture();
+		writeRecord(job, true);
+		future.complete(null);
+		return future;
+	}
+
+	public boolean isAsync() {
+		return false;
+	}
+
+	/**
+	 * @return false, the rows written being only known once loaded
+	 */
+	public boolean exists(ByteBuffer key, String columnFamily, List<ByteBuffer> columnNames) {
+		return false;
+	}
+
+	/**
+	 * Roll every file, so that all the rows written so far are in complete SSTables.
+	 */
+	public void flush() throws InterruptedException {
+		for (SSTableFile file : getFiles()) {
+			try {
+				file.roll();
+			} catch (IOException e) {
+				LOG.error("Unable to write SSTable of " + file._columnFamily + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	public void close() {
+		try {
+			flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized SSTableFile getFile(String columnFamily) {
+		SSTableFile file = _files.get(columnFamily);
+		if (file == null) {
+			file = new SSTableFile(columnFamily);
+			_files.put(columnFamily, file);
+		}
+		return file;
+	}
+
+	private synchronized List<SSTableFile> getFiles() {
+		return new ArrayList<SSTableFile>(_files.values());
+	}
+
+	private synchronized File nextDirectory() {
+		File directory = _directories.get(_nextDirectory);
+		_nextDirectory = (_nextDirectory + 1) % _directories.size();
+		return directory;
+	}
+
+	private Object invoke(Method method, Object writer, Object... args) throws IOException {
+		try {
+			return method.invoke(writer, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause().toString(), e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * The SSTables of a column family, written one at a time by a single writer.
+	 */
+	private class SSTableFile {
+		private final String _columnFamily;
+		private Object _writer = null;
+		private long _size = 0;
+
+		private SSTableFile(String columnFamily) {
+			this._columnFamily = columnFamily;
+		}
+
+		private synchronized void write(ByteBuffer key, List<Mutation> mutations) throws IOException {
+			if (_writer == null)
+				open();
+
+			// The writer keeps the rows until the file rolls, long after the pooled buffers are reused
+			invoke(_newRow, _writer, copy(key));
+			_size += key.remaining();
+			for (Mutation mutation : mutations) {
+				if (mutation.isSetDeletion()) {
+					if (LOG.isDebugEnabled())
+						LOG.debug("Ignoring the removal of a row from " + _columnFamily);
+					continue;
+				}
+
+				Column column = mutation.getColumn_or_supercolumn().getColumn();
+				if (column.isSetTtl())
+					invoke(_addExpiringColumn, _writer, copy(column.name), copy(column.value),
+							column.timestamp, column.ttl, System.currentTimeMillis() + column.ttl * 1000L);
+				else
+					invoke(_addColumn, _writer, copy(column.name), copy(column.value), column.timestamp);
+				_size += column.name.remaining() + column.value.remaining();
+			}
+
+			if (_size >= _maxFileSize)
+				roll();
+		}
+
+		private void open() throws IOException {
+			File directory = nextDirectory();
+			// Sized so that the writer doesn't flush before the file rolls
+			int bufferSizeInMB = (int) Math.max(1, _maxFileSize / MB + 1);
+			try {
+				_writer = _constructor.newInstance(directory, _keyspace, _columnFamily,
+						BytesType.instance, null, bufferSizeInMB);
+			} catch (InvocationTargetException e) {
+				throw new IOException("Unable to write SSTables of " + _columnFamily + " to " + directory + ": " +
+						e.getCause(), e.getCause());
+			} catch (Exception e) {
+				throw new IOException("Unable to write SSTables of " + _columnFamily + " to " + directory + ": " + e, e);
+			}
+			if (LOG.isDebugEnabled())
+				LOG.debug("Writing SSTables of " + _columnFamily + " to " + directory);
+		}
+
+		/**
+		 * Write the buffered rows out as an SSTable. The next row opens a new one.
+		 */
+		private synchronized void roll() throws IOException {
+			if (_writer == null)
+				return;
+			try {
+				invoke(_close, _writer);
+			} finally {
+				_writer = null;
+				_size = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,444 @@
+package org.archive.io.cassandra;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.log4j.Logger;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+
+/**
+ * Append-only journal of the batch_mutate jobs that couldn't be written to
+ * Cassandra, kept in memory-mapped segment files until a
+ * {@link SpillReplayer} writes them back.
+ *
+ * Each record is a job serialized as the Thrift arguments of batch_mutate,
+ * preceded by its length and CRC32:
+ *
+ * <pre>
+ * [length][crc][batch_mutate_args]
+ * </pre>
+ *
+ * A zero length marks the end of the records of a segment. Segments are
+ * named <code>spill-&lt;id&gt;.journal</code> and deleted once replayed.
+ * When the journal is opened again, the records of the last segment are
+ * checked up to the first torn one, and appends resume from there.
+ *
+ * Once a job has been spilled, the journal is {@link #isSpilling() spilling}:
+ * writers append their jobs straight to it without trying Cassandra first,
+ * until the replayer manages to write to Cassandra again.
+ *
+ * @author greglu
+ */
+public class SpillJournal {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private static final String PREFIX = "spill-";
+	private static final String SUFFIX = ".journal";
+	private static final int HEADER_LENGTH = 8;
+
+	/**
+	 * A position in the journal.
+	 */
+	public static class Position {
+		private final long _segment;
+		private final int _offset;
+
+		public Position(long segment, int offset) {
+			this._segment = segment;
+			this._offset = offset;
+		}
+
+		public long getSegment() {
+			return _segment;
+		}
+
+		public int getOffset() {
+			return _offset;
+		}
+
+		@Override
+		public String toString() {
+			return _segment + ":" + _offset;
+		}
+	}
+
+	/**
+	 * Records read from the journal, to be committed once written to Cassandra.
+	 */
+	public static class Batch {
+		private final Map<ByteBuffer, Map<String, List<Mutation>>> _job;
+		private final int _records;
+		private final Position _end;
+
+		private Batch(Map<ByteBuffer, Map<String, List<Mutation>>> job, int records, Position end) {
+			this._job = job;
+			this._records = records;
+			this._end = end;
+		}
+
+		/**
+		 * @return the mutations of every record of the batch, for each row key and column family
+		 */
+		public Map<ByteBuffer, Map<String, List<Mutation>>> getJob() {
+			return _job;
+		}
+
+		public int getRecords() {
+			return _records;
+		}
+	}
+
+	private final File _directory;
+	private final int _segmentSize;
+	private final TSerializer _serializer = new TSerializer(new TBinaryProtocol.Factory());
+	private final CRC32 _crc = new CRC32();
+
+	private long _writeSegment;
+	private MappedByteBuffer _writeBuffer;
+	private long _readSegment;
+	private int _readOffset;
+	// Mapping of the segment being replayed, unless it is the one appended to
+	private MappedByteBuffer _readBuffer = null;
+	private long _readBufferSegment = -1;
+
+	private long _records = 0;
+	private volatile boolean _spilling = false;
+
+	/**
+	 * Open the journal kept in the given directory, resuming from its existing segments.
+	 *
+	 * @param directory the directory holding the segments
+	 * @param segmentSize size in bytes of a segment
+	 * @param readPosition where to resume reading from, as recorded by a checkpoint, or
+	 * null to read every remaining segment from its start
+	 * @throws IOException if the directory or a segment can't be opened
+	 */
+	public SpillJournal(File directory, int segmentSize, Position readPosition) throws IOException {
+		this._directory = directory;
+		this._segmentSize = segmentSize;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the spill journal directory " + directory);
+
+		long[] segments = listSegments();
+		if (segments.length == 0) {
+			_writeSegment = 0;
+			_writeBuffer = map(_writeSegment, segmentSize);
+			_readSegment = 0;
+			_readOffset = 0;
+			return;
+		}
+
+		_readSegment = segments[0];
+		_readOffset = 0;
+		if (readPosition != null && Arrays.binarySearch(segments, readPosition.getSegment()) >= 0) {
+			_readSegment = readPosition.getSegment();
+			_readOffset = readPosition.getOffset();
+		}
+
+		_writeSegment = segments[segments.length - 1];
+		_writeBuffer = map(_writeSegment, 0);
+		_writeBuffer.position(recover(_writeBuffer));
+
+		// Records left by a previous run make the cluster's state unknown until they're replayed
+		_spilling = !isEmpty();
+		LOG.info("Opened the spill journal in " + directory + " with " + segments.length +
+				" segment(s), reading from " + getReadPosition() + " and appending at " + getWritePosition());
+	}
+
+	/**
+	 * @return whether jobs go straight to the journal
+	 */
+	public boolean isSpilling() {
+		return _spilling;
+	}
+
+	/**
+	 * Have writers try Cassandra again, typically once the replayer wrote to it.
+	 */
+	public void recovered() {
+		if (_spilling)
+			LOG.info("Cassandra is back, writes no longer go to the spill journal");
+		_spilling = false;
+	}
+
+	/**
+	 * Append a job to the journal, and have the following ones appended too
+	 * until {@link #recovered()} is called.
+	 *
+	 * @param job the mutations for each row key and column family
+	 * @throws IOException if the job can't be serialized or written
+	 */
+	public synchronized void append(Map<ByteBuffer, Map<String, List<Mutation>>> job) throws IOException {
+		byte[] record;
+		try {
+			record = _serializer.serialize(new Cassandra.batch_mutate_args(job, ConsistencyLevel.ONE));
+		} catch (TException e) {
+			throw new IOException("Unable to serialize a job of " + job.size() + " row(s)", e);
+		}
+
+		// Keep room for the end marker
+		if (_writeBuffer.remaining() < HEADER_LENGTH + record.length + HEADER_LENGTH) {
+			_writeBuffer.force();
+			_writeSegment++;
+			_writeBuffer = map(_writeSegment, Math.max(_segmentSize, HEADER_LENGTH + record.length + HEADER_LENGTH));
+		}
+
+		_crc.reset();
+		_crc.update(record);
+		int start = _writeBuffer.position();
+		_writeBuffer.position(start + HEADER_LENGTH);
+		_writeBuffer.put(record);
+		// End marker, over whatever a torn record left
+		_writeBuffer.putLong(_writeBuffer.position(), 0);
+		// The length goes last, so that a torn record ends the segment
+		_writeBuffer.putInt(start + 4, (int) _crc.getValue());
+		_writeBuffer.putInt(start, record.length);
+
+		_records++;
+		if (!_spilling) {
+			_spilling = true;
+			LOG.warn("Spilling writes to the journal in " + _directory);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait for records to replay.
+	 *
+	 * @param timeout maximum time to wait in milliseconds
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitRecords(long timeout) throws InterruptedException {
+		if (isEmpty())
+			wait(timeout);
+	}
+
+	/**
+	 * Read the next records, merged into a single job, without moving past them.
+	 *
+	 * @param maxRecords the maximum number of records read
+	 * @return the records, or null if the journal is empty
+	 * @throws IOException if a segment can't be read
+	 */
+	public Batch read(int maxRecords) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		Position end;
+
+		// Only copy the records under the lock, and deserialize them outside of it
+		synchronized (this) {
+			long segment = _readSegment;
+			int offset = _readOffset;
+			while (records.size() < maxRecords) {
+				ByteBuffer buffer = readBuffer(segment);
+				int length = offset + HEADER_LENGTH <= buffer.limit() ? buffer.getInt(offset) : 0;
+				if (length == 0) {
+					if (segment >= _writeSegment)
+						break;
+					segment++;
+					offset = 0;
+					continue;
+				}
+
+				byte[] record = new byte[length];
+				ByteBuffer slice = buffer.duplicate();
+				slice.position(offset + HEADER_LENGTH);
+				slice.get(record);
+				records.add(record);
+				offset += HEADER_LENGTH + length;
+			}
+			end = new Position(segment, offset);
+		}
+
+		if (records.isEmpty())
+			return null;
+
+		TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
+		Map<ByteBuffer, Map<String, List<Mutation>>> job = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+		for (byte[] record : records) {
+			Cassandra.batch_mutate_args args = new Cassandra.batch_mutate_args();
+			try {
+				deserializer.deserialize(args, record);
+			} catch (TException e) {
+				throw new IOException("Corrupt spill journal record before " + end, e);
+			}
+			merge(args.getMutation_map(), job);
+		}
+		return new Batch(job, records.size(), end);
+	}
+
+	/**
+	 * Move past the records of a batch, deleting the segments fully replayed.
+	 */
+	public synchronized void commit(Batch batch) {
+		Position end = batch._end;
+		for (long segment = _readSegment; segment < end.getSegment(); segment++) {
+			File file = segmentFile(segment);
+			if (!file.delete())
+				LOG.warn("Unable to delete the replayed spill journal segment " + file);
+			_readBuffer = null;
+		}
+		_readSegment = end.getSegment();
+		_readOffset = end.getOffset();
+		_records = Math.max(0, _records - batch.getRecords());
+	}
+
+	/**
+	 * @return whether every record appended was replayed
+	 */
+	public synchronized boolean isEmpty() {
+		return _readSegment == _writeSegment && _readOffset == _writeBuffer.position();
+	}
+
+	/**
+	 * @return the position of the next record to replay
+	 */
+	public synchronized Position getReadPosition() {
+		return new Position(_readSegment, _readOffset);
+	}
+
+	/**
+	 * @return the position of the next record appended
+	 */
+	public synchronized Position getWritePosition() {
+		return new Position(_writeSegment, _writeBuffer.position());
+	}
+
+	/**
+	 * @return the number of records appended and not replayed yet since the journal was opened
+	 */
+	public synchronized long getPendingRecords() {
+		return _records;
+	}
+
+	/**
+	 * Flush the appended records to disk.
+	 */
+	public synchronized void sync() {
+		_writeBuffer.force();
+	}
+
+	public synchronized void close() {
+		sync();
+		notifyAll();
+	}
+
+	private void merge(Map<ByteBuffer, Map<String, List<Mutation>>> from, Map<ByteBuffer, Map<String, List<Mutation>>> to) {
+		for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : from.entrySet()) {
+			Map<String, List<Mutation>> mutations = to.get(row.getKey());
+			if (mutations == null) {
+				to.put(row.getKey(), row.getValue());
+				continue;
+			}
+			for (Map.Entry<String, List<Mutation>> family : row.getValue().entrySet()) {
+				List<Mutation> list = mutations.get(family.getKey());
+				if (list == null)
+					mutations.put(family.getKey(), family.getValue());
+				else
+					list.addAll(family.getValue());
+			}
+		}
+	}
+
+	private ByteBuffer readBuffer(long segment) throws IOException {
+		if (segment == _writeSegment)
+			return _writeBuffer;
+		if (_readBuffer == null || segment != _readBufferSegment) {
+			_readBuffer = map(segment, 0);
+			_readBufferSegment = segment;
+		}
+		return _readBuffer;
+	}
+
+	/**
+	 * @return the offset following the last intact record of the segment
+	 */
+	private int recover(MappedByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		int offset = 0;
+		while (offset + HEADER_LENGTH <= buffer.limit()) {
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + HEADER_LENGTH + length > buffer.limit())
+				break;
+
+			byte[] record = new byte[length];
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(offset + HEADER_LENGTH);
+			slice.get(record);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+				LOG.warn("Dropping the torn spill journal record at " + new Position(_writeSegment, offset));
+				break;
+			}
+			offset += HEADER_LENGTH + length;
+		}
+
+		// End marker, over whatever a torn record left
+		if (offset + HEADER_LENGTH <= buffer.limit())
+			buffer.putLong(offset, 0);
+		return offset;
+	}
+
+	/**
+	 * Map a segment, creating it with the given size if it doesn't exist.
+	 *
+	 * @param size the size of a new segment, or 0 to map an existing segment whole
+	 */
+	private MappedByteBuffer map(long segment, int size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+		try {
+			if (size > 0 && file.length() < size)
+				file.setLength(size);
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		} finally {
+			// The mapping outlives the file
+			file.close();
+		}
+	}
+
+	private File segmentFile(long segment) {
+		return new File(_directory, PREFIX + String.format("%016d", segment) + SUFFIX);
+	}
+
+	private long[] listSegments() {
+		String[] names = _directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+
+		List<Long> segments = new ArrayList<Long>();
+		for (String name : names) {
+			try {
+				segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+			} catch (NumberFormatException e) {
+				LOG.warn("Ignoring " + name + " in the spill journal directory");
+			}
+		}
+
+		long[] sorted = new long[segments.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = segments.get(i);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+}
@@ -0,0 +1,147 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.log4j.Logger;
+
+/**
+ * Background thread writing the records of a {@link SpillJournal} back to
+ * Cassandra, many records per batch_mutate call, through a dedicated
+ * {@link CassandraWriter} made by the given pool.
+ *
+ * A batch is only moved past once written. When it can't be, the replayer
+ * waits <code>intervalMs</code> before trying again. Its first successful
+ * write has crawler threads write to Cassandra again.
+ *
+ * When Cassandra rejects a batch, e.g. because a column family was dropped,
+ * retrying is pointless: its records are replayed one at a time instead, and
+ * those rejected on their own are logged and dropped, so that they don't hold
+ * back the records behind them.
+ *
+ * @author greglu
+ */
+public class SpillReplayer {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private final CassandraWriterPool _pool;
+	private final SpillJournal _journal;
+	private final int _batchRecords;
+	private final long _intervalMs;
+	private final Thread _thread;
+
+	private volatile boolean _running = true;
+
+	/**
+	 * @param pool the pool making the replayer's writer
+	 * @param journal the journal to replay
+	 * @param batchRecords maximum number of records combined into a single batch_mutate call
+	 * @param intervalMs time in milliseconds between two attempts while Cassandra can't be written to
+	 */
+	public SpillReplayer(CassandraWriterPool pool, SpillJournal journal, int batchRecords, long intervalMs) {
+		this._pool = pool;
+		this._journal = journal;
+		this._batchRecords = batchRecords;
+		this._intervalMs = intervalMs;
+
+		this._thread = new Thread(new Runnable() {
+			public void run() {
+				replayUntilClosed();
+			}
+		}, "CassandraSpillReplayer");
+		this._thread.setDaemon(true);
+		this._thread.start();
+	}
+
+	/**
+	 * Stop replaying. Records left in the journal are replayed once it is opened again.
+	 */
+	public void close() {
+		_running = false;
+		_thread.interrupt();
+	}
+
+	/**
+	 * Replay the given number of records one at a time, dropping those Cassandra rejects.
+	 */
+	private void replayOneByOne(CassandraWriter writer, int records) throws IOException, InterruptedException {
+		for (int i = 0; i < records && _running; i++) {
+			SpillJournal.Batch record = _journal.read(1);
+			if (record == null)
+				return;
+			try {
+				writer.submit(record.getJob(), false);
+			} catch (IOException e) {
+				if (!isRejected(e))
+					throw e;
+				LOG.error("Dropping a spilled record of " + record.getJob().size() + " row(s) at " +
+						_journal.getReadPosition() + ", rejected by Cassandra: " + e.getMessage());
+				_pool.getMetrics().droppedSpilled();
+			}
+			_journal.commit(record);
+		}
+	}
+
+	/**
+	 * @return whether Cassandra refused the write, which is then not worth retrying
+	 */
+	private static boolean isRejected(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof InvalidRequestException)
+				return true;
+		}
+		return false;
+	}
+
+	private void replayUntilClosed() {
+		CassandraWriter writer = null;
+		try {
+			while (_running) {
+				try {
+					SpillJournal.Batch batch = _journal.read(_batchRecords);
+					if (batch == null) {
+						_journal.awaitRecords(_intervalMs);
+						continue;
+					}
+
+					if (writer == null) {
+						writer = (CassandraWriter) _pool.makeWriter();
+						if (writer == null)
+							throw new IOException("Unable to create a writer for replaying");
+					}
+
+					try {
+						writer.submit(batch.getJob(), false);
+						_journal.commit(batch);
+					} catch (IOException e) {
+						if (!isRejected(e))
+							throw e;
+						replayOneByOne(writer, batch.getRecords());
+					}
+					_journal.recovered();
+					if (LOG.isDebugEnabled())
+						LOG.debug("Replayed " + batch.getRecords() + " spilled record(s), up to " + _journal.getReadPosition());
+				} catch (InterruptedException e) {
+					if (_running)
+						LOG.warn("Spill replayer interrupted");
+				} catch (Exception e) {
+					LOG.warn("Unable to replay the spill journal, trying again in " + _intervalMs + " ms: " + e.getMessage());
+					try {
+						Thread.sleep(_intervalMs);
+					} catch (InterruptedException ie) {
+						// Closed
+					}
+				}
+			}
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					LOG.debug("Exception in closing replayer writer", e);
+				}
+			}
+		}
+	}
+}
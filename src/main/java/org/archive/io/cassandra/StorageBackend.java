@@ -0,0 +1,82 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Mutation;
+
+/**
+ * The wire between the writers of a {@link CassandraWriterPool} and the
+ * cluster, shared by all the writers of the pool.
+ *
+ * Records are handed over as batch_mutate jobs: the mutations of each row
+ * key, grouped by column family. Thrift structures merely describe the
+ * columns to write and the rows to remove here, each backend translating
+ * them to its own protocol. Row removals travel as {@link Mutation}s
+ * holding a deletion, so that they're batched along with the writes.
+ *
+ * @see StorageBackendType
+ * @author greglu
+ */
+public interface StorageBackend {
+
+	/**
+	 * Write records, waiting for them to be written.
+	 *
+	 * Rows whose write fails are retried at most
+	 * {@link CassandraParameters#getRetryBudget()} times. When the pool has a
+	 * {@link SpillJournal}, rows that can't be written are appended to it
+	 * instead, and so is the whole job while the journal is spilling.
+	 *
+	 * @param job mutations for each row key and column family
+	 * @param spill whether rows that can't be written go to the pool's {@link SpillJournal}, if any
+	 * @throws IOException if some rows couldn't be written within the retry budget, nor spilled
+	 * @throws InterruptedException
+	 */
+	void writeRecord(Map<ByteBuffer, Map<String, List<Mutation>>> job, boolean spill)
+			throws IOException, InterruptedException;
+
+	/**
+	 * Write records without waiting for them to be written if the backend
+	 * {@link #isAsync() is asynchronous}, like {@link #writeRecord(Map, boolean)} otherwise.
+	 *
+	 * @param job mutations for each row key and column family, not to be modified until written
+	 * @return the pending write of the job, failing with an {@link IOException} if some rows
+	 * couldn't be written within the retry budget, nor spilled
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	WriteFuture writeRecordAsync(Map<ByteBuffer, Map<String, List<Mutation>>> job)
+			throws IOException, InterruptedException;
+
+	/**
+	 * @return whether {@link #writeRecordAsync(Map)} returns before the records are written
+	 */
+	boolean isAsync();
+
+	/**
+	 * @param key the row key
+	 * @param columnFamily the column family
+	 * @param columnNames the columns looked for
+	 * @return whether the row holds any of the given columns
+	 * @throws IOException if the cluster couldn't be read
+	 * @throws InterruptedException
+	 */
+	boolean exists(ByteBuffer key, String columnFamily, List<ByteBuffer> columnNames)
+			throws IOException, InterruptedException;
+
+	/**
+	 * Wait for every record submitted with {@link #writeRecordAsync(Map)} to be written,
+	 * spilled or given up on.
+	 *
+	 * @throws InterruptedException
+	 */
+	void flush() throws InterruptedException;
+
+	/**
+	 * Close the connections to the cluster. Records still in flight fail.
+	 */
+	void close();
+}
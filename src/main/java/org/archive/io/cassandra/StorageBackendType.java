@@ -0,0 +1,27 @@
+package org.archive.io.cassandra;
+
+/**
+ * The {@link StorageBackend}s a {@link CassandraWriterPool} writes through.
+ *
+ * @author greglu
+ */
+public enum StorageBackendType {
+
+	/**
+	 * Thrift batch_mutate calls, routed to the replicas of each row, see {@link ThriftBackend}.
+	 */
+	THRIFT,
+
+	/**
+	 * Prepared statements over the native protocol, executed asynchronously
+	 * by a token-aware driver, see {@link NativeBackend}. Requires Cassandra
+	 * 1.2 or later, the column families being read as compact tables.
+	 */
+	NATIVE,
+
+	/**
+	 * SSTables written to local disk, bulk loaded into the cluster with
+	 * sstableloader afterwards, see {@link SSTableBackend}.
+	 */
+	SSTABLE;
+}
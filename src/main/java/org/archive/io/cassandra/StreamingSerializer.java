@@ -0,0 +1,39 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serializes column values incrementally, as a chain of output streams,
+ * instead of taking and returning whole arrays like {@link Serializer}.
+ *
+ * The writer writes the raw value to the stream returned by
+ * {@link #wrap(ColumnType, OutputStream)} and closes it; the serialized
+ * bytes written to the underlying stream are stored in the column. Large
+ * recorded values are streamed straight from the recorder this way, so
+ * implementations based on the JDK's filter streams (CipherOutputStream,
+ * DeflaterOutputStream, DataOutputStream for framing...) never hold an
+ * extra copy of the value.
+ *
+ * Implementations must be thread-safe, as they are shared by all the writers.
+ *
+ * @author greglu
+ */
+public interface StreamingSerializer {
+
+	/**
+	 * @param type a column type
+	 * @return whether values of this column type are serialized, or stored as is
+	 */
+	public boolean appliesTo(ColumnType type);
+
+	/**
+	 * @param type the type of the column being written
+	 * @param out the stream the serialized value must be written to; closing the
+	 * returned stream must flush everything to it
+	 * @return the stream the raw value will be written to
+	 * @throws IOException
+	 */
+	public OutputStream wrap(ColumnType type, OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,455 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.apache.log4j.Logger;
+import org.apache.thrift.TException;
+
+/**
+ * {@link StorageBackend} writing through Thrift batch_mutate calls.
+ *
+ * The rows of a job are grouped by the endpoint they're sent to: with
+ * token-aware routing, the first live replica of their key, otherwise any
+ * live endpoint of the ring. Rows whose write fails are sent again to the
+ * next live endpoint after an exponentially growing pause.
+ *
+ * Blocking calls go through the pool's {@link ConnectionPool}, limited by
+ * its {@link WriteConcurrencyLimiter} and hedged by a {@link WriteHedger}
+ * if enabled. Asynchronous calls go through an {@link AsyncConnectionPool}.
+ *
+ * @author greglu
+ */
+public class ThriftBackend implements StorageBackend {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private final CassandraWriterPool _pool;
+	private final CassandraParameters _parameters;
+	private final ConnectionPool _connectionPool;
+	private WriteHedger _writeHedger = null;
+	private AsyncConnectionPool _asyncConnectionPool = null;
+
+	/**
+	 * @param pool the pool whose writers write through this backend, providing the token ring
+	 * @param connectionPool the blocking connections to the endpoints
+	 * @throws IOException if the asynchronous client couldn't be started
+	 */
+	public ThriftBackend(CassandraWriterPool pool, ConnectionPool connectionPool) throws IOException {
+		this._pool = pool;
+		this._parameters = pool.getCassandraParameters();
+		this._connectionPool = connectionPool;
+		if (_parameters.isHedgedWrites())
+			_writeHedger = new WriteHedger(_parameters, pool.getMetrics());
+		if (_parameters.isAsyncWrites())
+			_asyncConnectionPool = new AsyncConnectionPool(_parameters, connectionPool, pool.getMetrics());
+	}
+
+	/**
+	 * @return the hedger of the slow writes, or null if they aren't hedged
+	 */
+	public WriteHedger getWriteHedger() {
+		return _writeHedger;
+	}
+
+	/**
+	 * @return the non-blocking connections of the asynchronous writes, or null if writes are synchronous
+	 */
+	public AsyncConnectionPool getAsyncConnectionPool() {
+		return _asyncConnectionPool;
+	}
+
+	public void writeRecord(Map<ByteBuffer, Map<String, List<Mutation>>> job, boolean spill)
+			throws IOException, InterruptedException {
+		Map<ByteBuffer, Map<String, List<Mutation>>> removals = splitRemovals(job);
+		if (removals != null) {
+			writeRecord(removals, spill);
+			writeRecord(job, spill);
+			return;
+		}
+
+		SpillJournal journal = spill ? _pool.getSpillJournal() : null;
+		if (journal != null && journal.isSpilling()) {
+			journal.append(job);
+			_pool.getMetrics().spilled(job.size());
+			return;
+		}
+
+		long backoff = _parameters.getRetryBackoff();
+		Map<ByteBuffer, Map<String, List<Mutation>>> pending = job;
+
+		for (int attempt = 0; ; attempt++) {
+			Map<ByteBuffer, Map<String, List<Mutation>>> failed = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+			Exception lastError = null;
+
+			for (Map.Entry<String, Map<ByteBuffer, Map<String, List<Mutation>>>> routed : route(pending).entrySet()) {
+				if (journal != null && routed.getKey() == null) {
+					// No point in waiting for a node to come back
+					journal.append(routed.getValue());
+					_pool.getMetrics().spilled(routed.getValue().size());
+					continue;
+				}
+
+				Exception error = execute(routed.getKey(), routed.getValue());
+				if (error != null) {
+					failed.putAll(routed.getValue());
+					lastError = error;
+				}
+			}
+
+			if (failed.isEmpty())
+				return;
+
+			if (attempt >= _parameters.getRetryBudget() && journal != null) {
+				LOG.warn("Spilling " + failed.size() + " row(s) after " + (attempt + 1) + " attempts: " +
+						lastError.getMessage());
+				journal.append(failed);
+				_pool.getMetrics().spilled(failed.size());
+				return;
+			}
+
+			if (attempt >= _parameters.getRetryBudget())
+				throw new IOException("Giving up on writing " + failed.size() + " row(s) after " + (attempt + 1) +
+						" attempts: " + lastError.getMessage(), lastError);
+
+			_pool.getMetrics().retried(failed.size());
+			Thread.sleep(backoff);
+			backoff = Math.min(backoff * 2, _parameters.getRetryBackoffMax());
+			pending = failed;
+		}
+	}
+
+	/**
+	 * Write records through the {@link AsyncConnectionPool}, the pauses between
+	 * attempts being scheduled rather than slept. Without it, records are written
+	 * before returning.
+	 */
+	public WriteFuture writeRecordAsync(Map<ByteBuffer, Map<String, List<Mutation>>> job)
+			throws IOException, InterruptedException {
+		Map<ByteBuffer, Map<String, List<Mutation>>> removals = splitRemovals(job);
+		if (removals != null)
+			return WriteFuture.all(Arrays.asList(writeRecordAsync(removals), writeRecordAsync(job)));
+
+		if (_asyncConnectionPool == null) {
+			WriteFuture future = new WriteFuture();
+			writeRecord(job, true);
+			future.complete(null);
+			return future;
+		}
+
+		_asyncConnectionPool.submissionStarted();
+		return new AsyncSubmission(_pool, true, _asyncConnectionPool.getScheduler(),
+				_asyncConnectionPool.getExecutor()) {
+			@Override
+			protected void send(Map<ByteBuffer, Map<String, List<Mutation>>> rows, final int attempt,
+					final long backoff) throws InterruptedException {
+				for (Map.Entry<String, Map<ByteBuffer, Map<String, List<Mutation>>>> routed : route(rows).entrySet()) {
+					final Map<ByteBuffer, Map<String, List<Mutation>>> call = routed.getValue();
+					called();
+					if (routed.getKey() == null) {
+						failed(call, new TException("No live endpoint to write to"), false, attempt, backoff);
+						continue;
+					}
+
+					_asyncConnectionPool.batchMutate(routed.getKey(), call, getConsistencyLevel(_parameters, call),
+							new AsyncConnectionPool.Callback() {
+						public void onSuccess() {
+							succeeded();
+						}
+
+						public void onError(Exception e) {
+							failed(call, e, true, attempt, backoff);
+						}
+					});
+				}
+			}
+
+			@Override
+			protected void finished() {
+				_asyncConnectionPool.submissionFinished();
+			}
+		}.start(job);
+	}
+
+	public boolean isAsync() {
+		return _asyncConnectionPool != null;
+	}
+
+	public boolean exists(ByteBuffer key, String columnFamily, List<ByteBuffer> columnNames)
+			throws IOException, InterruptedException {
+		Connection connection;
+		try {
+			connection = _pool.borrowConnection(key);
+		} catch (TException e) {
+			throw new IOException(e.getMessage(), e);
+		} catch (InvalidRequestException e) {
+			throw new IOException(e.getWhy(), e);
+		}
+
+		try {
+			SlicePredicate predicate = new SlicePredicate();
+			predicate.setColumn_names(columnNames);
+			boolean exists = !connection.getClient().get_slice(key, new ColumnParent(columnFamily), predicate,
+					_parameters.getReadConsistencyLevel()).isEmpty();
+			_connectionPool.release(connection);
+			return exists;
+		} catch (Exception e) {
+			_connectionPool.invalidate(connection);
+			throw new IOException("Unable to read from " + connection.getHost() + ": " + e.getMessage(), e);
+		}
+	}
+
+	public void flush() throws InterruptedException {
+		if (_asyncConnectionPool != null)
+			_asyncConnectionPool.awaitSubmissions();
+	}
+
+	public void close() {
+		if (_asyncConnectionPool != null) {
+			try {
+				// Failed writes may still need the spill journal
+				_asyncConnectionPool.awaitSubmissions();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (_writeHedger != null)
+			_writeHedger.close();
+		if (_asyncConnectionPool != null)
+			_asyncConnectionPool.close();
+	}
+
+	/**
+	 * Send a batch_mutate call to the given endpoint. With a {@link WriteHedger},
+	 * the call is sent again to another live endpoint if it takes longer than
+	 * usual, and the first call to succeed wins.
+	 *
+	 * @return null on success, or the exception that made the call fail
+	 * @throws IOException if the call was rejected as invalid and shouldn't be retried
+	 * @throws InterruptedException
+	 */
+	private Exception execute(String endPoint, Map<ByteBuffer, Map<String, List<Mutation>>> job)
+			throws IOException, InterruptedException {
+		WriteHedger hedger = _writeHedger;
+		if (hedger == null || endPoint == null)
+			return mutate(endPoint, job, null);
+
+		long delay = hedger.getDelay(endPoint);
+		String alternate = delay < 0 ? null : getAlternate(endPoint, job);
+		if (alternate == null)
+			return mutate(endPoint, job, null);
+
+		WriteHedger.Guard guard = new WriteHedger.Guard();
+		CompletionService<Exception> calls = new ExecutorCompletionService<Exception>(hedger.getExecutor());
+		try {
+			calls.submit(mutation(endPoint, job, guard));
+			Future<Exception> first = calls.poll(delay, TimeUnit.NANOSECONDS);
+			if (first != null)
+				return outcome(first);
+
+			_pool.getMetrics().hedged();
+			calls.submit(mutation(alternate, job, guard));
+			Exception error = outcome(calls.take());
+			if (error == null)
+				return null;
+			return outcome(calls.take());
+		} finally {
+			// The rows may be released once this returns: the slower call mustn't send them any more
+			guard.finish();
+		}
+	}
+
+	/**
+	 * @return the first live endpoint of the job's first row other than the given one, if any
+	 */
+	private String getAlternate(String endPoint, Map<ByteBuffer, Map<String, List<Mutation>>> job)
+			throws InterruptedException {
+		for (String candidate : _pool.getCandidates(job.keySet().iterator().next())) {
+			if (!candidate.equals(endPoint))
+				return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * Move the rows removing anything out of a job that also writes other rows, so that
+	 * each part is written at its own consistency level, see {@link #getConsistencyLevel}.
+	 * Write-behind batches and spill replays mix both.
+	 *
+	 * @param job the job, left with the rows only writing columns
+	 * @return the rows removing anything, or null if the job doesn't mix both
+	 */
+	static Map<ByteBuffer, Map<String, List<Mutation>>> splitRemovals(Map<ByteBuffer, Map<String, List<Mutation>>> job) {
+		Map<ByteBuffer, Map<String, List<Mutation>>> removals = null;
+		for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : job.entrySet()) {
+			if (isRemoval(row.getValue())) {
+				if (removals == null)
+					removals = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+				removals.put(row.getKey(), row.getValue());
+			}
+		}
+		if (removals == null || removals.size() == job.size())
+			return null;
+		job.keySet().removeAll(removals.keySet());
+		return removals;
+	}
+
+	private static boolean isRemoval(Map<String, List<Mutation>> row) {
+		for (List<Mutation> mutations : row.values()) {
+			for (Mutation mutation : mutations) {
+				if (mutation.isSetDeletion())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the delete consistency level if the job removes anything, the write consistency level otherwise
+	 */
+	static ConsistencyLevel getConsistencyLevel(CassandraParameters parameters,
+			Map<ByteBuffer, Map<String, List<Mutation>>> job) {
+		for (Map<String, List<Mutation>> row : job.values()) {
+			if (isRemoval(row))
+				return parameters.getDeleteConsistencyLevel();
+		}
+		return parameters.getWriteConsistencyLevel();
+	}
+
+	private Callable<Exception> mutation(final String endPoint, final Map<ByteBuffer, Map<String, List<Mutation>>> job,
+			final WriteHedger.Guard guard) {
+		return new Callable<Exception>() {
+			public Exception call() throws Exception {
+				return mutate(endPoint, job, guard);
+			}
+		};
+	}
+
+	private static Exception outcome(Future<Exception> call) throws IOException, InterruptedException {
+		try {
+			return call.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof Exception)
+				return (Exception) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Send a batch_mutate call to the given endpoint, once the pool's
+	 * {@link WriteConcurrencyLimiter}, if any, lets it through.
+	 *
+	 * @param guard the guard of the hedged call this call races with, if any
+	 * @return null on success or when the race was over before the call was sent,
+	 * or the exception that made the call fail
+	 * @throws IOException if the call was rejected as invalid and shouldn't be retried
+	 * @throws InterruptedException
+	 */
+	private Exception mutate(String endPoint, Map<ByteBuffer, Map<String, List<Mutation>>> job,
+			WriteHedger.Guard guard) throws IOException, InterruptedException {
+		if (endPoint == null)
+			return new TException("No live endpoint to write to");
+
+		WriteConcurrencyLimiter limiter = _pool.getConcurrencyLimiter();
+		if (limiter != null && !limiter.acquire(endPoint)) {
+			LOG.warn("Gave up waiting to write " + job.size() + " row(s) to " + endPoint + " after " +
+					_parameters.getWriteConcurrencyMaxWait() + " ms");
+			return new TimedOutException();
+		}
+
+		WriteConcurrencyLimiter.Outcome outcome = WriteConcurrencyLimiter.Outcome.DROPPED;
+		boolean sent = true;
+		long start = 0;
+		Connection connection = null;
+		try {
+			connection = _connectionPool.borrow(endPoint);
+			start = System.nanoTime();
+			Cassandra.Client client = connection.getClient();
+			ConsistencyLevel level = getConsistencyLevel(_parameters, job);
+			if (guard == null) {
+				client.batch_mutate(job, level);
+			} else if (guard.send(client, job, level)) {
+				client.recv_batch_mutate();
+			} else {
+				// The other call won before this one was sent
+				sent = false;
+				outcome = WriteConcurrencyLimiter.Outcome.IGNORED;
+				_connectionPool.release(connection);
+				return null;
+			}
+			outcome = WriteConcurrencyLimiter.Outcome.SUCCESS;
+			_connectionPool.release(connection);
+			return null;
+		} catch (InvalidRequestException e) {
+			outcome = WriteConcurrencyLimiter.Outcome.IGNORED;
+			// Also thrown by borrow, when the keyspace can't be set on a new connection
+			if (connection != null)
+				_connectionPool.release(connection);
+			throw new IOException("Cassandra rejected the write of " + job.size() + " row(s): " + e.getWhy(), e);
+		} catch (TimedOutException e) {
+			_connectionPool.release(connection);
+			LOG.warn("Timed out writing " + job.size() + " row(s) to " + endPoint);
+			return e;
+		} catch (UnavailableException e) {
+			_connectionPool.release(connection);
+			LOG.warn("Not enough replicas available to write " + job.size() + " row(s) through " + endPoint);
+			return e;
+		} catch (TException e) {
+			LOG.error("The following exception was encountered while writing " + job.size() + " row(s) to " +
+					endPoint + ":\n" + e.getMessage());
+			if (connection != null)
+				_connectionPool.invalidate(connection);
+			_pool.invalidateTokenRing();
+			return e;
+		} finally {
+			long latency = start == 0 ? 0 : System.nanoTime() - start;
+			if (limiter != null)
+				limiter.release(endPoint, latency, outcome);
+			if (sent)
+				_pool.getMetrics().batchMutate(endPoint, latency,
+						outcome != WriteConcurrencyLimiter.Outcome.SUCCESS);
+		}
+	}
+
+	/**
+	 * Group the rows of a job by the endpoint they'll be sent to. Rows without any
+	 * live endpoint are grouped under a null endpoint.
+	 */
+	private Map<String, Map<ByteBuffer, Map<String, List<Mutation>>>> route(
+			Map<ByteBuffer, Map<String, List<Mutation>>> job) throws InterruptedException {
+		Map<String, Map<ByteBuffer, Map<String, List<Mutation>>>> routed =
+			new HashMap<String, Map<ByteBuffer, Map<String, List<Mutation>>>>();
+		for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : job.entrySet()) {
+			List<String> candidates = _pool.getCandidates(row.getKey());
+			String endPoint = candidates.isEmpty() ? null : candidates.get(0);
+
+			Map<ByteBuffer, Map<String, List<Mutation>>> rows = routed.get(endPoint);
+			if (rows == null) {
+				rows = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+				routed.put(endPoint, rows);
+			}
+			rows.put(row.getKey(), row.getValue());
+		}
+		return routed;
+	}
+}
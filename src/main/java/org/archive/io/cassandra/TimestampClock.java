@@ -0,0 +1,59 @@
+package org.archive.io.cassandra;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the microsecond timestamps of the columns written by the writers
+ * of a pool.
+ *
+ * Cassandra keeps the column with the highest timestamp, and settles ties
+ * by comparing values, so two writes of a row within the same millisecond
+ * shouldn't share a timestamp. Fetch times are refined with a sequence
+ * number wrapping every 1000 rows, and write times are made strictly
+ * increasing.
+ *
+ * @author greglu
+ */
+public class TimestampClock {
+
+	private static final int MICROS_PER_MILLI = 1000;
+
+	private final TimestampSource _source;
+	private final AtomicInteger _sequence = new AtomicInteger();
+	private final AtomicLong _last = new AtomicLong();
+
+	public TimestampClock(TimestampSource source) {
+		this._source = source;
+	}
+
+	/**
+	 * @param fetchTime the time in milliseconds the url was fetched at
+	 * @return the timestamp of the columns of the url, from the configured source
+	 */
+	public long timestamp(long fetchTime) {
+		return _source == TimestampSource.WRITE_TIME ? currentTimestamp() : fetchTimestamp(fetchTime);
+	}
+
+	/**
+	 * @param fetchTime a time in milliseconds
+	 * @return the time in microseconds, with a sequence number as microseconds
+	 */
+	public long fetchTimestamp(long fetchTime) {
+		int sequence = (_sequence.getAndIncrement() & Integer.MAX_VALUE) % MICROS_PER_MILLI;
+		return fetchTime * MICROS_PER_MILLI + sequence;
+	}
+
+	/**
+	 * @return the current time in microseconds, greater than any timestamp returned before
+	 */
+	public long currentTimestamp() {
+		long now = System.currentTimeMillis() * MICROS_PER_MILLI;
+		while (true) {
+			long last = _last.get();
+			long next = Math.max(now, last + 1);
+			if (_last.compareAndSet(last, next))
+				return next;
+		}
+	}
+}
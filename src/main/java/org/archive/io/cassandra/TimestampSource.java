@@ -0,0 +1,23 @@
+package org.archive.io.cassandra;
+
+/**
+ * Sources of the timestamps of the columns written, made by a {@link TimestampClock}.
+ *
+ * @author greglu
+ */
+public enum TimestampSource {
+
+	/**
+	 * The time the url was fetched at. Heritrix only keeps it in milliseconds:
+	 * the microseconds are a sequence number, so that rows written within the
+	 * same millisecond don't end up with the same timestamp.
+	 */
+	FETCH_TIME,
+
+	/**
+	 * The time the row is written at, strictly increasing across all the
+	 * writers of a pool. A newer write of a row always wins, even if its url
+	 * was fetched earlier.
+	 */
+	WRITE_TIME;
+}
@@ -0,0 +1,121 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.thrift.TException;
+
+/**
+ * Snapshot of the token ring of a keyspace, as returned by describe_ring,
+ * used to find the replicas of a row key.
+ *
+ * Each token range <code>(start, end]</code> is indexed by its end token,
+ * so the replicas of a key are those of the first range whose end token
+ * is greater than or equal to the key's token, wrapping around the ring.
+ *
+ * @author greglu
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class TokenRing {
+
+	private final IPartitioner _partitioner;
+	private final TreeMap<Token, List<String>> _ranges = new TreeMap<Token, List<String>>();
+	private final Set<String> _endPoints = new HashSet<String>();
+	private volatile long _checkedAt = System.currentTimeMillis();
+
+	public TokenRing(IPartitioner partitioner, List<TokenRange> ranges) {
+		this._partitioner = partitioner;
+
+		Token.TokenFactory factory = partitioner.getTokenFactory();
+		for (TokenRange range : ranges) {
+			_ranges.put(factory.fromString(range.getEnd_token()), range.getEndpoints());
+			_endPoints.addAll(range.getEndpoints());
+		}
+	}
+
+	/**
+	 * Fetch the ring of the given keyspace.
+	 *
+	 * @param client a client connected to any node of the cluster
+	 * @param keyspace the keyspace
+	 * @return the token ring
+	 * @throws InvalidRequestException
+	 * @throws TException
+	 */
+	public static TokenRing describe(Cassandra.Client client, String keyspace)
+	throws InvalidRequestException, TException {
+		List<TokenRange> ranges = client.describe_ring(keyspace);
+		return new TokenRing(newPartitioner(client.describe_partitioner()), ranges);
+	}
+
+	private static IPartitioner newPartitioner(String className) throws TException {
+		try {
+			return (IPartitioner) Class.forName(className).newInstance();
+		} catch (Exception e) {
+			throw new TException("Unable to instantiate partitioner " + className, e);
+		}
+	}
+
+	public IPartitioner getPartitioner() {
+		return _partitioner;
+	}
+
+	/**
+	 * @return all the endpoints holding a replica of any range
+	 */
+	public Set<String> getEndPoints() {
+		return Collections.unmodifiableSet(_endPoints);
+	}
+
+	/**
+	 * @param maxAge maximum age in milliseconds
+	 * @return whether this snapshot is older than maxAge or was invalidated
+	 */
+	public boolean isExpired(long maxAge) {
+		return System.currentTimeMillis() - _checkedAt > maxAge;
+	}
+
+	/**
+	 * Mark this snapshot as expired, regardless of its age.
+	 */
+	public void invalidate() {
+		_checkedAt = 0;
+	}
+
+	/**
+	 * Keep on using this snapshot for another period, typically because
+	 * the ring couldn't be fetched again.
+	 */
+	public void renew() {
+		_checkedAt = System.currentTimeMillis();
+	}
+
+	public Token getToken(ByteBuffer key) {
+		return _partitioner.getToken(key.duplicate());
+	}
+
+	/**
+	 * @param key the row key
+	 * @return the endpoints holding a replica of the key, or an empty list if the ring is empty
+	 */
+	public List<String> getReplicas(ByteBuffer key) {
+		if (_ranges.isEmpty())
+			return Collections.emptyList();
+
+		Map.Entry<Token, List<String>> range = _ranges.ceilingEntry(getToken(key));
+		if (range == null)
+			range = _ranges.firstEntry();
+
+		return range.getValue();
+	}
+}
@@ -19,15 +19,28 @@
  */
 package org.archive.io.cassandra;
 
-import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Utility creating key names from URLs.
  *
  * Shamelessly lifted from HBase's org.apache.hadoop.hbase.util.Keying
  *
+ * <p>URLs are parsed by a hand-written scanner equivalent to the regular
+ * expression <code>^([^:/?#]+://(?:[^/?#@]+@)?)([^:/?#]+)(.*)$</code>,
+ * and reversed hostnames are kept in a small cache, as crawls keep on
+ * visiting the same hosts.</p>
+ *
+ * <p>Row keys are either the textual transform of {@link #createKey(String)}
+ * or the compact binary form of {@link #createBinaryKey(String)},
+ * according to {@link CassandraParameters#getKeyFormat()}, prefixed
+ * according to {@link CassandraParameters#getKeyLayout()}.</p>
+ *
  * <p>TODO: Add createSchemeless key, a key that doesn't care if scheme is
  * http or https.
  */
@@ -35,8 +48,19 @@ public class UrlKey {
 
 	private static final String SCHEME = "r:";
 
-	private static final Pattern URI_RE_PARSER =
-		Pattern.compile("^([^:/?#]+://(?:[^/?#@]+@)?)([^:/?#]+)(.*)$");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Scheme bytes of binary keys. Binary keys of the well-known schemes
+	// imply their "scheme://" prefix, provided the URL has no userinfo.
+	private static final byte RAW_SCHEME = 0;
+	private static final byte OTHER_SCHEME = 1;
+	private static final String[] KNOWN_SCHEMES = { null, null, "http://", "https://", "ftp://", "whois://" };
+
+	private static final int HOST_CACHE_SIZE = 8192; // Must be a power of two
+
+	// Direct-mapped cache of reversed hostnames. Entries are immutable, so
+	// racing threads at worst compute the same entry twice.
+	private static final ReversedHost[] HOST_CACHE = new ReversedHost[HOST_CACHE_SIZE];
 
 	/**
 	 * Makes a key out of passed URI for use as row name or column qualifier.
@@ -67,13 +91,102 @@ public class UrlKey {
 			throw new IllegalArgumentException("Starts with " + SCHEME);
 		}
 
-		Matcher m = getMatcher(u);
-		if (m == null || !m.matches()) {
+		int hostStart = hostStart(u, 0);
+		if (hostStart == -1) {
 			// If no match, return original String.
 			return u;
 		}
 
-		return SCHEME + m.group(1) + reverseHostname(m.group(2)) + m.group(3);
+		int hostEnd = hostEnd(u, hostStart);
+		String host = reverseHostname(u, hostStart, hostEnd);
+		return new StringBuilder(SCHEME.length() + u.length())
+			.append(SCHEME).append(u, 0, hostStart).append(host).append(u, hostEnd, u.length()).toString();
+	}
+
+	/**
+	 * Makes the row key of the passed URI, as stored in Cassandra.
+	 *
+	 * With an ASCII compatible encoding scheme, the key of an ASCII URL is
+	 * written straight into the returned buffer, without building the key
+	 * as a String first.
+	 *
+	 * @param u URL to transform.
+	 * @param parameters the parameters holding the format, layout and encoding scheme of the keys
+	 * @return the {@link #createKey(String)} transform of the URL, encoded with the
+	 * configured encoding scheme, or the {@link #createBinaryKey(String)}
+	 * encoding of the URL with the {@link KeyFormat#BINARY} key format, behind
+	 * the prefix of the key layout.
+	 */
+	public static ByteBuffer createRowKey(final String u, final CassandraParameters parameters) {
+		KeyLayout layout = parameters.getKeyLayout();
+		byte[] key = createRowKey(u, parameters, layout.getPrefixLength());
+		putLayoutPrefix(u, key, layout, parameters.getKeySaltBuckets());
+		return ByteBuffer.wrap(key);
+	}
+
+	/**
+	 * Makes the row key prefixes shared by the rows of the URLs starting with
+	 * the passed URL, one for each range of keys they are spread over. With
+	 * an ordered partitioner, a scan of each range starting at its prefix
+	 * goes through these rows.
+	 *
+	 * The prefix URL should at least hold the host, as in
+	 * <code>http://www.example.com/</code>.
+	 *
+	 * @param u URL prefix
+	 * @param parameters the parameters holding the format, layout and encoding scheme of the keys
+	 * @return one prefix for the {@link KeyLayout#PLAIN} and {@link KeyLayout#HOST_HASH}
+	 * layouts, one prefix per bucket for the {@link KeyLayout#SALT_BUCKETS} layout
+	 * @throws IllegalStateException with the {@link KeyLayout#URL_HASH} layout,
+	 * which doesn't keep the rows of a host together
+	 * @see HostScanner
+	 */
+	public static List<ByteBuffer> createRowKeyPrefixes(final String u, final CassandraParameters parameters) {
+		KeyLayout layout = parameters.getKeyLayout();
+		if (layout == KeyLayout.URL_HASH)
+			throw new IllegalStateException("Rows can't be scanned by URL prefix with the " + layout + " key layout");
+
+		byte[] key = createRowKey(u, parameters, layout.getPrefixLength());
+		if (layout != KeyLayout.SALT_BUCKETS) {
+			putLayoutPrefix(u, key, layout, parameters.getKeySaltBuckets());
+			return Collections.singletonList(ByteBuffer.wrap(key));
+		}
+
+		int buckets = parameters.getKeySaltBuckets();
+		List<ByteBuffer> prefixes = new ArrayList<ByteBuffer>(buckets);
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			byte[] prefix = key.clone();
+			prefix[0] = saltByte(bucket, buckets);
+			prefixes.add(ByteBuffer.wrap(prefix));
+		}
+		return prefixes;
+	}
+
+	/**
+	 * @return the row key of u without its layout prefix, leaving offset bytes for it
+	 */
+	private static byte[] createRowKey(final String u, final CassandraParameters parameters, final int offset) {
+		if (parameters.getKeyFormat() == KeyFormat.BINARY)
+			return createBinaryKey(u, offset);
+
+		String encoding = parameters.getEncodingScheme();
+		if (isAsciiCompatible(encoding) && !u.startsWith(SCHEME)) {
+			byte[] key = createAsciiKey(u, offset);
+			if (key != null)
+				return key;
+		}
+
+		byte[] text;
+		try {
+			text = createKey(u).getBytes(encoding);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalArgumentException(e);
+		}
+		if (offset == 0)
+			return text;
+		byte[] key = new byte[offset + text.length];
+		System.arraycopy(text, 0, key, offset, text.length);
+		return key;
 	}
 
 	/**
@@ -88,40 +201,361 @@ public class UrlKey {
 			return s;
 		}
 
-		Matcher m = getMatcher(s.substring(SCHEME.length()));
-
-		if (m == null || !m.matches()) {
+		int hostStart = hostStart(s, SCHEME.length());
+		if (hostStart == -1) {
 			// If no match, return original String.
 			return s;
 		}
 
-		return m.group(1) + reverseHostname(m.group(2)) + m.group(3);
+		int hostEnd = hostEnd(s, hostStart);
+		String host = reverseHostname(s, hostStart, hostEnd);
+		return new StringBuilder(s.length())
+			.append(s, SCHEME.length(), hostStart).append(host).append(s, hostEnd, s.length()).toString();
+	}
+
+	/**
+	 * Reverse the {@link #createRowKey(String, CassandraParameters)} transform.
+	 *
+	 * @param key the row key, which is left untouched
+	 * @param parameters the parameters the key was made with
+	 * @return the URI of the row
+	 */
+	public static String rowKeyToUri(final ByteBuffer key, final CassandraParameters parameters) {
+		ByteBuffer b = key.duplicate();
+		b.position(b.position() + parameters.getKeyLayout().getPrefixLength());
+
+		if (parameters.getKeyFormat() == KeyFormat.BINARY)
+			return binaryKeyToUri(b);
+
+		return keyToUri(Charset.forName(parameters.getEncodingScheme()).decode(b).toString());
 	}
 
-	private static Matcher getMatcher(final String u) {
-		if (u == null || u.length() <= 0) {
-			return null;
+	/**
+	 * Makes the compact binary key of the passed URI.
+	 *
+	 * The key is made of a byte standing for the scheme, the varint-prefixed
+	 * hostname with its labels reversed, and the rest of the URL, all encoded
+	 * as UTF-8:
+	 *
+	 * <pre>
+	 * [scheme byte][host length][reversed host][port, path, query and fragment]
+	 * </pre>
+	 *
+	 * The well-known schemes take a single byte. Other schemes, and URLs with
+	 * userinfo, follow their scheme byte with the varint-prefixed part of
+	 * the URL before the host. URLs that aren't hierarchical are kept whole
+	 * after their scheme byte.
+	 *
+	 * The rows of a host are contiguous, but unlike textual keys, the length
+	 * prefix keeps subdomains apart from their parent domain.
+	 *
+	 * @param u URL to transform.
+	 * @return the binary key
+	 * @see #binaryKeyToUri(ByteBuffer)
+	 */
+	public static byte[] createBinaryKey(final String u) {
+		return createBinaryKey(u, 0);
+	}
+
+	/**
+	 * @return the binary key of u, leaving prefixLength bytes at its start
+	 */
+	private static byte[] createBinaryKey(final String u, final int prefixLength) {
+		int hostStart = hostStart(u, 0);
+		if (hostStart == -1) {
+			byte[] raw = u.getBytes(UTF8);
+			byte[] key = new byte[prefixLength + 1 + raw.length];
+			key[prefixLength] = RAW_SCHEME;
+			System.arraycopy(raw, 0, key, prefixLength + 1, raw.length);
+			return key;
 		}
 
-		return URI_RE_PARSER.matcher(u);
+		int hostEnd = hostEnd(u, hostStart);
+		byte scheme = schemeByte(u, hostStart);
+		byte[] head = scheme == OTHER_SCHEME ? u.substring(0, hostStart).getBytes(UTF8) : null;
+		byte[] host = reverseHostname(u, hostStart, hostEnd).getBytes(UTF8);
+		byte[] rest = u.substring(hostEnd).getBytes(UTF8);
+
+		int length = prefixLength + 1 + varintLength(host.length) + host.length + rest.length;
+		if (head != null)
+			length += varintLength(head.length) + head.length;
+
+		byte[] key = new byte[length];
+		int i = prefixLength;
+		key[i++] = scheme;
+		if (head != null)
+			i = putBytes(head, key, putVarint(head.length, key, i));
+		i = putBytes(host, key, putVarint(host.length, key, i));
+		putBytes(rest, key, i);
+		return key;
 	}
 
-	private static String reverseHostname(final String hostname) {
-		if (hostname == null) {
-			return "";
+	/**
+	 * Reverse the {@link #createBinaryKey(String)} transform.
+	 *
+	 * @param key the binary key, which is left untouched
+	 * @return the URI of the key
+	 * @throws IllegalArgumentException if the key isn't a binary key
+	 */
+	public static String binaryKeyToUri(final ByteBuffer key) {
+		ByteBuffer b = key.duplicate();
+		try {
+			byte scheme = b.get();
+			if (scheme == RAW_SCHEME)
+				return UTF8.decode(b).toString();
+
+			String head;
+			if (scheme == OTHER_SCHEME)
+				head = getString(b, getVarint(b));
+			else if (scheme > 0 && scheme < KNOWN_SCHEMES.length)
+				head = KNOWN_SCHEMES[scheme];
+			else
+				throw new IllegalArgumentException("Unknown scheme byte " + scheme);
+
+			String host = getString(b, getVarint(b));
+			String rest = UTF8.decode(b).toString();
+			return new StringBuilder(head.length() + host.length() + rest.length())
+				.append(head).append(reverseHostname(host, 0, host.length())).append(rest).toString();
+		} catch (RuntimeException e) {
+			if (e instanceof IllegalArgumentException)
+				throw e;
+			throw new IllegalArgumentException("Not a binary key", e);
+		}
+	}
+
+	/**
+	 * @return the scheme byte of the URL whose host starts at hostStart
+	 */
+	private static byte schemeByte(final String u, final int hostStart) {
+		for (byte i = 2; i < KNOWN_SCHEMES.length; i++) {
+			String scheme = KNOWN_SCHEMES[i];
+			if (scheme.length() == hostStart && u.startsWith(scheme))
+				return i;
 		}
+		return OTHER_SCHEME;
+	}
 
-		StringBuilder sb = new StringBuilder(hostname.length());
+	/**
+	 * Write the prefix of the key layout at the start of key.
+	 */
+	private static void putLayoutPrefix(final String u, final byte[] key, final KeyLayout layout, final int buckets) {
+		int hash;
+		switch (layout) {
+		case URL_HASH:
+			hash = hash(u, 0, u.length());
+			break;
+		case HOST_HASH:
+			int hostStart = hostStart(u, 0);
+			hash = hostStart == -1 ? hash(u, 0, u.length()) : hash(u, hostStart, hostEnd(u, hostStart));
+			break;
+		case SALT_BUCKETS:
+			key[0] = saltByte((hash(u, 0, u.length()) & 0x7FFFFFFF) % buckets, buckets);
+			return;
+		default:
+			return;
+		}
+		key[0] = (byte) (hash >>> 8);
+		key[1] = (byte) hash;
+	}
 
-		for (StringTokenizer st = new StringTokenizer(hostname, ".", false);
-		st.hasMoreElements();) {
-			Object next = st.nextElement();
-			if (sb.length() > 0) {
-				sb.insert(0, ".");
+	/**
+	 * @return the first byte of the keys of bucket, spreading buckets evenly over the byte range
+	 */
+	private static byte saltByte(final int bucket, final int buckets) {
+		return (byte) (bucket * 256 / buckets);
+	}
+
+	/**
+	 * @return the {@link String#hashCode()} of the characters between start and end
+	 * in s, with its high bits folded into the low ones. It doesn't change between runs.
+	 */
+	private static int hash(final String s, final int start, final int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + s.charAt(i);
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int putBytes(final byte[] src, final byte[] dest, final int offset) {
+		System.arraycopy(src, 0, dest, offset, src.length);
+		return offset + src.length;
+	}
+
+	private static int varintLength(int value) {
+		int length = 1;
+		while ((value >>>= 7) != 0)
+			length++;
+		return length;
+	}
+
+	/**
+	 * Write value as an unsigned varint, 7 bits per byte, least significant first.
+	 *
+	 * @return the index in dest following the varint
+	 */
+	private static int putVarint(int value, final byte[] dest, int offset) {
+		while ((value & ~0x7F) != 0) {
+			dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dest[offset++] = (byte) value;
+		return offset;
+	}
+
+	private static int getVarint(final ByteBuffer b) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte next = b.get();
+			value |= (next & 0x7F) << shift;
+			if (next >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	private static String getString(final ByteBuffer b, final int length) {
+		ByteBuffer slice = b.duplicate();
+		slice.limit(slice.position() + length);
+		b.position(b.position() + length);
+		return UTF8.decode(slice).toString();
+	}
+
+	/**
+	 * @return the key of u encoded as ASCII after offset bytes, or null if u or its key
+	 * has non-ASCII characters
+	 */
+	private static byte[] createAsciiKey(final String u, final int offset) {
+		int hostStart = hostStart(u, 0);
+		if (hostStart == -1)
+			return toAscii(u, offset);
+
+		int hostEnd = hostEnd(u, hostStart);
+		String host = reverseHostname(u, hostStart, hostEnd);
+		byte[] key = new byte[offset + SCHEME.length() + hostStart + host.length() + u.length() - hostEnd];
+		int i = offset;
+		i = putAscii(SCHEME, 0, SCHEME.length(), key, i);
+		i = putAscii(u, 0, hostStart, key, i);
+		i = i == -1 ? -1 : putAscii(host, 0, host.length(), key, i);
+		i = i == -1 ? -1 : putAscii(u, hostEnd, u.length(), key, i);
+		return i == -1 ? null : key;
+	}
+
+	private static byte[] toAscii(final String s, final int offset) {
+		byte[] bytes = new byte[offset + s.length()];
+		return putAscii(s, 0, s.length(), bytes, offset) == -1 ? null : bytes;
+	}
+
+	/**
+	 * @return the index in dest following the characters written, or -1 if
+	 * a character isn't ASCII
+	 */
+	private static int putAscii(final String s, final int start, final int end, final byte[] dest, int offset) {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80)
+				return -1;
+			dest[offset++] = (byte) c;
+		}
+		return offset;
+	}
+
+	private static boolean isAsciiCompatible(final String encoding) {
+		return encoding.equalsIgnoreCase("UTF-8") || encoding.equalsIgnoreCase("UTF8") ||
+			encoding.equalsIgnoreCase("US-ASCII") || encoding.equalsIgnoreCase("ISO-8859-1");
+	}
+
+	/**
+	 * Find the host of a hierarchical URI, the way the regular expression in the
+	 * class comment does.
+	 *
+	 * @param u the URI
+	 * @param offset index where the URI starts in u
+	 * @return the index of the first character of the host, or -1 if u doesn't match
+	 */
+	private static int hostStart(final String u, final int offset) {
+		int length = u.length();
+
+		// Scheme, up to "://"
+		int i = offset;
+		while (i < length && !isDelimiter(u.charAt(i)))
+			i++;
+		if (i == offset || !u.startsWith("://", i))
+			return -1;
+		int authority = i + 3;
+
+		// Optional userinfo, up to '@', as long as a host follows it
+		int j = authority;
+		char c = 0;
+		while (j < length && (c = u.charAt(j)) != '/' && c != '?' && c != '#' && c != '@')
+			j++;
+		int hostStart = authority;
+		if (j < length && c == '@' && j > authority && hostEnd(u, j + 1) > j + 1)
+			hostStart = j + 1;
+
+		int hostEnd = hostEnd(u, hostStart);
+		if (hostEnd == hostStart)
+			return -1;
+
+		// '.' doesn't match line terminators
+		for (int k = hostEnd; k < length; k++) {
+			c = u.charAt(k);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+				return -1;
+		}
+		return hostStart;
+	}
+
+	/**
+	 * @return the index following the host starting at hostStart
+	 */
+	private static int hostEnd(final String u, final int hostStart) {
+		int i = hostStart;
+		while (i < u.length() && !isDelimiter(u.charAt(i)))
+			i++;
+		return i;
+	}
+
+	private static boolean isDelimiter(final char c) {
+		return c == ':' || c == '/' || c == '?' || c == '#';
+	}
+
+	/**
+	 * Reverse the labels of the hostname found between start and end in s,
+	 * dropping empty labels.
+	 */
+	private static String reverseHostname(final String s, final int start, final int end) {
+		int length = end - start;
+		int slot = hash(s, start, end) & (HOST_CACHE_SIZE - 1);
+
+		ReversedHost cached = HOST_CACHE[slot];
+		if (cached != null && cached._host.length() == length && s.regionMatches(start, cached._host, 0, length))
+			return cached._reversed;
+
+		StringBuilder sb = new StringBuilder(length);
+		int labelEnd = end;
+		for (int i = end - 1; i >= start - 1; i--) {
+			if (i == start - 1 || s.charAt(i) == '.') {
+				if (labelEnd > i + 1) {
+					if (sb.length() > 0)
+						sb.append('.');
+					sb.append(s, i + 1, labelEnd);
+				}
+				labelEnd = i;
 			}
-			sb.insert(0, next);
 		}
 
-		return sb.toString();
+		String reversed = sb.toString();
+		HOST_CACHE[slot] = new ReversedHost(s.substring(start, end), reversed);
+		return reversed;
+	}
+
+	private static class ReversedHost {
+		private final String _host;
+		private final String _reversed;
+
+		private ReversedHost(String host, String reversed) {
+			this._host = host;
+			this._reversed = reversed;
+		}
 	}
-}
\ No newline at end of file
+}
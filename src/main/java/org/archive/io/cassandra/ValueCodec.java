@@ -0,0 +1,248 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Factory;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Compression codecs for column values.
+ *
+ * An encoded value starts with the marker byte of its codec so that
+ * readers can decode columns written with different codecs. Compressed
+ * values follow the marker with the length of the original value, as a
+ * 4 bytes big-endian integer, and then the compressed bytes. Values
+ * encoded with {@link #NONE} follow the marker with the original bytes.
+ *
+ * <pre>
+ * [marker][original length][compressed bytes]
+ * [0x00][original bytes]
+ * </pre>
+ *
+ * The marker is only written when a compressing codec is configured:
+ * with {@link CassandraParameters#getCompressionCodec()} set to NONE,
+ * values are stored as is, without any marker, as they always were. Since
+ * readers can't tell such values from encoded ones, the codec can be
+ * switched between DEFLATE, SNAPPY and LZ4 on an existing keyspace, but
+ * not from or to NONE.
+ *
+ * Only heap buffers are supported.
+ *
+ * @author greglu
+ */
+public enum ValueCodec {
+
+	NONE((byte) 0) {
+		@Override
+		public int maxCompressedLength(int length) {
+			return length;
+		}
+		@Override
+		protected int compress(byte[] src, int offset, int length, byte[] dest, int destOffset, int level) {
+			System.arraycopy(src, offset, dest, destOffset, length);
+			return length;
+		}
+		@Override
+		protected void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength) {
+			System.arraycopy(src, offset, dest, destOffset, length);
+		}
+	},
+
+	DEFLATE((byte) 1) {
+		@Override
+		public int maxCompressedLength(int length) {
+			// zlib's worst case expansion, plus the stream header and trailer
+			return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+		}
+		@Override
+		protected int compress(byte[] src, int offset, int length, byte[] dest, int destOffset, int level) {
+			Deflater deflater = DEFLATERS.get();
+			deflater.reset();
+			deflater.setLevel(level);
+			deflater.setInput(src, offset, length);
+			deflater.finish();
+			int written = 0;
+			int capacity = maxCompressedLength(length);
+			while (!deflater.finished() && written < capacity) {
+				written += deflater.deflate(dest, destOffset + written, capacity - written);
+			}
+			return written;
+		}
+		@Override
+		protected void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength)
+		throws IOException {
+			Inflater inflater = INFLATERS.get();
+			inflater.reset();
+			inflater.setInput(src, offset, length);
+			try {
+				int read = 0;
+				while (read < originalLength && !inflater.finished()) {
+					int n = inflater.inflate(dest, destOffset + read, originalLength - read);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					read += n;
+				}
+				if (read != originalLength)
+					throw new IOException("Deflated value is truncated");
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted deflated value: " + e.getMessage());
+			}
+		}
+	},
+
+	SNAPPY((byte) 2) {
+		@Override
+		public int maxCompressedLength(int length) {
+			return Snappy.maxCompressedLength(length);
+		}
+		@Override
+		protected int compress(byte[] src, int offset, int length, byte[] dest, int destOffset, int level)
+		throws IOException {
+			return Snappy.compress(src, offset, length, dest, destOffset);
+		}
+		@Override
+		protected void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength)
+		throws IOException {
+			Snappy.uncompress(src, offset, length, dest, destOffset);
+		}
+	},
+
+	LZ4((byte) 3) {
+		@Override
+		public int maxCompressedLength(int length) {
+			return LZ4_FACTORY.fastCompressor().maxCompressedLength(length);
+		}
+		@Override
+		protected int compress(byte[] src, int offset, int length, byte[] dest, int destOffset, int level) {
+			return LZ4_FACTORY.fastCompressor().compress(src, offset, length, dest, destOffset,
+					maxCompressedLength(length));
+		}
+		@Override
+		protected void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength) {
+			LZ4_FACTORY.fastDecompressor().decompress(src, offset, dest, destOffset, originalLength);
+		}
+	};
+
+	private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater();
+		}
+	};
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private static final int HEADER_LENGTH = 5;
+
+	private final byte _marker;
+
+	private ValueCodec(byte marker) {
+		this._marker = marker;
+	}
+
+	public byte getMarker() {
+		return _marker;
+	}
+
+	/**
+	 * @param length length of a value
+	 * @return the maximum length of the value once compressed, without the header
+	 */
+	public abstract int maxCompressedLength(int length);
+
+	protected abstract int compress(byte[] src, int offset, int length, byte[] dest, int destOffset, int level)
+	throws IOException;
+
+	protected abstract void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset,
+			int originalLength) throws IOException;
+
+	/**
+	 * @param length length of a value
+	 * @return the capacity needed to encode the value with this codec
+	 */
+	public int maxEncodedLength(int length) {
+		return maxCompressedLength(length) + HEADER_LENGTH;
+	}
+
+	/**
+	 * Encode a value into the given buffer, which must have at least
+	 * {@link #maxEncodedLength(int)} bytes remaining. If compressing doesn't
+	 * make the value any smaller, the value is encoded with {@link #NONE}.
+	 *
+	 * @param value the value, from its position to its limit, which are left untouched
+	 * @param dest the buffer to encode into, whose limit is set to the end of the encoded value
+	 * @param level compression level, for the codecs supporting one
+	 * @return the codec the value was actually encoded with
+	 * @throws IOException if the value couldn't be compressed
+	 */
+	public ValueCodec encode(ByteBuffer value, ByteBuffer dest, int level) throws IOException {
+		int length = value.remaining();
+		byte[] src = value.array();
+		int offset = value.arrayOffset() + value.position();
+		int start = dest.arrayOffset() + dest.position();
+
+		if (this != NONE) {
+			int compressed = compress(src, offset, length, dest.array(), start + HEADER_LENGTH, level);
+			if (compressed + HEADER_LENGTH < length + 1) {
+				dest.put(dest.position(), _marker);
+				dest.putInt(dest.position() + 1, length);
+				dest.limit(dest.position() + HEADER_LENGTH + compressed);
+				return this;
+			}
+		}
+
+		dest.put(dest.position(), NONE._marker);
+		System.arraycopy(src, offset, dest.array(), start + 1, length);
+		dest.limit(dest.position() + 1 + length);
+		return NONE;
+	}
+
+	/**
+	 * Decode a value written with any codec.
+	 *
+	 * @param value the encoded value, from its position to its limit, which are left untouched
+	 * @return the original value
+	 * @throws IOException if the value has an unknown marker or is corrupted
+	 */
+	public static ByteBuffer decode(ByteBuffer value) throws IOException {
+		if (!value.hasRemaining())
+			throw new IOException("Empty value");
+
+		ValueCodec codec = forMarker(value.get(value.position()));
+		byte[] src = value.array();
+		int offset = value.arrayOffset() + value.position();
+
+		if (codec == NONE)
+			return ByteBuffer.wrap(src, offset + 1, value.remaining() - 1).slice();
+
+		if (value.remaining() < HEADER_LENGTH)
+			throw new IOException("Truncated " + codec + " value");
+		int originalLength = value.getInt(value.position() + 1);
+		byte[] dest = new byte[originalLength];
+		codec.decompress(src, offset + HEADER_LENGTH, value.remaining() - HEADER_LENGTH, dest, 0, originalLength);
+		return ByteBuffer.wrap(dest);
+	}
+
+	/**
+	 * @return the codec with the given marker byte
+	 * @throws IOException if no codec has this marker
+	 */
+	public static ValueCodec forMarker(byte marker) throws IOException {
+		for (ValueCodec codec : values()) {
+			if (codec._marker == marker)
+				return codec;
+		}
+		throw new IOException("Unknown codec marker " + marker);
+	}
+}
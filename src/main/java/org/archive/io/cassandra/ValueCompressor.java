@@ -0,0 +1,123 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.log4j.Logger;
+
+/**
+ * Compresses column values with a {@link ValueCodec}, into buffers taken
+ * from a {@link ByteBufferPool} and tied to the row of the column.
+ *
+ * With worker threads, values are compressed in the background and the
+ * column only gets its compressed value once {@link RowMutation#awaitPending()}
+ * is called, right before the row is written. When the workers fall behind,
+ * the calling thread compresses the value itself.
+ *
+ * @author greglu
+ */
+public class ValueCompressor {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private static final int QUEUED_VALUES_PER_THREAD = 16;
+
+	private final ValueCodec _codec;
+	private final int _level;
+	private final ExecutorService _executor;
+
+	/**
+	 * @param codec the codec to compress values with
+	 * @param level compression level, for the codecs supporting one
+	 * @param threads number of worker threads, 0 to compress on the calling thread
+	 * @throws IllegalStateException if the codec can't be used
+	 */
+	public ValueCompressor(ValueCodec codec, int level, int threads) {
+		this._codec = codec;
+		this._level = level;
+
+		// Fail right away if the codec's native library can't be loaded
+		try {
+			ByteBuffer probe = ByteBuffer.wrap(new byte[] {0});
+			codec.encode(probe, ByteBuffer.allocate(codec.maxEncodedLength(1)), level);
+		} catch (Throwable t) {
+			throw new IllegalStateException("The " + codec + " codec is unavailable: " + t.getMessage(), t);
+		}
+
+		if (threads > 0) {
+			final AtomicInteger count = new AtomicInteger();
+			this._executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(threads * QUEUED_VALUES_PER_THREAD), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "CassandraValueCompressor-" + count.getAndIncrement());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+		} else {
+			this._executor = null;
+		}
+	}
+
+	public ValueCodec getCodec() {
+		return _codec;
+	}
+
+	/**
+	 * Compress the value of a column, right away or in the background.
+	 *
+	 * @param row the row the column belongs to, which retains the compressed value's buffer
+	 * @param column the column, whose value must not change until the row is written
+	 * @param pool the pool to take the compressed value's buffer from
+	 */
+	public void compress(RowMutation row, Column column, final ByteBufferPool pool) {
+		if (_executor == null) {
+			ByteBuffer encoded = encode(column.value, pool);
+			column.value = encoded;
+			row.retain(pool, encoded);
+			return;
+		}
+
+		final ByteBuffer value = column.value.duplicate();
+		Future<ByteBuffer> encoded = _executor.submit(new Callable<ByteBuffer>() {
+			public ByteBuffer call() {
+				return encode(value, pool);
+			}
+		});
+		row.addPending(column, encoded, pool);
+	}
+
+	/**
+	 * Stop the worker threads, once the values already submitted are compressed.
+	 */
+	public void close() {
+		if (_executor != null)
+			_executor.shutdown();
+	}
+
+	private ByteBuffer encode(ByteBuffer value, ByteBufferPool pool) {
+		ByteBuffer encoded = pool.acquire(_codec.maxEncodedLength(value.remaining()));
+		try {
+			_codec.encode(value, encoded, _level);
+		} catch (Exception e) {
+			// Storing the value uncompressed beats losing the record
+			LOG.warn("Unable to compress a value with " + _codec + ", storing it uncompressed: " + e.getMessage());
+			try {
+				encoded.limit(encoded.capacity());
+				ValueCodec.NONE.encode(value, encoded, _level);
+			} catch (IOException never) {
+				throw new IllegalStateException(never);
+			}
+		}
+		return encoded;
+	}
+}
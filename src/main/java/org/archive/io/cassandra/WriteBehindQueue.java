@@ -0,0 +1,231 @@
+package org.archive.io.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded write-behind queue for {@link RowMutation}s. Crawler threads only
+ * enqueue rows, while a small set of flusher threads drain the queue and
+ * combine many rows into multi-key batch_mutate calls.
+ *
+ * A batch is flushed as soon as it holds <code>maxBatchRows</code> rows,
+ * <code>maxBatchBytes</code> bytes or when <code>lingerMs</code> has elapsed
+ * since its first row was taken off the queue. Once the queue holds
+ * <code>capacity</code> rows or <code>maxQueuedBytes</code> bytes,
+ * {@link #put(RowMutation)} blocks the calling thread so that memory stays
+ * capped.
+ *
+ * Each flusher thread submits its batches through a dedicated
+ * {@link CassandraWriter} made by the given pool, so that flushing never
+ * competes with crawler threads for the pool's members.
+ *
+ * @author greglu
+ */
+public class WriteBehindQueue {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private final CassandraWriterPool _pool;
+	private final BlockingQueue<RowMutation> _queue;
+	private final int _maxBatchRows;
+	private final long _maxBatchBytes;
+	private final long _maxQueuedBytes;
+	private final long _lingerMs;
+	private final Thread[] _flushers;
+
+	private final Object _lock = new Object();
+	// Rows and bytes that were put but not yet written (queued or in a batch being flushed)
+	private long _pendingRows = 0;
+	private long _pendingBytes = 0;
+
+	private volatile boolean _running = true;
+
+	/**
+	 * @param pool the pool making the flusher threads' writers
+	 * @param capacity maximum number of rows waiting on the queue
+	 * @param maxQueuedBytes maximum number of bytes pending a write, or 0 for no limit
+	 * @param flusherThreads number of flusher threads
+	 * @param maxBatchRows maximum number of rows in a single batch_mutate call
+	 * @param maxBatchBytes maximum number of bytes in a single batch_mutate call
+	 * @param lingerMs maximum time to wait for a batch to fill up
+	 */
+	public WriteBehindQueue(final CassandraWriterPool pool, final int capacity, final long maxQueuedBytes,
+			final int flusherThreads, final int maxBatchRows, final long maxBatchBytes, final long lingerMs) {
+		this._pool = pool;
+		this._queue = new ArrayBlockingQueue<RowMutation>(capacity);
+		this._maxQueuedBytes = maxQueuedBytes;
+		this._maxBatchRows = maxBatchRows;
+		this._maxBatchBytes = maxBatchBytes;
+		this._lingerMs = lingerMs;
+
+		this._flushers = new Thread[flusherThreads];
+		for (int i = 0; i < flusherThreads; i++) {
+			_flushers[i] = new Thread(new Flusher(), "CassandraWriteBehindFlusher-" + i);
+			_flushers[i].setDaemon(true);
+			_flushers[i].start();
+		}
+	}
+
+	/**
+	 * Queues a row for writing, blocking while the queue is full. The row's
+	 * {@link RowMutation#getWriteFuture() pending write} completes once its batch is flushed.
+	 *
+	 * @param row the row to write
+	 * @throws InterruptedException
+	 */
+	public void put(RowMutation row) throws InterruptedException {
+		if (!_running)
+			throw new IllegalStateException("The write-behind queue has been closed");
+
+		synchronized (_lock) {
+			// Always let a row through when nothing is pending, even if it's bigger than the limit
+			while (_maxQueuedBytes > 0 && _pendingBytes > 0 && _pendingBytes + row.getSize() > _maxQueuedBytes)
+				_lock.wait();
+			_pendingRows++;
+			_pendingBytes += row.getSize();
+		}
+
+		try {
+			_queue.put(row);
+		} catch (InterruptedException e) {
+			written(1, row.getSize());
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of rows waiting on the queue
+	 */
+	public int size() {
+		return _queue.size();
+	}
+
+	/**
+	 * Blocks until every row put so far has been written.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (_lock) {
+			while (_pendingRows > 0)
+				_lock.wait();
+		}
+	}
+
+	/**
+	 * Writes out all pending rows and stops the flusher threads.
+	 */
+	public void close() {
+		try {
+			flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_running = false;
+		for (Thread flusher : _flushers) {
+			flusher.interrupt();
+		}
+	}
+
+	private void written(long rows, long bytes) {
+		synchronized (_lock) {
+			_pendingRows -= rows;
+			_pendingBytes -= bytes;
+			_lock.notifyAll();
+		}
+	}
+
+	private class Flusher implements Runnable {
+
+		private CassandraWriter _writer = null;
+
+		private void write(List<RowMutation> batch) throws IOException, InterruptedException {
+			Map<ByteBuffer, Map<String, List<Mutation>>> job = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+			for (RowMutation row : batch) {
+				row.awaitPending();
+				row.addTo(job);
+			}
+
+			if (_writer == null) {
+				_writer = (CassandraWriter) _pool.makeWriter();
+				if (_writer == null)
+					throw new IOException("Unable to create a writer for flushing");
+			}
+			_writer.submit(job);
+		}
+
+		public void run() {
+			try {
+				flushUntilClosed();
+			} finally {
+				if (_writer != null) {
+					try {
+						_writer.close();
+					} catch (IOException e) {
+						LOG.debug("Exception in closing flusher writer", e);
+					}
+				}
+			}
+		}
+
+		private void flushUntilClosed() {
+			List<RowMutation> batch = new ArrayList<RowMutation>(_maxBatchRows);
+
+			while (_running) {
+				long bytes = 0;
+				Exception error = null;
+				try {
+					RowMutation row = _queue.poll(_lingerMs, TimeUnit.MILLISECONDS);
+					if (row == null)
+						continue;
+
+					batch.add(row);
+					bytes += row.getSize();
+
+					long deadline = System.currentTimeMillis() + _lingerMs;
+					while (batch.size() < _maxBatchRows && bytes < _maxBatchBytes) {
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0 || (row = _queue.poll(wait, TimeUnit.MILLISECONDS)) == null)
+							break;
+
+						batch.add(row);
+						bytes += row.getSize();
+					}
+
+					if (LOG.isDebugEnabled())
+						LOG.debug("Flushing " + batch.size() + " rows (" + bytes + " bytes)");
+
+					write(batch);
+				} catch (InterruptedException e) {
+					error = e;
+					if (_running)
+						LOG.warn("Flusher interrupted with " + batch.size() + " rows in its batch");
+					else
+						return;
+				} catch (Exception e) {
+					error = e;
+					LOG.error("Failed writing a batch of " + batch.size() + " rows: " + e.getMessage(), e);
+				} finally {
+					if (!batch.isEmpty()) {
+						for (RowMutation written : batch) {
+							written.written(error);
+							written.release();
+						}
+						written(batch.size(), bytes);
+					}
+					batch.clear();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.archive.io.cassandra;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Caps the number of batch_mutate calls in flight to each endpoint, with
+ * a limit adapting to the latency of the calls (additive increase,
+ * multiplicative decrease).
+ *
+ * Each call answered within {@link CassandraParameters#getWriteLatencyTarget()}
+ * raises the limit of its endpoint by 1/limit, about one more call per
+ * round trip. A slower call multiplies it by
+ * {@link CassandraParameters#getWriteConcurrencyBackoff()}, and a failed
+ * call halves it. Writers wait for a free slot, so that crawler threads
+ * slow down along with a struggling node instead of piling onto it.
+ *
+ * @author greglu
+ */
+public class WriteConcurrencyLimiter {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Outcomes of a call, deciding how the limit changes.
+	 */
+	public enum Outcome {
+		/** The call went through: its latency decides. */
+		SUCCESS,
+		/** The call timed out or failed: the limit is halved. */
+		DROPPED,
+		/** The call was rejected for reasons unrelated to load: the limit stays. */
+		IGNORED
+	}
+
+	private final CassandraParameters _parameters;
+	private final ConcurrentMap<String, Limit> _limits = new ConcurrentHashMap<String, Limit>();
+
+	public WriteConcurrencyLimiter(CassandraParameters parameters) {
+		this._parameters = parameters;
+	}
+
+	/**
+	 * Wait for a free slot to the given endpoint.
+	 *
+	 * @param endPoint the endpoint
+	 * @return whether a slot was acquired, to be released with {@link #release(String, long, Outcome)},
+	 * or false if none was freed within {@link CassandraParameters#getWriteConcurrencyMaxWait()}
+	 * @throws InterruptedException
+	 */
+	public boolean acquire(String endPoint) throws InterruptedException {
+		return limitOf(endPoint).acquire(_parameters.getWriteConcurrencyMaxWait());
+	}
+
+	/**
+	 * Release the slot of a call and adapt the limit of its endpoint.
+	 *
+	 * @param endPoint the endpoint
+	 * @param latency the latency of the call in nanoseconds
+	 * @param outcome the outcome of the call
+	 */
+	public void release(String endPoint, long latency, Outcome outcome) {
+		limitOf(endPoint).release(latency, outcome);
+	}
+
+	/**
+	 * @return the current limit of each endpoint
+	 */
+	public Map<String, Integer> getLimits() {
+		Map<String, Integer> limits = new TreeMap<String, Integer>();
+		for (Map.Entry<String, Limit> limit : _limits.entrySet()) {
+			limits.put(limit.getKey(), limit.getValue().getLimit());
+		}
+		return limits;
+	}
+
+	/**
+	 * @return the current limit of the given endpoint
+	 */
+	public int getLimit(String endPoint) {
+		return limitOf(endPoint).getLimit();
+	}
+
+	/**
+	 * @return the number of calls in flight to the given endpoint
+	 */
+	public int getInFlight(String endPoint) {
+		return limitOf(endPoint).getInFlight();
+	}
+
+	private Limit limitOf(String endPoint) {
+		Limit limit = _limits.get(endPoint);
+		if (limit == null) {
+			Limit created = new Limit(endPoint);
+			limit = _limits.putIfAbsent(endPoint, created);
+			if (limit == null)
+				limit = created;
+		}
+		return limit;
+	}
+
+	/**
+	 * The limit of a single endpoint.
+	 */
+	private class Limit {
+		private final String _endPoint;
+		private double _limit;
+		private int _inFlight = 0;
+
+		private Limit(String endPoint) {
+			this._endPoint = endPoint;
+			this._limit = _parameters.getWriteConcurrencyInitial();
+		}
+
+		private synchronized boolean acquire(long maxWait) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+			while (_inFlight >= (int) _limit) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			_inFlight++;
+			return true;
+		}
+
+		private synchronized void release(long latency, Outcome outcome) {
+			_inFlight--;
+
+			int before = (int) _limit;
+			switch (outcome) {
+			case SUCCESS:
+				if (latency > TimeUnit.MILLISECONDS.toNanos(_parameters.getWriteLatencyTarget())) {
+					_limit *= _parameters.getWriteConcurrencyBackoff();
+				} else if (_inFlight + 1 >= before / 2) {
+					// Only grow when the limit is actually in use
+					_limit += 1 / _limit;
+				}
+				break;
+			case DROPPED:
+				_limit /= 2;
+				break;
+			default:
+				break;
+			}
+			_limit = Math.max(_parameters.getWriteConcurrencyMin(),
+					Math.min(_parameters.getWriteConcurrencyMax(), _limit));
+
+			int after = (int) _limit;
+			if (after != before && LOG.isDebugEnabled())
+				LOG.debug("Write concurrency limit of " + _endPoint + " is now " + after);
+			notifyAll();
+		}
+
+		private synchronized int getLimit() {
+			return (int) _limit;
+		}
+
+		private synchronized int getInFlight() {
+			return _inFlight;
+		}
+	}
+}
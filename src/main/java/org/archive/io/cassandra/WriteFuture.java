@@ -0,0 +1,159 @@
+package org.archive.io.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The outcome of rows submitted without waiting for them to be written,
+ * see {@link StorageBackend#writeRecordAsync(java.util.Map)}. It completes once
+ * every row is written, spilled or given up on.
+ *
+ * Callbacks run on the thread completing the write, usually one of the
+ * I/O threads of the {@link AsyncConnectionPool}: they must not block.
+ *
+ * @author greglu
+ */
+public class WriteFuture implements Future<Void> {
+
+	private static final Logger LOG = Logger.getLogger(WriteFuture.class.getName());
+
+	/**
+	 * Called once the write completes.
+	 */
+	public interface Callback {
+		void onComplete(WriteFuture future);
+	}
+
+	private final CountDownLatch _done = new CountDownLatch(1);
+	private volatile Exception _error = null;
+	private boolean _complete = false;
+	private List<Callback> _callbacks = null;
+
+	/**
+	 * @param futures pending writes
+	 * @return a write completing once all the given ones have, failing if any of them does
+	 */
+	public static WriteFuture all(List<WriteFuture> futures) {
+		if (futures.size() == 1)
+			return futures.get(0);
+
+		final WriteFuture all = new WriteFuture();
+		if (futures.isEmpty()) {
+			all.complete(null);
+			return all;
+		}
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		for (WriteFuture future : futures) {
+			future.addCallback(new Callback() {
+				public void onComplete(WriteFuture future) {
+					if (future.getError() != null)
+						error.compareAndSet(null, future.getError());
+					if (remaining.decrementAndGet() == 0)
+						all.complete(error.get());
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * Call the given callback once the write completes, or right away if it already has.
+	 */
+	public void addCallback(Callback callback) {
+		synchronized (this) {
+			if (!_complete) {
+				if (_callbacks == null)
+					_callbacks = new ArrayList<Callback>(2);
+				_callbacks.add(callback);
+				return;
+			}
+		}
+		run(callback);
+	}
+
+	/**
+	 * @param error the reason some rows couldn't be written, or null if they all were
+	 */
+	void complete(Exception error) {
+		List<Callback> callbacks;
+		synchronized (this) {
+			if (_complete)
+				return;
+			_complete = true;
+			_error = error;
+			callbacks = _callbacks;
+			_callbacks = null;
+		}
+		_done.countDown();
+
+		if (callbacks != null) {
+			for (Callback callback : callbacks) {
+				run(callback);
+			}
+		}
+	}
+
+	private void run(Callback callback) {
+		try {
+			callback.onComplete(this);
+		} catch (RuntimeException e) {
+			LOG.error("Exception in a write callback", e);
+		}
+	}
+
+	/**
+	 * @return whether every row was written or spilled, once complete
+	 */
+	public boolean isSuccess() {
+		return isDone() && _error == null;
+	}
+
+	/**
+	 * @return the reason some rows couldn't be written, or null
+	 */
+	public Exception getError() {
+		return _error;
+	}
+
+	/**
+	 * Writes can't be cancelled once submitted.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		return _done.getCount() == 0;
+	}
+
+	public Void get() throws InterruptedException, ExecutionException {
+		_done.await();
+		return result();
+	}
+
+	public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!_done.await(timeout, unit))
+			throw new TimeoutException();
+		return result();
+	}
+
+	private Void result() throws ExecutionException {
+		if (_error != null)
+			throw new ExecutionException(_error);
+		return null;
+	}
+}
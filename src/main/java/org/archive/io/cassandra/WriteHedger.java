@@ -0,0 +1,123 @@
+package org.archive.io.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.thrift.TException;
+
+/**
+ * Decides when a batch_mutate call is hedged: sent again to another
+ * coordinator because it takes longer than
+ * {@link CassandraParameters#getHedgedWritePercentile()} of the recent calls
+ * to its endpoint, and at least {@link CassandraParameters#getHedgedWriteMinDelay()}.
+ * The first call to succeed wins.
+ *
+ * Both calls carry the same mutations and timestamps, so that writing
+ * twice is harmless. The rows may be released once the winner is known,
+ * though, so each call sends its request through a {@link Guard}, which
+ * stops the slower call from sending anything once the race is over.
+ *
+ * @author greglu
+ */
+public class WriteHedger {
+
+	private static final long REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final long MIN_SAMPLES = 100;
+
+	private final CassandraParameters _parameters;
+	private final WriterMetrics _metrics;
+	private final ExecutorService _executor;
+	private final ConcurrentMap<String, Delay> _delays = new ConcurrentHashMap<String, Delay>();
+
+	public WriteHedger(CassandraParameters parameters, WriterMetrics metrics) {
+		this._parameters = parameters;
+		this._metrics = metrics;
+		this._executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CassandraHedgedWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param endPoint the endpoint of a call
+	 * @return the time in nanoseconds after which a call to the endpoint is hedged,
+	 * or -1 while too few calls were made to it to tell
+	 */
+	public long getDelay(String endPoint) {
+		Delay delay = _delays.get(endPoint);
+		if (delay == null) {
+			Delay created = new Delay();
+			delay = _delays.putIfAbsent(endPoint, created);
+			if (delay == null)
+				delay = created;
+		}
+
+		// The percentile is only looked up once in a while, as it copies a histogram
+		long now = System.nanoTime();
+		if (now - delay._refreshAt >= 0) {
+			delay._refreshAt = now + REFRESH_INTERVAL;
+			long latency = _metrics.getBatchMutateLatency(endPoint, _parameters.getHedgedWritePercentile(), MIN_SAMPLES);
+			delay._nanos = latency < 0 ? -1 : Math.max(TimeUnit.MICROSECONDS.toNanos(latency),
+					TimeUnit.MILLISECONDS.toNanos(_parameters.getHedgedWriteMinDelay()));
+		}
+		return delay._nanos;
+	}
+
+	/**
+	 * @return the executor running the racing calls
+	 */
+	public ExecutorService getExecutor() {
+		return _executor;
+	}
+
+	public void close() {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Lets the calls of a race send their request until the race is over.
+	 */
+	public static class Guard {
+		private boolean _finished = false;
+
+		/**
+		 * Send a batch_mutate request, unless the race is over. The response is
+		 * then received with {@link Cassandra.Client#recv_batch_mutate()}.
+		 *
+		 * @return whether the request was sent
+		 * @throws TException
+		 */
+		public synchronized boolean send(Cassandra.Client client, Map<ByteBuffer, Map<String, List<Mutation>>> job,
+				ConsistencyLevel level) throws TException {
+			if (_finished)
+				return false;
+			client.send_batch_mutate(job, level);
+			return true;
+		}
+
+		/**
+		 * End the race, once any request being sent is out.
+		 */
+		public synchronized void finish() {
+			_finished = true;
+		}
+	}
+
+	private static class Delay {
+		private volatile long _nanos = -1;
+		private volatile long _refreshAt = System.nanoTime();
+	}
+}
@@ -0,0 +1,290 @@
+package org.archive.io.cassandra;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Metrics of the writes to Cassandra: records and bytes written, retries,
+ * spills, connections, skipped records, and HDR histograms of the
+ * batch_mutate latency of each endpoint, of the size of each row and of
+ * the time spent borrowing a writer from the pool.
+ *
+ * Recording is lock-free: counters are atomic and histograms are
+ * {@link ConcurrentHistogram}s, whose recording is wait-free. Readers
+ * query copies of the histograms.
+ *
+ * @author greglu
+ */
+public class WriterMetrics implements WriterMetricsMXBean {
+
+	private static final long MAX_LATENCY = TimeUnit.MINUTES.toMicros(10);
+	private static final long MAX_SIZE = 1L << 40;
+	private static final int SIGNIFICANT_DIGITS = 2;
+
+	private final long _created = System.currentTimeMillis();
+
+	private final AtomicLong _records = new AtomicLong();
+	private final AtomicLong _bytes = new AtomicLong();
+	private final AtomicLong _retries = new AtomicLong();
+	private final AtomicLong _spilledRows = new AtomicLong();
+	private final AtomicLong _droppedSpilledRecords = new AtomicLong();
+	private final AtomicLong _hedgedWrites = new AtomicLong();
+	private final AtomicLong _connectionsOpened = new AtomicLong();
+	private final AtomicLong _endpointsMarkedDown = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> _skips = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Endpoint> _endpoints = new ConcurrentHashMap<String, Endpoint>();
+	private final Histogram _mutationSizes = new ConcurrentHistogram(MAX_SIZE, SIGNIFICANT_DIGITS);
+	private final Histogram _borrowWaits = new ConcurrentHistogram(MAX_LATENCY, SIGNIFICANT_DIGITS);
+
+	/**
+	 * Record that a record was written, or handed over to the write-behind queue.
+	 *
+	 * @param bytes its estimated size on the wire
+	 */
+	public void recordWritten(long bytes) {
+		_records.incrementAndGet();
+		_bytes.addAndGet(bytes);
+		_mutationSizes.recordValue(Math.min(bytes, MAX_SIZE));
+	}
+
+	/**
+	 * Record a batch_mutate call.
+	 *
+	 * @param endPoint the endpoint called
+	 * @param latency the latency of the call in nanoseconds
+	 * @param failed whether the call failed
+	 */
+	public void batchMutate(String endPoint, long latency, boolean failed) {
+		Endpoint endpoint = getEndpoint(endPoint);
+		endpoint._calls.incrementAndGet();
+		if (failed)
+			endpoint._errors.incrementAndGet();
+		else
+			endpoint._latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latency), MAX_LATENCY));
+	}
+
+	public void retried(int rows) {
+		_retries.addAndGet(rows);
+	}
+
+	public void spilled(int rows) {
+		_spilledRows.addAndGet(rows);
+	}
+
+	public void droppedSpilled() {
+		_droppedSpilledRecords.incrementAndGet();
+	}
+
+	public void hedged() {
+		_hedgedWrites.incrementAndGet();
+	}
+
+	public void connectionOpened() {
+		_connectionsOpened.incrementAndGet();
+	}
+
+	public void endpointMarkedDown() {
+		_endpointsMarkedDown.incrementAndGet();
+	}
+
+	/**
+	 * Record that a URI wasn't written.
+	 *
+	 * @param reason why it wasn't written
+	 */
+	public void skipped(String reason) {
+		AtomicLong count = _skips.get(reason);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = _skips.putIfAbsent(reason, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Record the time spent borrowing a writer from the pool.
+	 *
+	 * @param wait the time in nanoseconds
+	 */
+	public void borrowed(long wait) {
+		_borrowWaits.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(wait), MAX_LATENCY));
+	}
+
+	public long getRecordsWritten() {
+		return _records.get();
+	}
+
+	public long getBytesWritten() {
+		return _bytes.get();
+	}
+
+	public double getRecordsPerSecond() {
+		return perSecond(_records.get());
+	}
+
+	public double getBytesPerSecond() {
+		return perSecond(_bytes.get());
+	}
+
+	public long getRetries() {
+		return _retries.get();
+	}
+
+	public long getSpilledRows() {
+		return _spilledRows.get();
+	}
+
+	public long getDroppedSpilledRecords() {
+		return _droppedSpilledRecords.get();
+	}
+
+	public long getHedgedWrites() {
+		return _hedgedWrites.get();
+	}
+
+	public long getConnectionsOpened() {
+		return _connectionsOpened.get();
+	}
+
+	public long getEndpointsMarkedDown() {
+		return _endpointsMarkedDown.get();
+	}
+
+	public Map<String, Long> getSkips() {
+		Map<String, Long> skips = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> skip : _skips.entrySet()) {
+			skips.put(skip.getKey(), skip.getValue().get());
+		}
+		return skips;
+	}
+
+	public Map<String, Long> getBatchMutateCalls() {
+		Map<String, Long> calls = new TreeMap<String, Long>();
+		for (Map.Entry<String, Endpoint> endpoint : _endpoints.entrySet()) {
+			calls.put(endpoint.getKey(), endpoint.getValue()._calls.get());
+		}
+		return calls;
+	}
+
+	public Map<String, Long> getBatchMutateErrors() {
+		Map<String, Long> errors = new TreeMap<String, Long>();
+		for (Map.Entry<String, Endpoint> endpoint : _endpoints.entrySet()) {
+			errors.put(endpoint.getKey(), endpoint.getValue()._errors.get());
+		}
+		return errors;
+	}
+
+	public Map<String, Long> getBatchMutateLatencyMedian() {
+		return getLatencies(50);
+	}
+
+	public Map<String, Long> getBatchMutateLatency99thPercentile() {
+		return getLatencies(99);
+	}
+
+	/**
+	 * @param endPoint an endpoint
+	 * @param percentile the percentile
+	 * @param minCalls the minimum number of successful calls the percentile is computed over
+	 * @return the percentile of the batch_mutate latency of the endpoint in microseconds,
+	 * or -1 if fewer calls succeeded
+	 */
+	public long getBatchMutateLatency(String endPoint, double percentile, long minCalls) {
+		Endpoint endpoint = _endpoints.get(endPoint);
+		if (endpoint == null)
+			return -1;
+		Histogram latencies = endpoint._latencies.copy();
+		if (latencies.getTotalCount() < minCalls)
+			return -1;
+		return latencies.getValueAtPercentile(percentile);
+	}
+
+	public long getMutationSizeMedian() {
+		return _mutationSizes.copy().getValueAtPercentile(50);
+	}
+
+	public long getMutationSize99thPercentile() {
+		return _mutationSizes.copy().getValueAtPercentile(99);
+	}
+
+	public long getBorrowWaitMedian() {
+		return _borrowWaits.copy().getValueAtPercentile(50);
+	}
+
+	public long getBorrowWait99thPercentile() {
+		return _borrowWaits.copy().getValueAtPercentile(99);
+	}
+
+	public String getReport() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("  Records written:   " + getRecordsWritten() +
+				String.format(" (%.1f/s)", getRecordsPerSecond()) + "\n");
+		buf.append("  Bytes written:     " + getBytesWritten() +
+				String.format(" (%.1f/s)", getBytesPerSecond()) + "\n");
+		buf.append("  Row sizes:         " + summary(_mutationSizes.copy(), "B") + "\n");
+		buf.append("  Borrow waits:      " + summary(_borrowWaits.copy(), "us") + "\n");
+		buf.append("  Retried rows:      " + getRetries() + "\n");
+		buf.append("  Spilled rows:      " + getSpilledRows() + ", " + getDroppedSpilledRecords() +
+				" records rejected on replay\n");
+		buf.append("  Hedged writes:     " + getHedgedWrites() + "\n");
+		buf.append("  Connections:       " + getConnectionsOpened() + " opened, " +
+				getEndpointsMarkedDown() + " endpoint failures\n");
+		for (Map.Entry<String, Long> skip : getSkips().entrySet()) {
+			buf.append("  Skipped (" + skip.getKey() + "): " + skip.getValue() + "\n");
+		}
+		for (Map.Entry<String, Endpoint> endpoint : new TreeMap<String, Endpoint>(_endpoints).entrySet()) {
+			Endpoint e = endpoint.getValue();
+			buf.append("  batch_mutate " + endpoint.getKey() + ": " + e._calls.get() + " calls, " +
+					e._errors.get() + " errors, latency " + summary(e._latencies.copy(), "us") + "\n");
+		}
+		return buf.toString();
+	}
+
+	private Map<String, Long> getLatencies(double percentile) {
+		Map<String, Long> latencies = new TreeMap<String, Long>();
+		for (Map.Entry<String, Endpoint> endpoint : _endpoints.entrySet()) {
+			latencies.put(endpoint.getKey(), endpoint.getValue()._latencies.copy().getValueAtPercentile(percentile));
+		}
+		return latencies;
+	}
+
+	private static String summary(Histogram histogram, String unit) {
+		if (histogram.getTotalCount() == 0)
+			return "-";
+		return "p50 " + histogram.getValueAtPercentile(50) + unit +
+			", p99 " + histogram.getValueAtPercentile(99) + unit +
+			", p99.9 " + histogram.getValueAtPercentile(99.9) + unit +
+			", max " + histogram.getMaxValue() + unit;
+	}
+
+	private double perSecond(long count) {
+		long elapsed = System.currentTimeMillis() - _created;
+		return elapsed <= 0 ? 0 : count * 1000.0 / elapsed;
+	}
+
+	private Endpoint getEndpoint(String endPoint) {
+		Endpoint endpoint = _endpoints.get(endPoint);
+		if (endpoint == null) {
+			Endpoint created = new Endpoint();
+			endpoint = _endpoints.putIfAbsent(endPoint, created);
+			if (endpoint == null)
+				endpoint = created;
+		}
+		return endpoint;
+	}
+
+	private static class Endpoint {
+		private final AtomicLong _calls = new AtomicLong();
+		private final AtomicLong _errors = new AtomicLong();
+		private final Histogram _latencies = new ConcurrentHistogram(MAX_LATENCY, SIGNIFICANT_DIGITS);
+	}
+}
@@ -0,0 +1,64 @@
+package org.archive.io.cassandra;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link WriterMetrics}. Latencies are in microseconds, sizes
+ * in bytes, and maps are keyed by endpoint or skip reason.
+ *
+ * @author greglu
+ */
+public interface WriterMetricsMXBean {
+
+	long getRecordsWritten();
+
+	long getBytesWritten();
+
+	/**
+	 * @return the average number of records written per second since the metrics were created
+	 */
+	double getRecordsPerSecond();
+
+	/**
+	 * @return the average number of bytes written per second since the metrics were created
+	 */
+	double getBytesPerSecond();
+
+	long getRetries();
+
+	long getSpilledRows();
+
+	/**
+	 * @return the number of spilled records Cassandra rejected when replayed, and which were dropped
+	 */
+	long getDroppedSpilledRecords();
+
+	long getHedgedWrites();
+
+	long getConnectionsOpened();
+
+	long getEndpointsMarkedDown();
+
+	Map<String, Long> getSkips();
+
+	Map<String, Long> getBatchMutateCalls();
+
+	Map<String, Long> getBatchMutateErrors();
+
+	Map<String, Long> getBatchMutateLatencyMedian();
+
+	Map<String, Long> getBatchMutateLatency99thPercentile();
+
+	long getMutationSizeMedian();
+
+	long getMutationSize99thPercentile();
+
+	long getBorrowWaitMedian();
+
+	long getBorrowWait99thPercentile();
+
+	/**
+	 * @return the metrics as a human readable report
+	 */
+	String getReport();
+}
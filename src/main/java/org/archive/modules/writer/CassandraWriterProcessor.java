@@ -3,9 +3,17 @@ package org.archive.modules.writer;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 import org.archive.checkpointing.Checkpoint;
@@ -17,9 +25,20 @@ import org.archive.io.WriterPoolSettings;
 import org.archive.io.cassandra.CassandraParameters;
 import org.archive.io.cassandra.CassandraWriter;
 import org.archive.io.cassandra.CassandraWriterPool;
+import org.archive.io.cassandra.ColumnFamilyRotation;
+import org.archive.io.cassandra.ColumnFamilyRotator;
+import org.archive.io.cassandra.RowExistenceCache;
+import org.archive.io.cassandra.SpillJournal;
+import org.archive.io.cassandra.UrlKey;
+import org.archive.io.cassandra.WriteBehindQueue;
+import org.archive.io.cassandra.WriteConcurrencyLimiter;
+import org.archive.io.cassandra.WriteFuture;
+import org.archive.io.cassandra.WriterMetrics;
 import org.archive.modules.CrawlMetadata;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessResult;
+import org.archive.modules.deciderules.recrawl.IdenticalDigestDecideRule;
+import org.archive.modules.fetcher.FetchStatusCodes;
 import org.archive.modules.net.ServerCache;
 import org.archive.spring.ConfigPath;
 import org.archive.util.ArchiveUtils;
@@ -75,6 +94,8 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
     /**
      * Whether to gzip-compress files when writing to disk; 
      * by default true, meaning do-compress. 
+     * Not used when writing to Cassandra: column values are compressed
+     * according to {@link CassandraParameters#getCompressionCodec()}.
      */
     boolean compress = true; 
     public boolean getCompress() {
@@ -104,22 +125,28 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
     CassandraParameters cassandraParameters = null;
 
 	/** If set to true, then only write urls that are new rowkey records.
-     *  Default is false, which will write all urls to the HBase table.
+     *  Default is false, which will write all urls to the Cassandra column family.
      * Heritrix is good about not hitting the same url twice, so this feature
      * is to ensure that you can run multiple sessions of the same crawl
      * configuration and not write the same url more than once to the same
-     * hbase table. You may just want to crawl a site to see what new urls have
+     * column family. You may just want to crawl a site to see what new urls have
      * been added over time, or continue where you left off on a terminated
      * crawl.  Heritrix itself does support this functionalty by supporting
      * "Checkpoints" during a crawl session, so this may not be a necessary
      * option.
+     *
+     * Existing rowkeys are looked up through a local Bloom filter warmed up
+     * with a scan of the column family, so only the urls it might contain
+     * cost a read from Cassandra.
      */
     private boolean onlyWriteNewRecords = false;
 
     /** If set to true, then only process urls that are new rowkey records.
-     * Default is false, which will process all urls to the HBase table.
+     * Default is false, which will process all urls to the Cassandra column family.
      * In this mode, Heritrix wont even fetch and parse the content served at
-     * the url if it already exists as a rowkey in the HBase table.
+     * the url if it already exists as a rowkey in the column family, provided
+     * this processor is also referenced in the fetch chain ahead of the
+     * fetchers.
      */
     private boolean onlyProcessNewRecords = false;
 
@@ -173,6 +200,141 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
         this.poolMaxActive = poolMaxActive;
     }
 
+    /**
+     * Whether to only queue up records on the crawler threads and have a
+     * set of flusher threads write them to Cassandra in multi-row batches.
+     * Default is false, which writes each record synchronously.
+     */
+    boolean writeBehind = false;
+    public boolean getWriteBehind() {
+        return writeBehind;
+    }
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Maximum number of records waiting to be written in write-behind mode.
+     * Crawler threads block once the queue is full.
+     */
+    int writeBehindQueueSize = 10000;
+    public int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    /**
+     * Maximum number of bytes waiting to be written in write-behind mode.
+     * Crawler threads block once this limit is reached. A value of zero or less
+     * means no upper limit besides writeBehindQueueSize.
+     */
+    long writeBehindQueueBytes = 256 * 1024 * 1024;
+    public long getWriteBehindQueueBytes() {
+        return writeBehindQueueBytes;
+    }
+    public void setWriteBehindQueueBytes(long writeBehindQueueBytes) {
+        this.writeBehindQueueBytes = writeBehindQueueBytes;
+    }
+
+    /**
+     * Number of threads flushing batches to Cassandra in write-behind mode.
+     */
+    int writeBehindThreads = 2;
+    public int getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+    public void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    /**
+     * Maximum number of records combined into a single batch_mutate call.
+     */
+    int writeBehindBatchRows = 100;
+    public int getWriteBehindBatchRows() {
+        return writeBehindBatchRows;
+    }
+    public void setWriteBehindBatchRows(int writeBehindBatchRows) {
+        this.writeBehindBatchRows = writeBehindBatchRows;
+    }
+
+    /**
+     * Size in bytes after which a batch is flushed, regardless of how many
+     * records it holds.
+     */
+    long writeBehindBatchBytes = 4 * 1024 * 1024;
+    public long getWriteBehindBatchBytes() {
+        return writeBehindBatchBytes;
+    }
+    public void setWriteBehindBatchBytes(long writeBehindBatchBytes) {
+        this.writeBehindBatchBytes = writeBehindBatchBytes;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for a batch to fill up before
+     * flushing it.
+     */
+    long writeBehindLingerMs = 50;
+    public long getWriteBehindLingerMs() {
+        return writeBehindLingerMs;
+    }
+    public void setWriteBehindLingerMs(long writeBehindLingerMs) {
+        this.writeBehindLingerMs = writeBehindLingerMs;
+    }
+
+    /**
+     * Whether to append the records that can't be written to Cassandra
+     * (nodes down or overloaded past the retry budget) to a memory-mapped
+     * journal under the first of the storePaths, or under directory if
+     * there is none, and replay them once the cluster is back. Once a record
+     * is spilled, the following ones go straight to the journal until a
+     * replay succeeds. Default is false, which fails the records instead.
+     */
+    boolean spillJournal = false;
+    public boolean getSpillJournal() {
+        return spillJournal;
+    }
+    public void setSpillJournal(boolean spillJournal) {
+        this.spillJournal = spillJournal;
+    }
+
+    /**
+     * Size in bytes of the spill journal's segment files.
+     */
+    int spillSegmentSize = 64 * 1024 * 1024;
+    public int getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    /**
+     * Maximum number of spilled records combined into a single batch_mutate
+     * call when replaying the journal.
+     */
+    int spillReplayBatchRecords = 100;
+    public int getSpillReplayBatchRecords() {
+        return spillReplayBatchRecords;
+    }
+    public void setSpillReplayBatchRecords(int spillReplayBatchRecords) {
+        this.spillReplayBatchRecords = spillReplayBatchRecords;
+    }
+
+    /**
+     * Time in milliseconds between two attempts at replaying the spill
+     * journal while Cassandra can't be written to.
+     */
+    long spillReplayIntervalMs = 5000;
+    public long getSpillReplayIntervalMs() {
+        return spillReplayIntervalMs;
+    }
+    public void setSpillReplayIntervalMs(long spillReplayIntervalMs) {
+        this.spillReplayIntervalMs = spillReplayIntervalMs;
+    }
+
     /**
      * Whether to skip the writing of a record when URI history information is
      * available and indicates the prior fetch had an identical content digest.
@@ -196,9 +358,15 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
     protected static final String ANNOTATION_UNWRITTEN = "unwritten";
 
     /**
-     * Total file bytes to write to disk. Once the size of all files on disk has
-     * exceeded this limit, this processor will stop the crawler. A value of
-     * zero means no upper limit.
+     * JMX name of the metrics of the pool, while registered.
+     */
+    protected ObjectName metricsName = null;
+
+    /**
+     * Total bytes to write to Cassandra, counted as the serialized size of all
+     * the rows written: crawl, content and chunk rows. Once this limit is
+     * exceeded, this processor will stop the crawler. A value of zero means no
+     * upper limit.
      */
     long maxTotalBytesToWrite = 0L;
     public long getMaxTotalBytesToWrite() {
@@ -240,6 +408,9 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
      * path specified, we'll round-robin dropping files to each. This 
      * setting is safe to change midcrawl (You can remove and add new 
      * dirs as the crawler progresses).
+     * 
+     * With the SSTABLE storage backend, SSTables are written there for
+     * sstableloader, rolling at maxFileSizeBytes.
      */
     List<String> storePaths = getDefaultStorePaths();
 	List<String> getDefaultStorePaths() {
@@ -258,12 +429,18 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
     transient private WriterPool pool = null;
     
     /**
-     * Total number of bytes written to disc.
+     * Total number of bytes written to Cassandra, kept across checkpoints.
      */
-    private long totalBytesWritten = 0;
+    private final AtomicLong totalBytesWritten = new AtomicLong();
 
     private WriterPoolSettings settings;
     private AtomicInteger serial = new AtomicInteger();
+
+    /**
+     * Where to resume replaying the spill journal from, as recorded by the
+     * checkpoint being recovered.
+     */
+    private SpillJournal.Position spillReadPosition = null;
     
 
     /**
@@ -289,7 +466,7 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
             return;
         }
         super.stop(); 
-        this.pool.close();
+        closePool();
         this.settings = null; 
     }
     
@@ -302,38 +479,148 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
      * Set up pool of files.
      */
     protected void setupPool(AtomicInteger serial) {
-		setPool(new CassandraWriterPool(getCassandraParameters(), this, getPoolMaxActive(), getMaxWaitForIdleMs()));
+		CassandraWriterPool cassandraWriterPool = new CassandraWriterPool(getCassandraParameters(), this,
+				getPoolMaxActive(), getMaxWaitForIdleMs());
+		if (getCassandraParameters().getColumnFamilyRotation() != ColumnFamilyRotation.NONE) {
+			String jobName = getMetadataProvider() != null ? getMetadataProvider().getJobName() : null;
+			cassandraWriterPool.setColumnFamilyRotator(new ColumnFamilyRotator(cassandraWriterPool,
+					getCassandraParameters().getColumnFamilyRotation(), jobName));
+		}
+		if (onlyWriteNewRecords() || onlyProcessNewRecords() || (getCassandraParameters().isRemoveMissingPages() &&
+				getCassandraParameters().isRemoveOnlyWrittenPages())) {
+			RowExistenceCache existenceCache = new RowExistenceCache(cassandraWriterPool, getCassandraParameters());
+			cassandraWriterPool.setExistenceCache(existenceCache);
+			existenceCache.warmUp();
+		}
+		if (getWriteBehind()) {
+			cassandraWriterPool.setWriteBehindQueue(new WriteBehindQueue(cassandraWriterPool,
+					getWriteBehindQueueSize(), getWriteBehindQueueBytes(), getWriteBehindThreads(),
+					getWriteBehindBatchRows(), getWriteBehindBatchBytes(), getWriteBehindLingerMs()));
+		}
+		if (getSpillJournal()) {
+			try {
+				cassandraWriterPool.setSpillJournal(new SpillJournal(getSpillDirectory(), getSpillSegmentSize(),
+						spillReadPosition), getSpillReplayBatchRecords(), getSpillReplayIntervalMs());
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open the spill journal: " + e.getMessage(), e);
+			}
+		}
+		setPool(cassandraWriterPool);
+		registerMetrics(cassandraWriterPool.getMetrics());
 	}
 
+    /**
+     * Expose the metrics of the pool through JMX, as
+     * <code>org.archive.io.cassandra:type=WriterMetrics,name=&lt;bean name&gt;</code>.
+     */
+    protected void registerMetrics(WriterMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            metricsName = new ObjectName("org.archive.io.cassandra:type=WriterMetrics,name=" +
+                    ObjectName.quote(String.valueOf(getBeanName())));
+            if (server.isRegistered(metricsName)) {
+                server.unregisterMBean(metricsName);
+            }
+            server.registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            logger.warn("Unable to register the writer metrics: " + e.getMessage());
+            metricsName = null;
+        }
+    }
+
+    protected void unregisterMetrics() {
+        if (metricsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            logger.debug("Unable to unregister the writer metrics: " + e.getMessage());
+        }
+        metricsName = null;
+    }
+
+    /**
+     * @return the directory of the spill journal: under the first of the
+     * storePaths, or under directory if there is none
+     */
+    protected File getSpillDirectory() {
+        List<File> outputDirs = getOutputDirs();
+        File base = outputDirs.isEmpty() ? getDirectory().getFile() : outputDirs.get(0);
+        return new File(base, "cassandra-spill");
+    }
+
+    /**
+     * Write out any queued records and close the pool.
+     */
+    protected void closePool() {
+        unregisterMetrics();
+        WriteBehindQueue writeBehindQueue = ((CassandraWriterPool) this.pool).getWriteBehindQueue();
+        if (writeBehindQueue != null) {
+            writeBehindQueue.close();
+        }
+        this.pool.close();
+        SpillJournal journal = ((CassandraWriterPool) this.pool).getSpillJournal();
+        if (journal != null) {
+            // Resume from there when the pool is set up again
+            spillReadPosition = journal.getReadPosition();
+        }
+    }
+
     
     protected ProcessResult checkBytesWritten() {
         long max = getMaxTotalBytesToWrite();
         if (max <= 0) {
             return ProcessResult.PROCEED;
         }
-        if (max <= this.totalBytesWritten) {
+        if (max <= getTotalBytesWritten()) {
             return ProcessResult.FINISH; // FIXME: Specify reason
 //            controller.requestCrawlStop(CrawlStatus.FINISHED_WRITE_LIMIT);
         }
         return ProcessResult.PROCEED;
     }
 
-    // TODO: add non-urgent checkpoint request, that waits for a good
-    // moment (when (W)ARCs are already rolling over)? 
+    /**
+     * Wait for the queued and in-flight writes to be over and sync the
+     * spill journal to disk, then save the writer state. Unlike ARC/WARC
+     * writers, there are no files to close: the pool and its connections
+     * stay open across the checkpoint.
+     */
     public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
-        // close all ARCs on checkpoint
-        this.pool.close();
-        
-        super.doCheckpoint(checkpointInProgress);
-   
-        // reopen post checkpoint
-        setupPool(this.serial);
+        try {
+            ((CassandraWriterPool) getPool()).drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while draining the writes for checkpoint " +
+                    checkpointInProgress.getName());
+        }
+
+        try {
+            checkpointInProgress.saveJson(getBeanName(), toCheckpointJson());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
     }
     
     @Override
     protected JSONObject toCheckpointJson() throws JSONException {
         JSONObject json = super.toCheckpointJson();
         json.put("serialNumber", getSerialNo().get());
+        json.put("totalBytesWritten", getTotalBytesWritten());
+        WriteBehindQueue writeBehindQueue = ((CassandraWriterPool) getPool()).getWriteBehindQueue();
+        if (writeBehindQueue != null) {
+            // Zero once drained, unless a checkpoint was taken while crawling
+            json.put("writeBehindQueuedRows", writeBehindQueue.size());
+        }
+        SpillJournal journal = ((CassandraWriterPool) getPool()).getSpillJournal();
+        if (journal != null) {
+            SpillJournal.Position read = journal.getReadPosition();
+            SpillJournal.Position write = journal.getWritePosition();
+            json.put("spillReadSegment", read.getSegment());
+            json.put("spillReadOffset", read.getOffset());
+            json.put("spillWriteSegment", write.getSegment());
+            json.put("spillWriteOffset", write.getOffset());
+        }
         return json;
     }
     
@@ -341,6 +628,11 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
     protected void fromCheckpointJson(JSONObject json) throws JSONException {
         super.fromCheckpointJson(json);
         serial.set(json.getInt("serialNumber"));
+        setTotalBytesWritten(json.optLong("totalBytesWritten", 0));
+        if (json.has("spillReadSegment")) {
+            spillReadPosition = new SpillJournal.Position(json.getLong("spillReadSegment"),
+                    json.getInt("spillReadOffset"));
+        }
     }
     
     protected WriterPool getPool() {
@@ -351,12 +643,41 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
         this.pool = pool;
     }
 
+    /**
+     * @return the metrics of the writes to Cassandra
+     */
+    public WriterMetrics getMetrics() {
+        return ((CassandraWriterPool) getPool()).getMetrics();
+    }
+
+    @Override
+    public String report() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Processor: " + getClass().getName() + "\n");
+        buf.append("  Function:          Writes to Cassandra\n");
+        buf.append(getMetrics().getReport());
+        buf.append("\n");
+        return buf.toString();
+    }
+
+    /**
+     * @return the current limit of writes in flight to each Cassandra node,
+     * empty unless the cassandraParameters enable writeConcurrencyLimiting
+     */
+    public Map<String, Integer> getWriteConcurrencyLimits() {
+        WriteConcurrencyLimiter limiter = ((CassandraWriterPool) getPool()).getConcurrencyLimiter();
+        if (limiter == null) {
+            return Collections.emptyMap();
+        }
+        return limiter.getLimits();
+    }
+
     protected long getTotalBytesWritten() {
-        return totalBytesWritten;
+        return totalBytesWritten.get();
     }
 
     protected void setTotalBytesWritten(long totalBytesWritten) {
-        this.totalBytesWritten = totalBytesWritten;
+        this.totalBytesWritten.set(totalBytesWritten);
     }
 	
     public List<String> getMetadata() {
@@ -396,6 +717,17 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
     @Override
     protected ProcessResult innerProcessResult(CrawlURI uri) {
 		CrawlURI curi = uri;
+		if (isPrefetch(curi)) {
+		    // Referenced in the fetch chain: skip the fetch of urls already written
+		    if (recordExists(curi)) {
+		        skip(curi, "existingRecord");
+		        // Disregarded rather than retried as an unattempted fetch, and no longer a prefetch
+		        curi.setFetchStatus(FetchStatusCodes.S_BLOCKED_BY_CUSTOM_PROCESSOR);
+		        return ProcessResult.FINISH;
+		    }
+		    return ProcessResult.PROCEED;
+		}
+
         long recordLength = getRecordedSize(curi);
         ReplayInputStream ris = null;
         try {
@@ -403,7 +735,9 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
                 ris = curi.getRecorder().getRecordedInput().getReplayInputStream();
                 return write(curi, recordLength, ris);
             }
-            logger.info("Does not write " + curi.toString());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Does not write " + curi.toString());
+            }
         } catch (IOException e) {
             curi.getNonFatalFailures().add(e);
             logger.error("Failed write of Record: " + curi.toString(), e);
@@ -420,6 +754,10 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
         }
         
         CrawlURI curi = (CrawlURI)uri;
+        if (isPrefetch(curi)) {
+            return true;
+        }
+
         // If failure, or we haven't fetched the resource yet, return
         if (curi.getFetchStatus() <= 0) {
             return false;
@@ -436,6 +774,56 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
         return true;
     }
     
+    @Override
+    protected boolean shouldWrite(CrawlURI curi) {
+        if (getSkipIdenticalDigests() && IdenticalDigestDecideRule.hasIdenticalDigest(curi)) {
+            skip(curi, "identicalDigest");
+            return false;
+        }
+        if (onlyWriteNewRecords() && recordExists(curi)) {
+            skip(curi, "existingRecord");
+            return false;
+        }
+        if (!super.shouldWrite(curi)) {
+            getMetrics().skipped("notWritable");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Annotate a url as not written and count it in the metrics.
+     */
+    protected void skip(CrawlURI curi, String reason) {
+        curi.getAnnotations().add(ANNOTATION_UNWRITTEN + ":" + reason);
+        getMetrics().skipped(reason);
+    }
+
+    /**
+     * Whether the processor is running ahead of the fetch of a url, to skip
+     * the fetch of those already written.
+     */
+    protected boolean isPrefetch(CrawlURI curi) {
+        return onlyProcessNewRecords() && curi.getFetchStatus() == 0;
+    }
+
+    /**
+     * Whether the row of the given url already exists in Cassandra. If that
+     * can't be found out, the url is considered new.
+     */
+    protected boolean recordExists(CrawlURI curi) {
+        RowExistenceCache existenceCache = ((CassandraWriterPool) getPool()).getExistenceCache();
+        if (existenceCache == null) {
+            return false;
+        }
+        try {
+            return existenceCache.exists(UrlKey.createRowKey(curi.toString(), getCassandraParameters()));
+        } catch (Exception e) {
+            logger.warn("Unable to check whether " + curi + " was already written: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Write to Cassandra.
      *
@@ -449,14 +837,28 @@ public class CassandraWriterProcessor extends WriterPoolProcessor implements Lif
      * @throws InterruptedException 
      */
     protected ProcessResult write(final CrawlURI curi, long recordLength, InputStream in) throws IOException, InterruptedException {
+        long borrowStart = System.nanoTime();
         WriterPoolMember writerPoolMember = getPool().borrowFile();
-        long writerPoolMemberPosition = writerPoolMember.getPosition();
+        getMetrics().borrowed(System.nanoTime() - borrowStart);
         CassandraWriter cassandraWriter = (CassandraWriter) writerPoolMember;
+        long bytesWritten = cassandraWriter.getBytesWritten();
         try {
-            cassandraWriter.write(curi, getHostAddress(curi), curi.getRecorder().getRecordedOutput(),
-            		curi.getRecorder().getRecordedInput());
+            WriteFuture pending = cassandraWriter.write(curi, getHostAddress(curi),
+                    curi.getRecorder().getRecordedOutput(), curi.getRecorder().getRecordedInput());
+            if (pending != null) {
+                // The URI is long done with by the time an asynchronous write fails
+                final String uri = curi.toString();
+                pending.addCallback(new WriteFuture.Callback() {
+                    public void onComplete(WriteFuture future) {
+                        if (!future.isSuccess()) {
+                            getMetrics().skipped("failedWrite");
+                            logger.error("Failed write of Record: " + uri, future.getError());
+                        }
+                    }
+                });
+            }
         } finally {
-            setTotalBytesWritten(getTotalBytesWritten() + (writerPoolMember.getPosition() - writerPoolMemberPosition));
+            totalBytesWritten.addAndGet(cassandraWriter.getBytesWritten() - bytesWritten);
             getPool().returnFile(writerPoolMember);
         }
         return checkBytesWritten();